@@ -22,11 +22,23 @@
 package org.voyanttools.trombone.input.expand;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.codec.digest.DigestUtils;
@@ -43,6 +55,7 @@ import org.voyanttools.trombone.model.DocumentFormat;
 import org.voyanttools.trombone.model.DocumentMetadata;
 import org.voyanttools.trombone.model.StoredDocumentSource;
 import org.voyanttools.trombone.storage.StoredDocumentSourceStorage;
+import org.voyanttools.trombone.util.FlexibleParameters;
 
 /**
  * An expander for compressed archives. This is supported through the Apache 
@@ -51,6 +64,12 @@ import org.voyanttools.trombone.storage.StoredDocumentSourceStorage;
  * all of these are tested). Note that for single compressed files (like "gz"
  * and "bzip2") the {@link CompressedExpander} should be used.
  * 
+ * <p>Entries are read one at a time from the archive stream and handed to a
+ * bounded pool of <code>archiveExpandThreads</code> workers that store and
+ * recursively expand them. Entries no larger than <code>archiveEntryBufferKB</code>
+ * are buffered so that they can be stored by the workers, larger ones are
+ * stored while reading (and only expanded by the workers). The children keep the order of the archive.</p>
+ * 
  * @author Stéfan Sinclair
  */
 class ArchiveExpander implements Expander {
@@ -65,16 +84,23 @@ class ArchiveExpander implements Expander {
 	 */
 	private StoredDocumentSourceStorage storedDocumentSourceStorage;
 	
+	/**
+	 * all parameters sent, only some of which may be relevant to this expander
+	 */
+	private FlexibleParameters parameters;
+	
 	/**
 	 * Create a new instance of this expander (this should only be done by
 	 * {@link StoredDocumentSourceExpander}.
 	 * 
 	 * @param storedDocumentSourceStorage a stored storage strategy
 	 * @param storedDocumentSoruceExpander a reference to the primary expander
+	 * @param parameters that may be relevant to this expander
 	 */
-	ArchiveExpander(StoredDocumentSourceStorage storedDocumentSourceStorage, StoredDocumentSourceExpander storedDocumentSoruceExpander) {
+	ArchiveExpander(StoredDocumentSourceStorage storedDocumentSourceStorage, StoredDocumentSourceExpander storedDocumentSoruceExpander, FlexibleParameters parameters) {
 		this.storedDocumentSourceStorage = storedDocumentSourceStorage;
 		this.expander = storedDocumentSoruceExpander;
+		this.parameters = parameters;
 	}
 	
 	public List<StoredDocumentSource> getExpandedStoredDocumentSources(StoredDocumentSource storedDocumentSource)
@@ -132,32 +158,158 @@ class ArchiveExpander implements Expander {
 		
 		List<StoredDocumentSource> expandedDocumentSources = new ArrayList<StoredDocumentSource>();
 		
-		ArchiveEntry archiveEntry = archiveInputStream.getNextEntry();
-		String parentId = parentStoredDocumentSource.getId();
-		DocumentMetadata parentMetadata = parentStoredDocumentSource.getMetadata();
-		while (archiveEntry != null) {
-			
-			if (archiveEntry.isDirectory()==false) {
-				final String filename = archiveEntry.getName();
-				final File file = new File(filename);
-
-				// skip directories and skippable files
-				if (DocumentFormat.isSkippable(file)==false) {
-					DocumentMetadata childMetadata = parentMetadata.asParent(parentStoredDocumentSource.getId(), DocumentMetadata.ParentType.EXPANSION);
-					childMetadata.setLocation(file.toString());
-					childMetadata.setModified(archiveEntry.getLastModifiedDate().getTime());
-					childMetadata.setSource(Source.STREAM);
-					childMetadata.setTitle(file.getName().replaceFirst("\\.\\w+$", ""));
-					String id = DigestUtils.md5Hex(parentId+filename);
-					InputSource inputSource = new InputStreamInputSource(id, childMetadata, new CloseShieldInputStream(archiveInputStream));
-					StoredDocumentSource storedDocumentSource = storedDocumentSourceStorage.getStoredDocumentSource(inputSource);
-					expandedDocumentSources.addAll(this.expander.getExpandedStoredDocumentSources(storedDocumentSource)); // expand this recursively
+		int threads = parameters.getParameterIntValue("archiveExpandThreads", Runtime.getRuntime().availableProcessors());
+		long entryBufferSize = parameters.getParameterIntValue("archiveEntryBufferKB", 1024) * 1024L;
+		ThreadPoolExecutor executor = threads > 1 ? getExecutor(threads) : null;
+		
+		// nested archives are expanded sequentially within a worker so that the pool never waits on itself
+		final FlexibleParameters workerParameters = parameters.clone();
+		workerParameters.setParameter("archiveExpandThreads", 1);
+		ThreadLocal<Expander> workerExpanders = new ThreadLocal<Expander>() {
+			@Override
+			protected Expander initialValue() {
+				return new StoredDocumentSourceExpander(storedDocumentSourceStorage, workerParameters);
+			}
+		};
+		
+		// futures are kept in archive order and collected as soon as they're done
+		LinkedList<Future<List<StoredDocumentSource>>> futures = new LinkedList<Future<List<StoredDocumentSource>>>();
+		
+		try {
+			ArchiveEntry archiveEntry = archiveInputStream.getNextEntry();
+			String parentId = parentStoredDocumentSource.getId();
+			DocumentMetadata parentMetadata = parentStoredDocumentSource.getMetadata();
+			while (archiveEntry != null) {
+				
+				if (archiveEntry.isDirectory()==false) {
+					final String filename = archiveEntry.getName();
+					final File file = new File(filename);
+	
+					// skip directories and skippable files
+					if (DocumentFormat.isSkippable(file)==false) {
+						DocumentMetadata childMetadata = parentMetadata.asParent(parentStoredDocumentSource.getId(), DocumentMetadata.ParentType.EXPANSION);
+						childMetadata.setLocation(file.toString());
+						childMetadata.setModified(archiveEntry.getLastModifiedDate().getTime());
+						childMetadata.setSource(Source.STREAM);
+						childMetadata.setTitle(file.getName().replaceFirst("\\.\\w+$", ""));
+						String id = DigestUtils.md5Hex(parentId+filename);
+						if (executor==null) {
+							InputSource inputSource = new InputStreamInputSource(id, childMetadata, new CloseShieldInputStream(archiveInputStream));
+							StoredDocumentSource storedDocumentSource = storedDocumentSourceStorage.getStoredDocumentSource(inputSource);
+							expandedDocumentSources.addAll(this.expander.getExpandedStoredDocumentSources(storedDocumentSource)); // expand this recursively
+						}
+						else {
+							CallableExpander worker;
+							// sizes aren't always known ahead of time (as with streamed zip entries), so read up to the limit
+							ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+							if (read(archiveInputStream, buffer, entryBufferSize+1) <= entryBufferSize) {
+								worker = new CallableExpander(new InputStreamInputSource(id, childMetadata, new ByteArrayInputStream(buffer.toByteArray())), workerExpanders);
+							}
+							else { // too large to hold in memory, so store the rest of it from the archive stream
+								InputStream entryInputStream = new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()), new CloseShieldInputStream(archiveInputStream));
+								InputSource inputSource = new InputStreamInputSource(id, childMetadata, entryInputStream);
+								worker = new CallableExpander(storedDocumentSourceStorage.getStoredDocumentSource(inputSource), workerExpanders);
+							}
+							futures.add(executor.submit(worker));
+							while (futures.isEmpty()==false && futures.getFirst().isDone()) {
+								expandedDocumentSources.addAll(futures.removeFirst().get());
+							}
+						}
+					}
 				}
+				archiveEntry = archiveInputStream.getNextEntry();
+			}
+			
+			for (Future<List<StoredDocumentSource>> future : futures) {
+				expandedDocumentSources.addAll(future.get());
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("An error occurred during multi-threaded archive expansion.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IllegalStateException("An error occurred during multi-threaded archive expansion.", e);
+		}
+		finally {
+			if (executor!=null) {
+				executor.shutdownNow();
 			}
-			archiveEntry = archiveInputStream.getNextEntry();
 		}
 
 		return expandedDocumentSources;
 	}
+	
+	/**
+	 * Read up to the specified number of bytes from the input stream.
+	 * 
+	 * @param inputStream the stream to read
+	 * @param outputStream the stream to write to
+	 * @param max the maximum number of bytes to read
+	 * @return the number of bytes read
+	 * @throws IOException thrown when an IO exception occurs during reading
+	 */
+	private long read(InputStream inputStream, ByteArrayOutputStream outputStream, long max) throws IOException {
+		byte[] bytes = new byte[8192];
+		long total = 0;
+		int read;
+		while (total < max && (read = inputStream.read(bytes, 0, (int) Math.min(bytes.length, max-total))) != -1) {
+			outputStream.write(bytes, 0, read);
+			total += read;
+		}
+		return total;
+	}
+	
+	/**
+	 * Get a pool with a bounded queue in which the reading thread stores and
+	 * expands an entry itself when the queue is full, which keeps the number
+	 * of buffered entries in check.
+	 * 
+	 * @param threads the number of workers
+	 * @return the executor
+	 */
+	private ThreadPoolExecutor getExecutor(int threads) {
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads*4), new ThreadFactory() {
+					private AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "trombone-archive-"+count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+	
+	/**
+	 * A worker that stores an entry (unless it's already stored) and expands it
+	 * recursively with the expander of the current thread.
+	 */
+	private class CallableExpander implements Callable<List<StoredDocumentSource>> {
+		
+		private InputSource inputSource;
+		private StoredDocumentSource storedDocumentSource;
+		private ThreadLocal<Expander> expanders;
+		
+		CallableExpander(InputSource inputSource, ThreadLocal<Expander> expanders) {
+			this.inputSource = inputSource;
+			this.expanders = expanders;
+		}
+		
+		CallableExpander(StoredDocumentSource storedDocumentSource, ThreadLocal<Expander> expanders) {
+			this.storedDocumentSource = storedDocumentSource;
+			this.expanders = expanders;
+		}
+
+		@Override
+		public List<StoredDocumentSource> call() throws Exception {
+			if (storedDocumentSource==null) {
+				storedDocumentSource = storedDocumentSourceStorage.getStoredDocumentSource(inputSource);
+				inputSource = null; // let go of the buffered entry
+			}
+			return expanders.get().getExpandedStoredDocumentSources(storedDocumentSource);
+		}
+		
+	}
 
 }
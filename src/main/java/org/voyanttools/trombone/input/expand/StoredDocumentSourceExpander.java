@@ -26,13 +26,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.Callable;
 
 import org.apache.tika.detect.DefaultDetector;
 import org.apache.tika.io.IOUtils;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.mime.MediaType;
-import org.voyanttools.trombone.input.source.InputSource;
 import org.voyanttools.trombone.input.source.Source;
 import org.voyanttools.trombone.model.DocumentFormat;
 import org.voyanttools.trombone.model.DocumentMetadata;
@@ -112,36 +110,6 @@ public class StoredDocumentSourceExpander implements Expander {
 		this.parameters = parameters;
 	}
 	
-	/*
-	public List<StoredDocumentSource> getExpandedStoredDocumentSources(InputSource inputSource) throws IOException {
-		List<InputSource> inputSources = new ArrayList<InputSource>();
-		inputSources.add(inputSource);
-		return getExpandedStoredDocumentSources(inputSources);
-	}
-
-	public List<StoredDocumentSource> getExpandedStoredDocumentSources(List<InputSource> inputSources) throws IOException {
-		List<StoredDocumentSource> storedDocumentSources = new ArrayList<StoredDocumentSource>();
-		ExecutorService executor = Executors.newCachedThreadPool();
-		List<Future<StoredDocumentSource>> list = new ArrayList<Future<StoredDocumentSource>>();
-		for (InputSource inputSource : inputSources) {
-			Callable<StoredDocumentSource> worker = new CallableExpander(this.storedDocumentSourceStorage, inputSource);
-			Future<StoredDocumentSource> submit = executor.submit(worker);
-			list.add(submit);	
-		}
-		try {
-			for (Future<StoredDocumentSource> future : list) {
-				storedDocumentSources.add(future.get());
-			}
-		} catch (InterruptedException e) {
-			throw new IllegalStateException("An error occurred during multi-threaded document expansion.", e);
-		} catch (ExecutionException e) {
-			throw new IllegalStateException("An error occurred during multi-threaded document expansion.", e);
-		}
-		executor.shutdown();
-		return storedDocumentSources;
-	}
-	*/
-	
 	public List<StoredDocumentSource> getExpandedStoredDocumentSources(
 			StoredDocumentSource storedDocumentSource) throws IOException {
 
@@ -212,7 +180,7 @@ public class StoredDocumentSourceExpander implements Expander {
 			StoredDocumentSource storedDocumentSource) throws IOException {
 		if (this.archiveExpander == null) {
 			this.archiveExpander = new ArchiveExpander(
-					storedDocumentSourceStorage, this);
+					storedDocumentSourceStorage, this, parameters);
 		}
 		return this.archiveExpander
 				.getExpandedStoredDocumentSources(storedDocumentSource);
@@ -257,21 +225,4 @@ public class StoredDocumentSourceExpander implements Expander {
 		// this will deal fine when no expansion is needed
 		return this.xmlExpander.getExpandedStoredDocumentSources(storedDocumentSource);
 	}
-
-	private class CallableExpander implements Callable<StoredDocumentSource> {
-
-		private StoredDocumentSourceStorage storedDocumentSourceStorage;
-		private InputSource inputSource;
-		public CallableExpander(StoredDocumentSourceStorage storedDocumentSourceStorage,
-				InputSource inputSource) {
-			this.storedDocumentSourceStorage = storedDocumentSourceStorage;
-			this.inputSource = inputSource;
-		}
-
-		@Override
-		public StoredDocumentSource call() throws Exception {
-			return this.storedDocumentSourceStorage.getStoredDocumentSource(inputSource);
-		}
-		
-	}
 }
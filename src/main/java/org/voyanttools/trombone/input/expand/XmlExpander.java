@@ -31,14 +31,28 @@ import java.io.StringWriter;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Result;
 import javax.xml.transform.Transformer;
@@ -79,6 +93,16 @@ import org.xml.sax.SAXException;
  * don't use an expander, use the xmlContentXpath parameter instead (which will
  * be handled by the XML parser).
  * 
+ * <p>When {@code xmlDocumentsStreaming} is true and the XPath expression is a
+ * simple path of element names (like {@code //item} or {@code /teiCorpus/TEI}),
+ * the document is read as a stream instead of being parsed into a DOM, and each
+ * matching element is stored as soon as it's been read, so that memory is
+ * bounded by the largest child rather than by the whole document. Matching
+ * elements nested within another match (like with {@code //div}) are children
+ * too, in document order as with the DOM, so the same expression gives the
+ * same children and IDs either way. Other expressions (and
+ * {@code xmlGroupByXpath}) still use the DOM.</p>
+ * 
  * @author "Stéfan Sinclair"
  */
 class XmlExpander implements Expander {
@@ -203,6 +227,17 @@ class XmlExpander implements Expander {
 			return childStoredDocumentSources;
 		}
 
+		if (xmlGroupByXpath.isEmpty() && parameters.getParameterBooleanValue("xmlDocumentsStreaming")) {
+			StreamingPath streamingPath = StreamingPath.parse(xmlDocumentsXpath);
+			if (streamingPath!=null) {
+				childStoredDocumentSources = getStreamedChildStoredDocumentSources(storedDocumentSource, xmlDocumentsXpath, streamingPath);
+				storedDocumentSourceStorage.setMultipleExpandedStoredDocumentSources(
+						parentId, childStoredDocumentSources,
+						multipleExpandedStoredDocumentSourcesPrefix);
+				return childStoredDocumentSources;
+			}
+		}
+
 		// for some reason XPathAPI doesn't work properly with the default
 		// XPathFactory, so we'll use Saxon
 		System.setProperty("javax.xml.xpath.XPathFactory:"
@@ -410,13 +445,132 @@ class XmlExpander implements Expander {
 	private NodeInputSource getChildStoredDocumentSource(Node node,
 			String parentId, DocumentMetadata parentMetadata, String location)
 			throws IOException {
+		String id = DigestUtils.md5Hex(parentId + location);
+		return new NodeInputSource(id, node, getChildDocumentMetadata(parentMetadata, parentId, location));
+	}
+	
+	private DocumentMetadata getChildDocumentMetadata(DocumentMetadata parentMetadata, String parentId, String location) {
 		DocumentMetadata metadata = parentMetadata.asParent(parentId, DocumentMetadata.ParentType.EXPANSION);
 		metadata.setModified(parentMetadata.getModified());
 		metadata.setSource(Source.STRING);
 		metadata.setLocation(location);
 		metadata.setDocumentFormat(DocumentFormat.XML);
-		String id = DigestUtils.md5Hex(parentId + location);
-		return new NodeInputSource(id, node, metadata);
+		return metadata;
+	}
+	
+	/**
+	 * Get a list of stored document sources by reading the stored document as
+	 * a stream. Each element matching the specified path is written out with
+	 * the namespaces in scope and stored as soon as it ends. A matching element
+	 * nested within another one is also a child (it's written out to both), so
+	 * the children and their IDs are the same as with the DOM.
+	 * 
+	 * @param storedDocumentSource
+	 *            the stored parent document
+	 * @param xmlDocumentsXpath
+	 *            the XPath expression (used for the location of children)
+	 * @param streamingPath
+	 *            the path of elements to match
+	 * @return a list of {@link StoredDocumentSource}s
+	 * @throws IOException
+	 *             an exception that occurs during processing
+	 */
+	private List<StoredDocumentSource> getStreamedChildStoredDocumentSources(
+			StoredDocumentSource storedDocumentSource, String xmlDocumentsXpath,
+			StreamingPath streamingPath) throws IOException {
+		
+		List<StoredDocumentSource> childStoredDocumentSources = new ArrayList<StoredDocumentSource>();
+		String parentId = storedDocumentSource.getId();
+		DocumentMetadata parentMetadata = storedDocumentSource.getMetadata();
+		
+		XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+		XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+		List<StartElement> elements = new ArrayList<StartElement>(); // the open elements
+		List<StreamedChild> children = new ArrayList<StreamedChild>(); // the matching elements that are still open, innermost last
+		InputStream inputStream = null;
+		XMLEventReader reader = null;
+		try {
+			inputStream = storedDocumentSourceStorage.getStoredDocumentSourceInputStream(parentId);
+			reader = inputFactory.createXMLEventReader(inputStream);
+			while (reader.hasNext()) {
+				XMLEvent event = reader.nextEvent();
+				if (event.isStartElement()) {
+					StartElement startElement = event.asStartElement();
+					elements.add(startElement);
+					for (StreamedChild child : children) {
+						child.add(event);
+					}
+					if (streamingPath.matches(elements)) {
+						// children are numbered in document order (by their start) like the nodes matched in the DOM
+						StreamedChild child = new StreamedChild(childStoredDocumentSources.size());
+						childStoredDocumentSources.add(null);
+						child.writer = outputFactory.createXMLEventWriter(child.sw);
+						child.writer.add(eventFactory.createStartDocument());
+						child.writer.add(eventFactory.createStartElement(startElement.getName(), startElement.getAttributes(), getNamespaces(elements)));
+						child.depth = 1;
+						children.add(child);
+					}
+				}
+				else if (event.isEndElement()) {
+					for (StreamedChild child : children) {
+						child.add(event);
+					}
+					elements.remove(elements.size()-1);
+					// only the innermost child can end with this element
+					if (children.isEmpty()==false && children.get(children.size()-1).depth==0) {
+						StreamedChild child = children.remove(children.size()-1);
+						child.writer.add(eventFactory.createEndDocument());
+						child.writer.close();
+						String location = xmlDocumentsXpath + "[" + child.position + "]";
+						InputSource inputSource = new StringInputSource(DigestUtils.md5Hex(parentId + location), getChildDocumentMetadata(parentMetadata, parentId, location), child.sw.toString());
+						childStoredDocumentSources.set(child.position, storedDocumentSourceStorage.getStoredDocumentSource(inputSource));
+					}
+				}
+				else if (event.getEventType()!=XMLStreamConstants.COMMENT && event.getEventType()!=XMLStreamConstants.START_DOCUMENT && event.getEventType()!=XMLStreamConstants.END_DOCUMENT) {
+					for (StreamedChild child : children) {
+						child.add(event);
+					}
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Error with streaming XML parsing for "
+					+ storedDocumentSource, e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// we're closing the input stream anyway
+				}
+			}
+			if (inputStream != null)
+				inputStream.close();
+		}
+		return childStoredDocumentSources;
+	}
+	
+	/**
+	 * Get the namespaces declared on the specified elements (the innermost
+	 * declaration of a prefix wins).
+	 * 
+	 * @param elements
+	 *            the open elements, from the root
+	 * @return an iterator of {@link Namespace}s
+	 */
+	private Iterator<Namespace> getNamespaces(List<StartElement> elements) {
+		Map<String, Namespace> namespaces = new LinkedHashMap<String, Namespace>();
+		for (StartElement element : elements) {
+			Iterator<?> iterator = element.getNamespaces();
+			while (iterator.hasNext()) {
+				Namespace namespace = (Namespace) iterator.next();
+				namespaces.put(namespace.getPrefix(), namespace);
+			}
+		}
+		return namespaces.values().iterator();
 	}
 	
 	private StoredDocumentSource getStoredDocumentSource(NodeInputSource nodeInputSource) throws IOException {
@@ -431,6 +585,98 @@ class XmlExpander implements Expander {
 		return storedDocumentSourceStorage.getStoredDocumentSource(inputSource);
 	}
 
+	/**
+	 * A matching element that's being written out while it's streamed.
+	 */
+	private static class StreamedChild {
+		private int position;
+		private StringWriter sw = new StringWriter();
+		private XMLEventWriter writer;
+		private int depth = 0;
+		private StreamedChild(int position) {
+			this.position = position;
+		}
+		private void add(XMLEvent event) throws XMLStreamException {
+			if (event.isStartElement()) {depth++;}
+			else if (event.isEndElement()) {depth--;}
+			writer.add(event);
+		}
+	}
+
+	/**
+	 * A simple XPath of element names (with an optional prefix or a wildcard)
+	 * separated by child ({@code /}) or descendant ({@code //}) steps, which
+	 * can be matched against the open elements of a stream.
+	 */
+	private static class StreamingPath {
+		
+		private static final Pattern STEP = Pattern.compile("(//?)((?:[A-Za-z_][\\w.-]*:)?(?:[A-Za-z_][\\w.-]*|\\*))");
+		
+		private String[] prefixes;
+		private String[] localNames;
+		private boolean[] descendants;
+		
+		private StreamingPath(List<String[]> steps) {
+			int len = steps.size();
+			prefixes = new String[len];
+			localNames = new String[len];
+			descendants = new boolean[len];
+			for (int i=0; i<len; i++) {
+				String[] step = steps.get(i);
+				descendants[i] = step[0].equals("//");
+				int colon = step[1].indexOf(':');
+				prefixes[i] = colon > -1 ? step[1].substring(0, colon) : "";
+				localNames[i] = colon > -1 ? step[1].substring(colon+1) : step[1];
+			}
+		}
+		
+		/**
+		 * Parse the specified XPath expression.
+		 * 
+		 * @param xpath the XPath expression
+		 * @return the path or null if the expression isn't a simple absolute path
+		 */
+		private static StreamingPath parse(String xpath) {
+			xpath = xpath.trim();
+			Matcher matcher = STEP.matcher(xpath);
+			List<String[]> steps = new ArrayList<String[]>();
+			int end = 0;
+			while (matcher.find()) {
+				if (matcher.start()!=end) {return null;}
+				steps.add(new String[]{matcher.group(1), matcher.group(2)});
+				end = matcher.end();
+			}
+			return steps.isEmpty() || end!=xpath.length() ? null : new StreamingPath(steps);
+		}
+		
+		private boolean matches(List<StartElement> elements) {
+			return matches(elements, 0, 0);
+		}
+		
+		private boolean matches(List<StartElement> elements, int step, int element) {
+			if (step==localNames.length) {return element==elements.size();}
+			if (element==elements.size()) {return false;}
+			if (descendants[step]) {
+				for (int i=element, len=elements.size(); i<len; i++) {
+					if (matches(step, elements.get(i)) && matches(elements, step+1, i+1)) {return true;}
+				}
+				return false;
+			}
+			return matches(step, elements.get(element)) && matches(elements, step+1, element+1);
+		}
+		
+		private boolean matches(int step, StartElement element) {
+			QName name = element.getName();
+			if (localNames[step].equals("*")==false && localNames[step].equals(name.getLocalPart())==false) {return false;}
+			if (prefixes[step].isEmpty()) {
+				// like XPath 1.0, no prefix means no namespace (except for a wildcard)
+				return localNames[step].equals("*") || name.getNamespaceURI()==null || name.getNamespaceURI().isEmpty();
+			}
+			String namespaceURI = element.getNamespaceContext().getNamespaceURI(prefixes[step]);
+			return namespaceURI!=null && namespaceURI.equals(name.getNamespaceURI());
+		}
+	}
+
 	private class NodeInputSource {
 		private Node node;
 		private String id;
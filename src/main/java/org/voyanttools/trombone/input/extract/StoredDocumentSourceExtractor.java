@@ -23,12 +23,19 @@ package org.voyanttools.trombone.input.extract;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.voyanttools.trombone.input.source.InputSource;
@@ -55,9 +62,23 @@ public class StoredDocumentSourceExtractor {
 	 */
 	private StoredDocumentSourceStorage storedDocumentSourceStorage;
 	
-	private TikaExtractor tikaExtractor = null;
+	/**
+	 * each thread gets its own extractors since they keep parsers, transformers and XPath objects that
+	 * aren't thread-safe (and they're then reused for every document the thread extracts)
+	 */
+	private ThreadLocal<TikaExtractor> tikaExtractors = new ThreadLocal<TikaExtractor>();
 	
-	private XmlExtractor xmlExtractor = null;
+	private ThreadLocal<XmlExtractor> xmlExtractors = new ThreadLocal<XmlExtractor>();
+	
+	/**
+	 * the IDs of the documents whose extraction has run out of time and that have been left out
+	 */
+	private List<String> skippedIds = Collections.synchronizedList(new ArrayList<String>());
+	
+	/**
+	 * the workers for {@link #getExtractedStoredDocumentSourceOrSkip(StoredDocumentSource)}, created when first needed
+	 */
+	private ExecutorService timedExecutor = null;
 	
 //	static {
 //		try {
@@ -76,31 +97,144 @@ public class StoredDocumentSourceExtractor {
 		
 	}
 	
+	/**
+	 * Extract the specified documents concurrently (with the number of workers from the <code>extractThreads</code>
+	 * parameter). The extracted documents are in the same order, except that a document that takes longer than
+	 * <code>extractTimeoutSeconds</code> (10 minutes by default, 0 for no limit) is abandoned and left out
+	 * (see {@link #getSkippedIds()}). An abandoned extraction may ignore being interrupted and keep its thread,
+	 * so the workers run on a pool that can grow and another worker is started in its place.
+	 * @param storedDocumentSources the documents to extract
+	 * @return the extracted documents
+	 * @throws IOException
+	 */
 	public List<StoredDocumentSource> getExtractedStoredDocumentSources(List<StoredDocumentSource> storedDocumentSources) throws IOException {
 		List<StoredDocumentSource> extractedStoredDocumentSources = new ArrayList<StoredDocumentSource>();
-		int processors = Runtime.getRuntime().availableProcessors();
-		ExecutorService executor = Executors.newFixedThreadPool(processors);
+		int threads = Math.max(1, parameters.getParameterIntValue("extractThreads", Runtime.getRuntime().availableProcessors()));
+		long timeout = TimeUnit.SECONDS.toMillis(parameters.getParameterIntValue("extractTimeoutSeconds", 60*10));
+		ExecutorService executor = Executors.newCachedThreadPool(getThreadFactory());
+		Semaphore slots = new Semaphore(threads); // one for each extraction that's running and hasn't been abandoned
+		List<CallableExtractor> workers = new ArrayList<CallableExtractor>();
 		List<Future<StoredDocumentSource>> list = new ArrayList<Future<StoredDocumentSource>>();
 		boolean verbose = parameters.getParameterBooleanValue("verbose");
-		for (StoredDocumentSource storedDocumentSource : storedDocumentSources) {
-			Callable<StoredDocumentSource> worker = new CallableExtractor(this, storedDocumentSource, verbose);
-			Future<StoredDocumentSource> submit = executor.submit(worker);
-			list.add(submit);	
-		}
 		try {
-			for (Future<StoredDocumentSource> future : list) {
-				extractedStoredDocumentSources.add(future.get());
+			for (int i=0, len=storedDocumentSources.size(); i<len; i++) {
+				// documents are started in order and the earlier ones have finished or been abandoned, so this one has been started
+				submit(executor, slots, storedDocumentSources, workers, list, verbose);
+				Future<StoredDocumentSource> future = list.get(i);
+				CallableExtractor worker = workers.get(i);
+				while (true) {
+					try {
+						extractedStoredDocumentSources.add(future.get(1, TimeUnit.SECONDS));
+						break;
+					}
+					catch (TimeoutException e) {
+						// the timeout counts from when the extraction started, not from when we started waiting
+						if (timeout>0 && worker.isTimedOut(timeout)) {
+							worker.abandon(); // this frees its slot for the next document
+							future.cancel(true);
+							skippedIds.add(worker.storedDocumentSource.getId());
+							break;
+						}
+						submit(executor, slots, storedDocumentSources, workers, list, verbose);
+					}
+				}
 			}
 		} catch (InterruptedException e) {
-			throw new IllegalStateException("An error occurred during multi-threaded document expansion.", e);
+			throw new IllegalStateException("An error occurred during multi-threaded document extraction.", e);
 		} catch (ExecutionException e) {
-			throw new IllegalStateException("An error occurred during multi-threaded document expansion.", e);
+			throw new IllegalStateException("An error occurred during multi-threaded document extraction.", e);
+		}
+		finally {
+			executor.shutdownNow();
 		}
-		executor.shutdown();
 	
 		return extractedStoredDocumentSources;
 
 	}
+	
+	/**
+	 * Start the extraction of the following documents for as long as there are free slots.
+	 */
+	private void submit(ExecutorService executor, Semaphore slots, List<StoredDocumentSource> storedDocumentSources,
+			List<CallableExtractor> workers, List<Future<StoredDocumentSource>> list, boolean verbose) {
+		while (workers.size()<storedDocumentSources.size() && slots.tryAcquire()) {
+			CallableExtractor worker = new CallableExtractor(this, storedDocumentSources.get(workers.size()), verbose, slots);
+			list.add(executor.submit(worker));
+			workers.add(worker);
+		}
+	}
+	
+	/**
+	 * Extract the specified document, unless it takes longer than <code>extractTimeoutSeconds</code> (10 minutes
+	 * by default, 0 for no limit), in which case the extraction is abandoned and the document is skipped. This is
+	 * for callers that extract documents one at a time on their own threads.
+	 * @param storedDocumentSource the document to extract
+	 * @return the extracted document or null if it has been skipped
+	 * @throws IOException
+	 */
+	public StoredDocumentSource getExtractedStoredDocumentSourceOrSkip(StoredDocumentSource storedDocumentSource) throws IOException {
+		long timeout = TimeUnit.SECONDS.toMillis(parameters.getParameterIntValue("extractTimeoutSeconds", 60*10));
+		if (timeout<=0) {
+			return getExtractedStoredDocumentSource(storedDocumentSource);
+		}
+		CallableExtractor worker = new CallableExtractor(this, storedDocumentSource, false, null);
+		Future<StoredDocumentSource> future = getTimedExecutor().submit(worker);
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			worker.abandon();
+			future.cancel(true);
+			skippedIds.add(storedDocumentSource.getId());
+			return null;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			throw new IOException("Interrupted while extracting: "+storedDocumentSource.getMetadata(), e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {throw (IOException) e.getCause();}
+			throw new IllegalStateException("An error occurred during document extraction.", e.getCause());
+		}
+	}
+	
+	/**
+	 * Get the IDs of the documents that have been left out because their extraction ran out of time.
+	 * @return the skipped document IDs
+	 */
+	public List<String> getSkippedIds() {
+		synchronized (skippedIds) {
+			return new ArrayList<String>(skippedIds);
+		}
+	}
+	
+	/**
+	 * Stop the workers used by {@link #getExtractedStoredDocumentSourceOrSkip(StoredDocumentSource)}, including
+	 * any abandoned extractions.
+	 */
+	public synchronized void close() {
+		if (timedExecutor!=null) {
+			timedExecutor.shutdownNow();
+			timedExecutor = null;
+		}
+	}
+	
+	private synchronized ExecutorService getTimedExecutor() {
+		if (timedExecutor==null) {
+			// an abandoned extraction keeps its thread busy, so the pool needs to be able to grow
+			timedExecutor = Executors.newCachedThreadPool(getThreadFactory());
+		}
+		return timedExecutor;
+	}
+	
+	private static ThreadFactory getThreadFactory() {
+		return new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "trombone-extract-"+count.incrementAndGet());
+				thread.setDaemon(true); // an abandoned extraction shouldn't prevent the JVM from exiting
+				return thread;
+			}
+		};
+	}
 
 	public StoredDocumentSource getExtractedStoredDocumentSource(
 			StoredDocumentSource storedDocumentSource) throws IOException {
@@ -126,11 +260,19 @@ public class StoredDocumentSourceExtractor {
 
 		InputSource extractedInputSource;
 		if (format.isXml()) {
-			if (xmlExtractor==null) {xmlExtractor = new XmlExtractor(storedDocumentSourceStorage, parameters);}
+			XmlExtractor xmlExtractor = xmlExtractors.get();
+			if (xmlExtractor==null) {
+				xmlExtractor = new XmlExtractor(storedDocumentSourceStorage, parameters);
+				xmlExtractors.set(xmlExtractor);
+			}
 			extractedInputSource =  xmlExtractor.getExtractableInputSource(storedDocumentSource);
 		}
 		else {
-			if (tikaExtractor==null) {tikaExtractor = new TikaExtractor(storedDocumentSourceStorage, parameters);}
+			TikaExtractor tikaExtractor = tikaExtractors.get();
+			if (tikaExtractor==null) {
+				tikaExtractor = new TikaExtractor(storedDocumentSourceStorage, parameters);
+				tikaExtractors.set(tikaExtractor);
+			}
 			extractedInputSource =  tikaExtractor.getExtractableInputSource(storedDocumentSource);
 		}
 		return storedDocumentSourceStorage.getStoredDocumentSource(extractedInputSource);
@@ -141,20 +283,58 @@ public class StoredDocumentSourceExtractor {
 		private StoredDocumentSourceExtractor extractor;
 		private StoredDocumentSource storedDocumentSource;
 		private boolean verbose;
+		private volatile long start = 0;
+		
+		/**
+		 * the slot to release when the extraction is done or abandoned (or null)
+		 */
+		private Semaphore slots;
+		private AtomicBoolean released = new AtomicBoolean();
+		private volatile boolean abandoned = false;
 
 		public CallableExtractor(
 				StoredDocumentSourceExtractor storedDocumentSourceExtractor,
 				StoredDocumentSource storedDocumentSource,
-				boolean verbose) {
+				boolean verbose, Semaphore slots) {
 			this.extractor = storedDocumentSourceExtractor;
 			this.storedDocumentSource = storedDocumentSource;
 			this.verbose = verbose;
+			this.slots = slots;
 		}
 
 		@Override
 		public StoredDocumentSource call() throws Exception {
 //			if (verbose) {System.out.println("extracting "+storedDocumentSource.getMetadata());}
-			return this.extractor.getExtractedStoredDocumentSource(storedDocumentSource);
+			start = System.currentTimeMillis();
+			try {
+				return this.extractor.getExtractedStoredDocumentSource(storedDocumentSource);
+			}
+			finally {
+				release();
+				if (abandoned) {
+					// the extractors of this thread may have been left in a bad state, so don't reuse them
+					tikaExtractors.remove();
+					xmlExtractors.remove();
+				}
+			}
+		}
+		
+		private boolean isTimedOut(long timeout) {
+			return start>0 && System.currentTimeMillis()-start>timeout;
+		}
+		
+		/**
+		 * Give up on this extraction, which frees its slot even if it keeps running.
+		 */
+		private void abandon() {
+			abandoned = true;
+			release();
+		}
+		
+		private void release() {
+			if (slots!=null && released.compareAndSet(false, true)) {
+				slots.release();
+			}
 		}
 		
 	}
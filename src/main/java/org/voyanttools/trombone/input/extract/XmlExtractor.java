@@ -48,7 +48,7 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Result;
-import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -57,8 +57,8 @@ import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
@@ -86,6 +86,12 @@ import net.sf.saxon.lib.NamespaceConstant;
 import net.sf.saxon.xpath.XPathFactoryImpl;
 
 /**
+ * An extractor for XML documents. The compiled XPath expressions and
+ * extractor templates are cached by their string so that they're only
+ * compiled once for all the documents extracted with this instance, which
+ * should only be used by one thread at a time (see
+ * {@link StoredDocumentSourceExtractor}).
+ * 
  * @author sgs
  *
  */
@@ -102,6 +108,16 @@ public class XmlExtractor implements Extractor, Serializable {
 	private Transformer transformer;
 	
 	private XPathFactory xpathFactory;
+	
+	/**
+	 * compiled XPath expressions, keyed by expression
+	 */
+	private transient Map<String, XPathExpression> xpathExpressions;
+	
+	/**
+	 * compiled extractor templates, keyed by template name
+	 */
+	private transient Map<String, Templates> templates;
 
 	public XmlExtractor(
 			StoredDocumentSourceStorage storedDocumentSourceStorage,
@@ -126,6 +142,56 @@ public class XmlExtractor implements Extractor, Serializable {
 				"net.sf.saxon.xpath.XPathFactoryImpl");
 	}
 
+	/**
+	 * Get the compiled XPath expression, compiling it the first time it's used.
+	 * @param xpathString the XPath expression
+	 * @return the compiled expression
+	 * @throws XPathExpressionException
+	 */
+	private XPathExpression getXPathExpression(String xpathString) throws XPathExpressionException {
+		if (xpathExpressions==null) {
+			xpathExpressions = new HashMap<String, XPathExpression>();
+		}
+		XPathExpression xpathExpression = xpathExpressions.get(xpathString);
+		if (xpathExpression==null) {
+			xpathExpression = xpathFactory.newXPath().compile(xpathString);
+			xpathExpressions.put(xpathString, xpathExpression);
+		}
+		return xpathExpression;
+	}
+	
+	/**
+	 * Get the compiled extractor template, compiling it the first time it's used.
+	 * @param xmlExtractorTemplate the name of the template
+	 * @return the compiled template
+	 * @throws IOException
+	 */
+	private Templates getTemplates(String xmlExtractorTemplate) throws IOException {
+		if (templates==null) {
+			templates = new HashMap<String, Templates>();
+		}
+		Templates compiledTemplates = templates.get(xmlExtractorTemplate);
+		if (compiledTemplates==null) {
+			URI templateUrl;
+			try {
+				templateUrl = this.getClass().getResource("/org/voyanttools/trombone/templates/"+xmlExtractorTemplate).toURI();
+			} catch (URISyntaxException e1) {
+				throw new IOException("Unable to find local template directory", e1);
+			}
+			File file = new File(templateUrl);
+			if (file.exists()==false) {
+				throw new IOException("Unable to find extractor template "+xmlExtractorTemplate);
+			}
+			try {
+				compiledTemplates = TransformerFactory.newInstance().newTemplates(new StreamSource(file));
+			} catch (TransformerConfigurationException e) {
+				throw new IOException("Unable to compile extractor template "+xmlExtractorTemplate, e);
+			}
+			templates.put(xmlExtractorTemplate, compiledTemplates);
+		}
+		return compiledTemplates;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.voyanttools.trombone.input.extract.Extractor#getInputSource(org.voyanttools.trombone.document.StoredDocumentSource)
 	 */
@@ -271,41 +337,15 @@ public class XmlExtractor implements Extractor, Serializable {
 			
 			if (parameters.containsKey("xmlExtractorTemplate")) {
 
-				Source source = null;
 				String xmlExtractorTemplate = parameters.getParameterValue("xmlExtractorTemplate");
-			
-				URI templateUrl;
+				DOMResult result = new DOMResult();
 				try {
-					templateUrl = this.getClass().getResource("/org/voyanttools/trombone/templates/"+xmlExtractorTemplate).toURI();
-				} catch (URISyntaxException e1) {
-					throw new IOException("Unable to find local template directory", e1);
-				}
-				File file = new File(templateUrl);
-				if (file.exists()) {
-					source = new StreamSource(file);
-				}
-				
-				if (source!=null) {
-					DOMResult result = new DOMResult();
-					try {
-						Transformer extractorTransformer = TransformerFactory.newInstance().newTransformer(source);
-						extractorTransformer.transform(new DOMSource(doc), result);
-					} catch (TransformerException e) {
-						throw new IOException("Unable to transform document during expansion "+metadata, e);
-					}
-					try {
-						doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-					} catch (ParserConfigurationException e) {
-						throw new IllegalStateException("Unable to create new XML document during templated extraction.", e);
-					}
-					doc = (Document) result.getNode();
-//					   DOMImplementationLS domImplementation = (DOMImplementationLS) doc.getImplementation();
-//					    LSSerializer lsSerializer = domImplementation.createLSSerializer();
-//					    System.out.println(lsSerializer.writeToString(doc).substring(0, 3000));
-				}
-				else {
-					throw new IOException("Unable to find extractor template "+xmlExtractorTemplate);
+					Transformer extractorTransformer = getTemplates(xmlExtractorTemplate).newTransformer();
+					extractorTransformer.transform(new DOMSource(doc), result);
+				} catch (TransformerException e) {
+					throw new IOException("Unable to transform document during expansion "+metadata, e);
 				}
+				doc = (Document) result.getNode();
 			}
 			
 			
@@ -358,9 +398,8 @@ public class XmlExtractor implements Extractor, Serializable {
 			String xmlContentXpath = parameters.getParameterValue("xmlContentXpath","/");
 			
 			NodeList nodeList;
-			XPath xpath = xpathFactory.newXPath();
 			try {
-				nodeList = (NodeList) xpath.evaluate(xmlContentXpath, doc.getDocumentElement(), XPathConstants.NODESET);
+				nodeList = (NodeList) getXPathExpression(xmlContentXpath).evaluate(doc.getDocumentElement(), XPathConstants.NODESET);
 			} catch (XPathExpressionException e) {
 				throw new IllegalArgumentException(
 						"A problem was encountered proccesing this XPath query: " + xmlContentXpath, e);
@@ -415,15 +454,15 @@ public class XmlExtractor implements Extractor, Serializable {
 			String[] strings = new String[0];
 			if (xpathString.isEmpty()==false) {
 				Set<String> values = new HashSet<String>();
-				XPath xpath = xpathFactory.newXPath();
 				NodeList nodeList;
 				try {
+					XPathExpression xpathExpression = getXPathExpression(xpathString);
 					if (xpathString.startsWith("string-join(") || xpathString.startsWith("concat(") || xpathString.startsWith("replace(")) {
-						 String s = (String) xpath.evaluate(xpathString, doc.getDocumentElement(), XPathConstants.STRING);
+						 String s = (String) xpathExpression.evaluate(doc.getDocumentElement(), XPathConstants.STRING);
 						 values.add(s);
 					}
 					else {
-						nodeList = (NodeList) xpath.evaluate(xpathString, doc.getDocumentElement(), XPathConstants.NODESET);
+						nodeList = (NodeList) xpathExpression.evaluate(doc.getDocumentElement(), XPathConstants.NODESET);
 						for (int i=0, len=nodeList.getLength(); i<len; i++) {
 							values.add(nodeList.item(i).getTextContent());
 						}
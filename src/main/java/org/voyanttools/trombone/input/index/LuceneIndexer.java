@@ -24,12 +24,21 @@ package org.voyanttools.trombone.input.index;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
@@ -42,24 +51,17 @@ import org.apache.lucene.document.SortedSetDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.DocsAndPositionsEnum;
 import org.apache.lucene.index.IndexOptions;
-import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.SlowCompositeReaderWrapper;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.voyanttools.trombone.input.source.InputSource;
 import org.voyanttools.trombone.input.source.InputStreamInputSource;
 import org.voyanttools.trombone.lucene.LuceneManager;
+import org.voyanttools.trombone.lucene.analysis.TokenStatisticsFilter;
 import org.voyanttools.trombone.model.DocumentMetadata;
 import org.voyanttools.trombone.model.StoredDocumentSource;
 import org.voyanttools.trombone.model.TokenType;
@@ -67,19 +69,42 @@ import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.storage.StoredDocumentSourceStorage;
 import org.voyanttools.trombone.util.FlexibleParameters;
 
+import edu.stanford.nlp.util.StringUtils;
+
 /**
  * @author sgs
  *
  */
 public class LuceneIndexer implements Indexer {
 	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
 	private Storage storage;
 	private FlexibleParameters parameters;
+	private int indexedDocumentsCount = 0;
+	private int skippedDocumentsCount = 0;
 
 	public LuceneIndexer(Storage storage, FlexibleParameters parameters) {
 		this.storage = storage;
 		this.parameters = parameters;
 	}
+	
+	/**
+	 * Get the number of documents added to the index by the last call to {@link #index(List)}.
+	 * @return the number of documents indexed
+	 */
+	public int getIndexedDocumentsCount() {
+		return indexedDocumentsCount;
+	}
+	
+	/**
+	 * Get the number of documents that didn't need to be added to the index by the last call to
+	 * {@link #index(List)} (because they were already indexed or repeated in the corpus).
+	 * @return the number of documents skipped
+	 */
+	public int getSkippedDocumentsCount() {
+		return skippedDocumentsCount;
+	}
 
 	public String index(List<StoredDocumentSource> storedDocumentSources) throws IOException {
 		
@@ -106,186 +131,283 @@ public class LuceneIndexer implements Indexer {
 		}
 		String corpusId = storage.storeStrings(ids);
 		
-		// determine if we need to modify the Lucene index
-		Collection<StoredDocumentSource> storedDocumentSourceForLucene = new ArrayList<StoredDocumentSource>();
-		if (storage.getLuceneManager().directoryExists()) {
-			LeafReader reader = SlowCompositeReaderWrapper.wrap(storage.getLuceneManager().getDirectoryReader());
-			Terms terms = reader.terms("id");
-			if (terms==null) {
-				storedDocumentSourceForLucene.addAll(storedDocumentSources);
+		// a batch of a larger build (see luceneBatch below) isn't a corpus, so it doesn't keep a checkpoint of its own
+		boolean batch = parameters.getParameterBooleanValue("luceneBatch");
+		
+		// documents committed by an earlier run for the same corpus that was interrupted don't need to be checked again
+		String checkpointId = batch ? null : getCheckpointId(corpusId);
+		Set<String> checkpointedIds = getCheckpointedIds(storage, corpusId);
+		
+		// determine if we need to modify the Lucene index, starting with the documents in corpus order without duplicates
+		indexedDocumentsCount = 0;
+		skippedDocumentsCount = 0;
+		Map<String, StoredDocumentSource> unindexedStoredDocumentSources = new LinkedHashMap<String, StoredDocumentSource>();
+		for (int i=0, len=storedDocumentSources.size(); i<len; i++) {
+			StoredDocumentSource storedDocumentSource = storedDocumentSources.get(i);
+			String id = storedDocumentSource.getId();
+			if (checkpointedIds.contains(id)) {
+				if (storedDocumentSource.getMetadata().getLastTokenPositionIndex(TokenType.lexical)==0) {
+					// the statistics were written when the document was indexed, before it was checkpointed
+					storedDocumentSources.set(i, new StoredDocumentSource(id, storage.getStoredDocumentSourceStorage().getStoredDocumentSourceMetadata(id)));
+				}
+				skippedDocumentsCount++;
+			}
+			else if (unindexedStoredDocumentSources.containsKey(id)) {
+				skippedDocumentsCount++;
 			}
 			else {
-				TermsEnum termsEnum = terms.iterator();		
-				for (StoredDocumentSource storedDocumentSource : storedDocumentSources) {
-					String id = storedDocumentSource.getId();
-					if (!termsEnum.seekExact(new BytesRef(id))) {
-						storedDocumentSourceForLucene.add(storedDocumentSource);
+				unindexedStoredDocumentSources.put(id, storedDocumentSource);
+			}
+		}
+		
+		// then remove those already in the index with a single pass of forward seeks over the sorted ids
+		if (unindexedStoredDocumentSources.isEmpty()==false && storage.getLuceneManager().directoryExists()) {
+			DirectoryReader directoryReader = storage.getLuceneManager().acquireDirectoryReader();
+			try {
+				LeafReader reader = SlowCompositeReaderWrapper.wrap(directoryReader);
+				Terms terms = reader.terms("id");
+				if (terms!=null) {
+					BytesRef[] sortedIds = new BytesRef[unindexedStoredDocumentSources.size()];
+					int i = 0;
+					for (String id : unindexedStoredDocumentSources.keySet()) {
+						sortedIds[i++] = new BytesRef(id);
+					}
+					Arrays.sort(sortedIds);
+					TermsEnum termsEnum = terms.iterator();
+					for (BytesRef id : sortedIds) {
+						if (termsEnum.seekExact(id)) {
+							unindexedStoredDocumentSources.remove(id.utf8ToString());
+							skippedDocumentsCount++;
+						}
 					}
 				}
 			}
+			finally {
+				storage.getLuceneManager().releaseDirectoryReader(directoryReader);
+			}
 		}
-		else {
-			storedDocumentSourceForLucene.addAll(storedDocumentSources);
-		}
+		Collection<StoredDocumentSource> storedDocumentSourceForLucene = unindexedStoredDocumentSources.values();
 		
 		if (storedDocumentSourceForLucene.isEmpty()==false) {
 			
 			// index documents (or at least add corpus to document if not already there), we need to get a new writer
-			IndexWriter indexWriter = storage.getLuceneManager().getIndexWriter();
-			DirectoryReader indexReader = DirectoryReader.open(indexWriter, true);
-			IndexSearcher indexSearcher = new IndexSearcher(indexReader);		
+			LuceneManager luceneManager = storage.getLuceneManager();
 			boolean verbose = parameters.getParameterBooleanValue("verbose");
 			int processors = Runtime.getRuntime().availableProcessors();
-			ExecutorService executor;
 			
-			// index
-			executor = Executors.newFixedThreadPool(processors);
-			for (StoredDocumentSource storedDocumentSource : storedDocumentSourceForLucene) {
-				Runnable worker = new StoredDocumentSourceIndexer(storage, indexWriter, indexSearcher, storedDocumentSource, corpusId, verbose);
-				executor.execute(worker);
-			}
-			executor.shutdown();
+			// the profile is applied to the writer shared by every build, so builds that index at the same time take turns
+			Lock indexingLock = luceneManager.getIndexingLock();
+			indexingLock.lock();
+			IndexWriter indexWriter;
+			IndexingCheckpoint checkpoint;
+			AtomicReference<Throwable> failure;
+			LuceneManager.IndexWriterProfile previousProfile = luceneManager.getIndexWriterProfile();
 			try {
-				if (!executor.awaitTermination(parameters.getParameterIntValue("luceneIndexingTimeout", 60*10), TimeUnit.SECONDS)) { // default 10 minutes
-					throw new InterruptedException("Lucene indexing has run out of time.");
-				}
-			} catch (InterruptedException e) {
-				throw new RuntimeException("Lucene indexing has been interrupted.", e);
-			}
-			finally {
+				indexWriter = luceneManager.getIndexWriter(LuceneManager.IndexWriterProfile.getForgivingly(parameters.getParameterValue("luceneIndexingProfile", previousProfile.name())));
 				
+				// index through a bounded queue: when it's full the caller indexes the next document itself, so we
+				// never hold more than a few documents in memory ahead of the workers
+				checkpoint = new IndexingCheckpoint(indexWriter, checkpointId,
+						parameters.getParameterIntValue("luceneCommitDocuments", 1000),
+						parameters.getParameterIntValue("luceneCommitMB", 64));
+				// workers record the first failure instead of throwing (which would escape from the caller when it
+				// runs a worker itself), and we never interrupt a worker since that can close the index writer
+				failure = new AtomicReference<Throwable>();
+				ThreadPoolExecutor indexingExecutor = new ThreadPoolExecutor(processors, processors, 0L, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(parameters.getParameterIntValue("luceneIndexingQueue", processors*4)),
+						new ThreadPoolExecutor.CallerRunsPolicy());
 				try {
-					indexWriter.commit();
+					try {
+						for (StoredDocumentSource storedDocumentSource : storedDocumentSourceForLucene) {
+							if (failure.get()!=null) {break;} // no point in going on
+							Runnable worker = new StoredDocumentSourceIndexer(storage, indexWriter, checkpoint, failure, storedDocumentSource, corpusId, verbose);
+							indexingExecutor.execute(worker);
+						}
+					}
+					finally {
+						indexingExecutor.shutdown(); // queued documents are still indexed and then the threads end
+					}
+					// the timeout applies to a lack of progress rather than to the whole batch
+					long timeout = TimeUnit.SECONDS.toMillis(parameters.getParameterIntValue("luceneIndexingTimeout", 60*10)); // default 10 minutes
+					long completed = indexingExecutor.getCompletedTaskCount();
+					long lastProgress = System.currentTimeMillis();
+					while (!indexingExecutor.awaitTermination(1, TimeUnit.SECONDS)) {
+						if (failure.get()!=null) {
+							indexingExecutor.getQueue().clear(); // let the running workers finish but don't start others
+						}
+						if (indexingExecutor.getCompletedTaskCount()>completed) {
+							completed = indexingExecutor.getCompletedTaskCount();
+							lastProgress = System.currentTimeMillis();
+						}
+						else if (System.currentTimeMillis()-lastProgress>timeout) {
+							indexingExecutor.getQueue().clear();
+							// the running workers are still using the writer (and its profile), so let them finish before we let go of it
+							if (!indexingExecutor.awaitTermination(parameters.getParameterIntValue("luceneIndexingStopTimeout", 60), TimeUnit.SECONDS)) {
+								throw new IOException("Lucene indexing has run out of time and some documents are still being indexed.");
+							}
+							throw new IOException("Lucene indexing has run out of time.");
+						}
+					}
+				} catch (InterruptedException e) {
+					indexingExecutor.getQueue().clear();
+					throw new RuntimeException("Lucene indexing has been interrupted.", e);
 				}
-				catch (IOException e) {
-					indexWriter.close(); // this may also throw an exception, but docs say to close on commit error
-					throw e;
+				finally {
+				
+					try {
+						checkpoint.commit(); // whatever was indexed is kept, so a later call can resume from here
+					}
+					catch (IOException e) {
+						indexWriter.close(); // this may also throw an exception, but docs say to close on commit error
+						throw e;
+					}
 				}
-			}
 			
-			// this should almost never be called
-			if (parameters.containsKey("forceMerge")) {
-				indexWriter.forceMerge(parameters.getParameterIntValue("forceMerge"));
-			}
+				// merging the whole index is expensive, so this is only done when asked for after a bulk build
+				if (parameters.getParameterBooleanValue("luceneOptimize")) {
+					luceneManager.optimize(parameters.getParameterIntValue("luceneOptimizeMaxSegments", 1));
+				}
 			
-			indexReader = DirectoryReader.open(indexWriter, true);
-			storage.getLuceneManager().setDirectoryReader(indexReader); // make sure it's available afterwards				
-
+			}
+			finally {
+				luceneManager.setIndexWriterProfile(previousProfile); // the profile only applies to this build
+				indexingLock.unlock();
+			}
 			
-			// now determine which documents need to be analyzed
-			Collection<StoredDocumentSource> storedDocumentSourceForAnalysis = new ArrayList<StoredDocumentSource>();
-			for (StoredDocumentSource storedDocumentSource : storedDocumentSourceForLucene) {
-				if (storedDocumentSource.getMetadata().getLastTokenPositionIndex(TokenType.lexical)==0) { // don't re-analyze
-					storedDocumentSourceForAnalysis.add(storedDocumentSource);
-				}
+			// when indexing in batches the caller opens the reader once at the end, since each new reader
+			// invalidates the cached corpus mappers
+			if (batch==false) {
+				DirectoryReader indexReader = DirectoryReader.open(indexWriter, true);
+				luceneManager.setDirectoryReader(indexReader); // make sure it's available afterwards
 			}
 			
-			if (storedDocumentSourceForAnalysis.isEmpty()==false) {
-				indexSearcher = new IndexSearcher(indexReader);
-				executor = Executors.newFixedThreadPool(processors);
-				for (StoredDocumentSource storedDocumentSource : storedDocumentSourceForAnalysis) {
-					if (storedDocumentSource.getMetadata().getLastTokenPositionIndex(TokenType.lexical)==0) { // don't re-analyze
-						Runnable worker = new IndexedDocumentAnalyzer(storage, indexSearcher, storedDocumentSource, corpusId, verbose);
-						executor.execute(worker);
-					}
-				}
-				executor.shutdown();
-				try {
-					if (!executor.awaitTermination(parameters.getParameterIntValue("luceneAnalysisTimeout", 60*10), TimeUnit.SECONDS)) { // default 10 minutes
-						throw new InterruptedException("Lucene analysis has run out of time.");
-					}
-				} catch (InterruptedException e) {
-					throw new RuntimeException("Lucene document analysis run out of time", e);
+			indexedDocumentsCount = checkpoint.getIndexedCount();
+			
+			if (failure.get()!=null) {
+				if (failure.get() instanceof IOException) {
+					throw (IOException) failure.get();
 				}
+				throw new RuntimeException("Unable to index all of the documents.", failure.get());
 			}
 			
-			
+		}
+		
+		// the whole corpus is in the index, so the checkpoint is no longer needed (and shouldn't be trusted later,
+		// in case the index is rebuilt)
+		if (checkpointId!=null && getCheckpointParts(storage, checkpointId)>0) {
+			storeCheckpointParts(storage, checkpointId, 0);
 		}
 		
 		return corpusId;
 		
 	}
 	
-	private class IndexedDocumentAnalyzer implements Runnable {
-		
-		private Storage storage;
-		private StoredDocumentSource storedDocumentSource;
-		private IndexReader indexReader;
-		private IndexSearcher indexSearcher;
-		private String corpusId;
-		private String id;
-		private boolean verbose;
-		public IndexedDocumentAnalyzer(Storage storage, IndexSearcher indexSearcher,
-				StoredDocumentSource storedDocumentSource, String corpusId, boolean verbose) throws IOException {
-			this.storage = storage;
-			this.indexReader = indexSearcher.getIndexReader();
-			this.indexSearcher = indexSearcher;
-			this.storedDocumentSource = storedDocumentSource;
-			this.corpusId = corpusId;
-			this.id = storedDocumentSource.getId();
-			this.verbose = verbose;
+	private static String getCheckpointId(String corpusId) {
+		return corpusId+"-indexed";
+	}
+	
+	private static String getCheckpointPartId(String checkpointId, int part) {
+		return checkpointId+"-"+part;
+	}
+	
+	/**
+	 * Get the number of parts of the checkpoint written by an unfinished build, each with the IDs of the documents
+	 * of one commit.
+	 * @param storage
+	 * @param checkpointId
+	 * @return the number of parts (0 if there's no unfinished build)
+	 * @throws IOException
+	 */
+	private static int getCheckpointParts(Storage storage, String checkpointId) throws IOException {
+		if (storage.isStored(checkpointId)==false) {return 0;}
+		ByteBuffer buffer = storage.retrieveBuffer(checkpointId);
+		if (buffer==null) {return 0;}
+		try {
+			return Integer.parseInt(UTF8.decode(buffer.duplicate()).toString().trim());
 		}
-
-		@Override
-		public void run() {
-
-			
-			if (verbose) {
-//				System.out.println("analyzing indexed document "+storedDocumentSource.getMetadata());
-			}
-			
-			Query query = new TermQuery(new Term("id", id)); 
-			TopDocs topDocs;
-			
-			try {
-				topDocs = indexSearcher.search(query, 1); // there may be multiple documents in the index but they should have the same text
-				int docId = topDocs.scoreDocs[0].doc;
-				Terms terms = indexReader.getTermVector(docId, "lexical");
-				int totalTokens = 0;
-				int totalTypes =  0;
-				int lastOffset = 0;
-				int lastPosition = 0;
-				DescriptiveStatistics stats = new DescriptiveStatistics();
-				if (terms!=null) {
-					TermsEnum termsEnum = terms.iterator();
-					DocsAndPositionsEnum docsAndPositionsEnum = null;
-					while (true) {
-						BytesRef term = termsEnum.next();
-						if (term!=null) {
-							totalTypes++;
-							docsAndPositionsEnum = termsEnum.docsAndPositions(new Bits.MatchAllBits(indexReader.maxDoc()), docsAndPositionsEnum, DocsAndPositionsEnum.FLAG_OFFSETS);
-							while (true) {
-								int doc = docsAndPositionsEnum.nextDoc();
-								if (doc!=DocsAndPositionsEnum.NO_MORE_DOCS) {
-									int freq = docsAndPositionsEnum.freq();
-									stats.addValue(freq);
-									totalTokens+=freq;
-									for (int i=0; i<freq; i++) {
-										int pos = docsAndPositionsEnum.nextPosition();
-										if (pos>lastPosition) {lastPosition=pos;}
-										int offset = docsAndPositionsEnum.startOffset();
-										if (offset>lastOffset) {lastOffset=offset;}
-									}
-								}
-								else {break;}
-							}
-						}
-						else {break;}
+		catch (NumberFormatException e) {
+			return 0; // written in an older format, so the documents are checked against the index instead
+		}
+	}
+	
+	private static void storeCheckpointParts(Storage storage, String checkpointId, int parts) throws IOException {
+		storage.storeBuffer(ByteBuffer.wrap(String.valueOf(parts).getBytes(UTF8)), checkpointId);
+	}
+	
+	/**
+	 * Get the IDs of the documents of this corpus that have already been committed to the index by a build that
+	 * hasn't finished, if any.
+	 * @param storage
+	 * @param corpusId
+	 * @return the set of committed document IDs (empty if indexing hasn't started or has finished)
+	 * @throws IOException
+	 */
+	static Set<String> getCheckpointedIds(Storage storage, String corpusId) throws IOException {
+		Set<String> ids = new HashSet<String>();
+		String checkpointId = getCheckpointId(corpusId);
+		for (int part=0, parts=getCheckpointParts(storage, checkpointId); part<parts; part++) {
+			ByteBuffer buffer = storage.retrieveBuffer(getCheckpointPartId(checkpointId, part));
+			if (buffer!=null) {
+				String string = UTF8.decode(buffer.duplicate()).toString();
+				if (string.isEmpty()==false) {
+					for (String id : string.split("\n")) {
+						ids.add(id);
 					}
 				}
-				DocumentMetadata metadata = storedDocumentSource.getMetadata();
-				metadata.setTypesCount(TokenType.lexical, totalTypes);
-				metadata.setTokensCount(TokenType.lexical, totalTokens);
-				metadata.setTypesCountMean(TokenType.lexical, (float) stats.getMean());
-				metadata.setTypesCountStdDev(TokenType.lexical, (float) stats.getStandardDeviation());
-				metadata.setLastTokenPositionIndex(TokenType.lexical, lastPosition);
-				metadata.setLastTokenOffsetIndex(TokenType.lexical, lastOffset);
-				storage.getStoredDocumentSourceStorage().updateStoredDocumentSourceMetadata(id, metadata);
-			} catch (IOException e) {
-				throw new RuntimeException("Unable to query document during index analysis.", e);
 			}
 		}
+		return ids;
+	}
+	
+	/**
+	 * Commits the index every so many documents or megabytes of text and records the IDs of the committed
+	 * documents so that an interrupted run can resume without re-indexing them. The IDs of each commit are
+	 * stored as a new part of the checkpoint, so earlier ones aren't written again.
+	 */
+	private class IndexingCheckpoint {
+		
+		private IndexWriter indexWriter;
+		private String checkpointId;
+		private int parts;
+		private List<String> pendingIds = new ArrayList<String>();
+		private long pendingChars = 0;
+		private int commitDocuments;
+		private long commitChars;
+		private int indexedCount = 0;
+		
+		private IndexingCheckpoint(IndexWriter indexWriter, String checkpointId, int commitDocuments, int commitMB) throws IOException {
+			this.indexWriter = indexWriter;
+			this.checkpointId = checkpointId;
+			this.parts = checkpointId==null ? 0 : getCheckpointParts(storage, checkpointId);
+			this.commitDocuments = commitDocuments;
+			this.commitChars = (long) commitMB * 1024 * 1024;
+		}
 		
+		private synchronized void indexed(String id, int length) throws IOException {
+			pendingIds.add(id);
+			pendingChars += length;
+			indexedCount++;
+			if (pendingIds.size()>=commitDocuments || pendingChars>=commitChars) {
+				commit();
+			}
+		}
+		
+		private synchronized int getIndexedCount() {
+			return indexedCount;
+		}
+		
+		private synchronized void commit() throws IOException {
+			indexWriter.commit();
+			if (pendingIds.isEmpty()==false) {
+				// stored only after the commit so that every listed document is really in the index
+				if (checkpointId!=null) {
+					storage.storeBuffer(ByteBuffer.wrap(StringUtils.join(pendingIds, "\n").getBytes(UTF8)), getCheckpointPartId(checkpointId, parts));
+					storeCheckpointParts(storage, checkpointId, ++parts);
+				}
+				pendingIds.clear();
+				pendingChars = 0;
+			}
+		}
 	}
 	
 	private class StoredDocumentSourceIndexer implements Runnable {
@@ -293,17 +415,19 @@ public class LuceneIndexer implements Indexer {
 		private Storage storage;
 		private StoredDocumentSource storedDocumentSource;
 		private IndexWriter indexWriter;
-		private IndexSearcher indexSearcher;
+		private IndexingCheckpoint checkpoint;
+		private AtomicReference<Throwable> failure;
 		private LuceneManager luceneManager;
 		private String corpusId;
 		private String id;
 //		private String string = null;
 		private boolean verbose;
-		public StoredDocumentSourceIndexer(Storage storage, IndexWriter indexWriter, IndexSearcher indexSearcher,
-				StoredDocumentSource storedDocumentSource, String corpusId, boolean verbose) throws IOException {
+		public StoredDocumentSourceIndexer(Storage storage, IndexWriter indexWriter, IndexingCheckpoint checkpoint,
+				AtomicReference<Throwable> failure, StoredDocumentSource storedDocumentSource, String corpusId, boolean verbose) throws IOException {
 			this.storage = storage;
 			this.indexWriter = indexWriter;
-			this.indexSearcher = indexSearcher;
+			this.checkpoint = checkpoint;
+			this.failure = failure;
 			this.storedDocumentSource = storedDocumentSource;
 			this.luceneManager = storage.getLuceneManager();
 			this.corpusId = corpusId;
@@ -337,12 +461,6 @@ public class LuceneIndexer implements Indexer {
 			
 			try {
 				
-				TopDocs topDocs = indexSearcher.search(new TermQuery(new Term("id", id)), 1);
-				if (topDocs.totalHits>0) { // already indexed
-					return;
-				}
-					
-
 				// this is used by lexical and the metadata (expecting term vectors to be present)
 				FieldType ft = new FieldType(TextField.TYPE_NOT_STORED);
 				ft.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
@@ -363,7 +481,10 @@ public class LuceneIndexer implements Indexer {
 				if (parameters.getParameterValue("tokenization", "").isEmpty()==false) {
 					p.setParameter("tokenization", parameters.getParameterValue("tokenization"));
 				}
-				document.add(new Field("lexical", getString() + "<!-- "+ p.getAsQueryString()+" -->", ft));
+				// the statistics of the document are collected while it's tokenized for the index
+				String string = getString();
+				TokenStatisticsFilter tokenStatisticsFilter = new TokenStatisticsFilter(luceneManager.getAnalyzer().tokenStream("lexical", string + "<!-- "+ p.getAsQueryString()+" -->"));
+				document.add(new Field("lexical", tokenStatisticsFilter, ft));
 //				System.err.println(id+": "+getString());
 				
 				FlexibleParameters params = storedDocumentSource.getMetadata().getFlexibleParameters();
@@ -400,9 +521,25 @@ public class LuceneIndexer implements Indexer {
 				
 				indexWriter.addDocument(document);
 				
+				DocumentMetadata metadata = storedDocumentSource.getMetadata();
+				if (metadata.getLastTokenPositionIndex(TokenType.lexical)==0) { // don't rewrite metadata that's already been analyzed
+					DescriptiveStatistics stats = tokenStatisticsFilter.getTypesCountsStatistics();
+					metadata.setTypesCount(TokenType.lexical, tokenStatisticsFilter.getTypesCount());
+					metadata.setTokensCount(TokenType.lexical, tokenStatisticsFilter.getTokensCount());
+					metadata.setTypesCountMean(TokenType.lexical, (float) stats.getMean());
+					metadata.setTypesCountStdDev(TokenType.lexical, (float) stats.getStandardDeviation());
+					metadata.setLastTokenPositionIndex(TokenType.lexical, tokenStatisticsFilter.getLastPosition());
+					metadata.setLastTokenOffsetIndex(TokenType.lexical, tokenStatisticsFilter.getLastOffset());
+					storage.getStoredDocumentSourceStorage().updateStoredDocumentSourceMetadata(id, metadata);
+				}
+				checkpoint.indexed(id, string.length());
+				
 			}
 			catch (IOException e) {
-				throw new RuntimeException("Unable to index stored document: "+storedDocumentSource, e);
+				failure.compareAndSet(null, new IOException("Unable to index stored document: "+storedDocumentSource, e));
+			}
+			catch (RuntimeException e) {
+				failure.compareAndSet(null, new RuntimeException("Unable to index stored document: "+storedDocumentSource, e));
 			}
 		}
 		
@@ -22,15 +22,25 @@
 package org.voyanttools.trombone.lucene;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.SlowCompositeReaderWrapper;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
@@ -51,6 +61,10 @@ import org.apache.lucene.util.SparseFixedBitSet;
 import org.voyanttools.trombone.lucene.search.DocumentFilter;
 import org.voyanttools.trombone.lucene.search.DocumentFilterSpans;
 import org.voyanttools.trombone.model.Corpus;
+import org.voyanttools.trombone.model.CorpusTermMinimalsDB;
+import org.voyanttools.trombone.model.Keywords;
+import org.voyanttools.trombone.model.TermDocumentMatrix;
+import org.voyanttools.trombone.storage.CorpusStorage;
 import org.voyanttools.trombone.storage.Storage;
 
 /**
@@ -60,22 +74,189 @@ import org.voyanttools.trombone.storage.Storage;
 public class CorpusMapper {
 	
 	Storage storage;
+	DirectoryReader directoryReader;
 	LeafReader reader;
 	IndexSearcher searcher;
+	IndexSearcher segmentsSearcher;
 	Corpus corpus;
-	private List<Integer> luceneIds = null;
+	
+	/**
+	 * whether the reference on the reader has been released by {@link #close()}
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * the Lucene ids of the documents in this corpus, in ascending order
+	 */
+	private volatile int[] luceneIds = null;
 	private BitSet bitSet = null;
-	private Map<String, Integer> documentIdToLuceneIdMap = null;
-	private Map<Integer, String> luceneIdToDocumentIdMap = null;
+	
+	/**
+	 * bitsets of corpus documents for each segment (indexed by leaf ord), using segment-relative ids
+	 */
+	private volatile BitSet[] leafBitSets = null;
+	
+	/**
+	 * a dense buffer indexed by Lucene id (up to maxDoc) that gives the position of the document in the corpus (or -1),
+	 * possibly memory-mapped from the snapshot kept by the {@link CorpusStorage}
+	 */
+	private IntBuffer luceneIdToDocumentPositionMap = null;
+	
+	/**
+	 * a dense buffer indexed by corpus document position that gives the Lucene id of the document (or -1),
+	 * possibly memory-mapped from the snapshot kept by the {@link CorpusStorage}
+	 */
+	private IntBuffer documentPositionToLuceneIdMap = null;
+	
+	/**
+	 * stopwords loaded for this corpus, keyed by stoplist (so that the compiled forms of the {@link Keywords} are reused)
+	 */
+	private final ConcurrentMap<String, Keywords> stopwordsMap = new ConcurrentHashMap<String, Keywords>();
+	
+	/**
+	 * term statistics of this corpus, keyed by field (so that the stored statistics are only mapped once)
+	 */
+	private final ConcurrentMap<String, CorpusTermMinimalsDB> corpusTermMinimalsDBMap = new ConcurrentHashMap<String, CorpusTermMinimalsDB>();
+	
+	/**
+	 * term-document matrices of this corpus, keyed by field (so that the stored matrices are only mapped once)
+	 */
+	private final ConcurrentMap<String, TermDocumentMatrix> termDocumentMatrixMap = new ConcurrentHashMap<String, TermDocumentMatrix>();
 
 	public CorpusMapper(Storage storage, Corpus corpus) throws IOException {
+		this(storage, corpus, null);
+	}
+	
+	/**
+	 * Create a new instance that is bound to the specified {@link DirectoryReader} (or to the
+	 * current reader of the {@link LuceneManager} when it's first needed, if null). The mapper takes
+	 * over a reference on the reader, which is released by {@link #close()}.
+	 * @param storage the storage to use
+	 * @param corpus the corpus to map
+	 * @param directoryReader the reader to use or null
+	 * @throws IOException
+	 */
+	public CorpusMapper(Storage storage, Corpus corpus, DirectoryReader directoryReader) throws IOException {
 		this.storage = storage;
 		this.corpus = corpus;
+		this.directoryReader = directoryReader;
+	}
+	
+	/**
+	 * Get a {@link CorpusMapper} from the shared cache of the {@link LuceneManager}, building it if needed.
+	 * The returned instance may be used concurrently by several tools.
+	 * @param storage the storage to use
+	 * @param corpus the corpus to map
+	 * @return a (possibly shared) {@link CorpusMapper}
+	 * @throws IOException
+	 */
+	public static CorpusMapper getInstance(Storage storage, Corpus corpus) throws IOException {
+		return storage.getLuceneManager().getCorpusMapperCache().get(storage, corpus);
+	}
+	
+	/**
+	 * Get a {@link CorpusMapper} from the shared cache like {@link #getInstance(Storage, Corpus)}, with a reference on
+	 * its reader so that it can't be closed (even if the index is refreshed) until {@link #release()} is called.
+	 * @param storage the storage to use
+	 * @param corpus the corpus to map
+	 * @return a (possibly shared) {@link CorpusMapper}
+	 * @throws IOException
+	 */
+	public static CorpusMapper acquireInstance(Storage storage, Corpus corpus) throws IOException {
+		return storage.getLuceneManager().getCorpusMapperCache().acquire(storage, corpus);
+	}
+	
+	/**
+	 * Add a reference on the reader of this mapper, to be released with {@link #release()}.
+	 * @throws IOException
+	 */
+	public void acquire() throws IOException {
+		getDirectoryReader().incRef();
+	}
+	
+	/**
+	 * Release a reference added by {@link #acquire()} or {@link #acquireInstance(Storage, Corpus)}.
+	 * @throws IOException
+	 */
+	public void release() throws IOException {
+		getDirectoryReader().decRef();
+	}
+	
+	/**
+	 * Release the reference this mapper holds on its reader (the reader is closed once every other reference has
+	 * been released too). The mapper shouldn't be used afterwards.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (directoryReader!=null && closed==false) {
+			closed = true;
+			directoryReader.decRef();
+		}
 	}
 	
 	public Storage getStorage() {
 		return storage;
 	}
+	
+	/**
+	 * Get the stopwords previously loaded for this corpus with the specified stoplist.
+	 * @param stopList the stoplist reference(s)
+	 * @return the stopwords or null if they haven't been loaded for this corpus
+	 */
+	public Keywords getStopwords(String stopList) {
+		return stopwordsMap.get(stopList);
+	}
+	
+	/**
+	 * Keep the stopwords loaded for this corpus with the specified stoplist, unless another thread already did.
+	 * @param stopList the stoplist reference(s)
+	 * @param stopwords the loaded stopwords
+	 * @return the stopwords to use
+	 */
+	public Keywords putStopwords(String stopList, Keywords stopwords) {
+		Keywords existing = stopwordsMap.putIfAbsent(stopList, stopwords);
+		return existing==null ? stopwords : existing;
+	}
+	
+	/**
+	 * Get the term statistics previously loaded for a field of this corpus.
+	 * @param field the field
+	 * @return the statistics or null if they haven't been loaded for this corpus
+	 */
+	public CorpusTermMinimalsDB getCorpusTermMinimalsDB(String field) {
+		return corpusTermMinimalsDBMap.get(field);
+	}
+	
+	/**
+	 * Keep the term statistics loaded for a field of this corpus, unless another thread already did.
+	 * @param field the field
+	 * @param corpusTermMinimalsDB the loaded statistics
+	 * @return the statistics to use
+	 */
+	public CorpusTermMinimalsDB putCorpusTermMinimalsDB(String field, CorpusTermMinimalsDB corpusTermMinimalsDB) {
+		CorpusTermMinimalsDB existing = corpusTermMinimalsDBMap.putIfAbsent(field, corpusTermMinimalsDB);
+		return existing==null ? corpusTermMinimalsDB : existing;
+	}
+	
+	/**
+	 * Get the term-document matrix previously loaded for a field of this corpus.
+	 * @param field the field
+	 * @return the matrix or null if it hasn't been loaded for this corpus
+	 */
+	public TermDocumentMatrix getTermDocumentMatrix(String field) {
+		return termDocumentMatrixMap.get(field);
+	}
+	
+	/**
+	 * Keep the term-document matrix loaded for a field of this corpus, unless another thread already did.
+	 * @param field the field
+	 * @param termDocumentMatrix the loaded matrix
+	 * @return the matrix to use
+	 */
+	public TermDocumentMatrix putTermDocumentMatrix(String field, TermDocumentMatrix termDocumentMatrix) {
+		TermDocumentMatrix existing = termDocumentMatrixMap.putIfAbsent(field, termDocumentMatrix);
+		return existing==null ? termDocumentMatrix : existing;
+	}
 
 	public Corpus getCorpus() {
 		return corpus;
@@ -86,7 +267,18 @@ public class CorpusMapper {
 		return corpus.getDocumentIds();
 	}
 	
-	public synchronized List<Integer> getLuceneIds() throws IOException {
+	/**
+	 * Get the Lucene ids of the documents in this corpus, sorted in ascending order (which
+	 * is the most efficient order for reading term vectors).
+	 * @return a copy of the Lucene ids of the documents in this corpus (the mapper may be shared)
+	 * @throws IOException
+	 */
+	public int[] getLuceneIds() throws IOException {
+		int[] ids = getSharedLuceneIds();
+		return Arrays.copyOf(ids, ids.length);
+	}
+	
+	private synchronized int[] getSharedLuceneIds() throws IOException {
 		if (luceneIds==null) {
 			build();
 		}
@@ -94,83 +286,178 @@ public class CorpusMapper {
 	}
 	
 	public BitSet getBitSet() throws IOException {
-		if (bitSet==null) {build();}
+		if (luceneIds==null) {build();}
 		return bitSet;
 	}
 	
-	public LeafReader getLeafReader() throws IOException {
+	public synchronized DirectoryReader getDirectoryReader() throws IOException {
+		if (directoryReader==null) {
+			directoryReader = storage.getLuceneManager().acquireDirectoryReader();
+		}
+		return directoryReader;
+	}
+	
+	public synchronized LeafReader getLeafReader() throws IOException {
 		if (reader==null) {
-			reader = SlowCompositeReaderWrapper.wrap(storage.getLuceneManager().getDirectoryReader());
+			reader = SlowCompositeReaderWrapper.wrap(getDirectoryReader());
 		}
 		return reader;
 	}
 	
-	public IndexSearcher getSearcher() throws IOException {
+	public synchronized IndexSearcher getSearcher() throws IOException {
 		if (searcher==null) {
 			searcher = new IndexSearcher(getLeafReader());
 		}
 		return searcher;
 	}
+	
+	/**
+	 * Get a searcher over the segments of the {@link DirectoryReader} (rather than the slow composite view).
+	 * Document ids seen by collectors are segment-relative and need to be offset by {@link LeafReaderContext#docBase}
+	 * to correspond to the ids used elsewhere in this class.
+	 * @return a segment-aware {@link IndexSearcher}
+	 * @throws IOException
+	 */
+	public synchronized IndexSearcher getSegmentsSearcher() throws IOException {
+		if (segmentsSearcher==null) {
+			segmentsSearcher = new IndexSearcher(getDirectoryReader(), storage.getLuceneManager().getSearchExecutor());
+		}
+		return segmentsSearcher;
+	}
+	
+	/**
+	 * Get the segments of the underlying {@link DirectoryReader}; a Lucene id used in this class
+	 * corresponds to {@link LeafReaderContext#docBase} plus the segment-relative id.
+	 * @return the list of segment contexts
+	 * @throws IOException
+	 */
+	public List<LeafReaderContext> getLeafReaderContexts() throws IOException {
+		return getDirectoryReader().leaves();
+	}
 
+	/**
+	 * Get the position in the corpus of the document with the specified Lucene id.
+	 * @param doc the Lucene document id
+	 * @return the position of the document in the corpus, or -1 if it's not part of this corpus
+	 * @throws IOException
+	 */
 	public int getDocumentPositionFromLuceneId(int doc) throws IOException {
-		String id = getDocumentIdFromLuceneId(doc);
-		return corpus.getDocumentPosition(id);
+		if (luceneIdToDocumentPositionMap==null) {
+			build();
+		}
+		return doc < luceneIdToDocumentPositionMap.limit() ? luceneIdToDocumentPositionMap.get(doc) : -1;
 	}
 
 
+	/**
+	 * Get the Lucene id of the specified document.
+	 * @param id the document ID
+	 * @return the Lucene id or -1 if the document isn't in this corpus or isn't indexed
+	 * @throws IOException
+	 */
 	public int getLuceneIdFromDocumentId(String id) throws IOException {
-		if (documentIdToLuceneIdMap==null) {
-			build();
-		}
-		return documentIdToLuceneIdMap.get(id);
+		int position = corpus.getDocumentPosition(id);
+		return position>-1 ? getLuceneIdFromDocumentPosition(position) : -1;
 	}
 
 	public String getDocumentIdFromLuceneId(int doc) throws IOException {
-		if (luceneIdToDocumentIdMap==null) {
-			build();
-		}
-		return luceneIdToDocumentIdMap.get(doc);
+		int position = getDocumentPositionFromLuceneId(doc);
+		return position > -1 ? getDocumentIdFromDocumentPosition(position) : null;
 	}
 	
-	public int getLuceneIdFromDocumentPosition(int doc) throws IOException {
-		return getLuceneIdFromDocumentId(getDocumentIdFromDocumentPosition(doc));
+	public int getLuceneIdFromDocumentPosition(int documentPosition) throws IOException {
+		if (documentPositionToLuceneIdMap==null) {
+			build();
+		}
+		return documentPositionToLuceneIdMap.get(documentPosition);
 	}
 
-	private void build() throws IOException {
-		luceneIdToDocumentIdMap =  new HashMap<Integer, String>();
-		documentIdToLuceneIdMap = new HashMap<String, Integer>();
-		luceneIds = new ArrayList<Integer>();
-		buildFromTermsEnum();
+	/**
+	 * Build the id maps, reusing the snapshot from the {@link CorpusStorage} when one exists for the
+	 * current reader version (the index generation changes whenever documents are added or deleted).
+	 * @throws IOException
+	 */
+	private synchronized void build() throws IOException {
+		if (luceneIds!=null) {return;} // already built by another thread
+		CorpusStorage corpusStorage = storage.getCorpusStorage();
+		String id = corpus.getId();
+		DirectoryReader directoryReader = getDirectoryReader();
+		boolean isStored = corpusStorage.corpusExists(id);
+		if (isStored) {
+			IntBuffer[] maps = corpusStorage.getLuceneIdMaps(id, directoryReader.getVersion());
+			if (maps!=null && maps[0].limit()==directoryReader.maxDoc() && maps[1].limit()==getCorpusDocumentIds().size()) {
+				setMaps(maps[0], maps[1]);
+				return;
+			}
+		}
+		int[][] maps = buildFromTermsEnum();
+		if (isStored) {
+			corpusStorage.storeLuceneIdMaps(id, directoryReader.getVersion(), maps[0], maps[1]);
+		}
+		setMaps(IntBuffer.wrap(maps[0]), IntBuffer.wrap(maps[1]));
 	}
 	
 	/**
 	 * This should not be called, except from the private build() method.
+	 * @return the Lucene id to document position map and the document position to Lucene id map
 	 * @throws IOException
 	 */
-	private void buildFromTermsEnum() throws IOException {
-		Terms terms = getLeafReader().terms("id");
-		TermsEnum termsEnum = terms.iterator();
-		BytesRef bytesRef = termsEnum.next();
-		DocsEnum docsEnum = null;
-		int doc;
-		String id;
-		Set<String> ids = new HashSet<String>(getCorpusDocumentIds());
-		bitSet = new SparseFixedBitSet(getLeafReader().numDocs());
-		Bits liveBits = getLeafReader().getLiveDocs();
-		while (bytesRef!=null) {
-			docsEnum = termsEnum.docs(liveBits, docsEnum, DocsEnum.FLAG_NONE);
-			doc = docsEnum.nextDoc();
-			if (doc!=DocsEnum.NO_MORE_DOCS) {
-				id = bytesRef.utf8ToString();
-				if (ids.contains(id)) {
-					bitSet.set(doc);
-					luceneIds.add(doc);
-					documentIdToLuceneIdMap.put(id, doc);
-					luceneIdToDocumentIdMap.put(doc, id);
+	private int[][] buildFromTermsEnum() throws IOException {
+		LeafReader reader = getLeafReader();
+		List<String> ids = getCorpusDocumentIds();
+		Map<String, Integer> positionsMap = new HashMap<String, Integer>(ids.size()*2);
+		for (int i=0, len=ids.size(); i<len; i++) {
+			positionsMap.put(ids.get(i), i);
+		}
+		int maxDoc = reader.maxDoc();
+		int[] luceneIdToDocumentPosition = new int[maxDoc];
+		Arrays.fill(luceneIdToDocumentPosition, -1);
+		int[] documentPositionToLuceneId = new int[ids.size()];
+		Arrays.fill(documentPositionToLuceneId, -1);
+		Terms terms = reader.terms("id");
+		if (terms!=null) {
+			TermsEnum termsEnum = terms.iterator();
+			BytesRef bytesRef = termsEnum.next();
+			DocsEnum docsEnum = null;
+			Bits liveBits = reader.getLiveDocs();
+			int doc;
+			Integer position;
+			while (bytesRef!=null) {
+				docsEnum = termsEnum.docs(liveBits, docsEnum, DocsEnum.FLAG_NONE);
+				doc = docsEnum.nextDoc();
+				if (doc!=DocsEnum.NO_MORE_DOCS) {
+					position = positionsMap.get(bytesRef.utf8ToString());
+					if (position!=null && documentPositionToLuceneId[position]==-1) {
+						luceneIdToDocumentPosition[doc] = position;
+						documentPositionToLuceneId[position] = doc;
+					}
 				}
+				bytesRef = termsEnum.next();
+			}
+		}
+		return new int[][]{luceneIdToDocumentPosition, documentPositionToLuceneId};
+	}
+	
+	private void setMaps(IntBuffer luceneIdToDocumentPosition, IntBuffer documentPositionToLuceneId) {
+		int maxDoc = luceneIdToDocumentPosition.limit();
+		BitSet bits = new SparseFixedBitSet(maxDoc > 0 ? maxDoc : 1);
+		int[] docs = new int[documentPositionToLuceneId.limit()];
+		int count = 0;
+		int doc;
+		for (int i=0, len=docs.length; i<len; i++) {
+			doc = documentPositionToLuceneId.get(i);
+			if (doc>-1) {
+				bits.set(doc);
+				docs[count++] = doc;
 			}
-			bytesRef = termsEnum.next();
 		}
+		int[] sortedLuceneIds = Arrays.copyOf(docs, count);
+		Arrays.sort(sortedLuceneIds);
+		
+		this.bitSet = bits;
+		this.luceneIdToDocumentPositionMap = luceneIdToDocumentPosition;
+		this.documentPositionToLuceneIdMap = documentPositionToLuceneId;
+		this.luceneIds = sortedLuceneIds; // set last since it's used to check if we've been built
 	}
 	
 	public String getDocumentIdFromDocumentPosition(int documentPosition) {
@@ -178,10 +465,7 @@ public class CorpusMapper {
 	}
 
 	public boolean hasLuceneId(int doc) throws IOException {
-		if (bitSet==null) {
-			build();
-		}
-		return bitSet.get(doc);
+		return getDocumentPositionFromLuceneId(doc) > -1;
 	}
 
 	public Spans getFilteredSpans(SpanQuery spanQuery) throws IOException {
@@ -190,6 +474,140 @@ public class CorpusMapper {
 		return new DocumentFilterSpans(spans, getBitSet());
 	}
 	
+	/**
+	 * Get the spans for the specified query restricted to the documents of this corpus in a single segment.
+	 * The document ids of the returned spans are relative to the segment.
+	 * @param spanQuery the query to use
+	 * @param context the segment to search
+	 * @return the filtered spans or null if there are no matches in this segment
+	 * @throws IOException
+	 */
+	public Spans getFilteredSpans(SpanQuery spanQuery, LeafReaderContext context) throws IOException {
+		return getFilteredSpans(spanQuery.createWeight(getSegmentsSearcher(), false), context);
+	}
+	
+	private Spans getFilteredSpans(SpanWeight weight, LeafReaderContext context) throws IOException {
+		BitSet leafBitSet = getBitSet(context);
+		if (leafBitSet==null) {return null;}
+		Spans spans = weight.getSpans(context, SpanWeight.Postings.POSITIONS);
+		return spans==null ? null : new DocumentFilterSpans(spans, leafBitSet);
+	}
+	
+	/**
+	 * Process the filtered spans of each query in each segment. When an executor is provided each
+	 * (query, segment) pair is evaluated as a separate task, otherwise everything runs in the calling thread.
+	 * The processor must not modify shared state since it may be called concurrently.
+	 * @param spanQueries a map of query strings to span queries
+	 * @param processor the processor to call for each segment that has spans
+	 * @param executor the executor to use or null to process serially
+	 * @return a map of query strings to the (non-null) results for each segment, in segment order
+	 * @throws IOException
+	 */
+	public <T> Map<String, List<T>> processFilteredSpans(Map<String, SpanQuery> spanQueries, final LeafSpansProcessor<T> processor, ExecutorService executor) throws IOException {
+		Map<String, List<T>> results = new LinkedHashMap<String, List<T>>();
+		List<LeafReaderContext> leaves = getLeafReaderContexts();
+		if (executor==null) {
+			for (Map.Entry<String, SpanQuery> entry : spanQueries.entrySet()) {
+				String queryString = entry.getKey();
+				SpanWeight weight = entry.getValue().createWeight(getSegmentsSearcher(), false);
+				List<T> list = new ArrayList<T>();
+				for (LeafReaderContext context : leaves) {
+					Spans spans = getFilteredSpans(weight, context);
+					if (spans!=null) {
+						T result = processor.process(queryString, context, spans);
+						if (result!=null) {list.add(result);}
+					}
+				}
+				results.put(queryString, list);
+			}
+			return results;
+		}
+		
+		Map<String, List<Future<T>>> futuresMap = new LinkedHashMap<String, List<Future<T>>>();
+		for (Map.Entry<String, SpanQuery> entry : spanQueries.entrySet()) {
+			final String queryString = entry.getKey();
+			final SpanWeight weight = entry.getValue().createWeight(getSegmentsSearcher(), false);
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for (final LeafReaderContext context : leaves) {
+				if (getBitSet(context)==null) {continue;} // no documents from this corpus in this segment
+				futures.add(executor.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						Spans spans = getFilteredSpans(weight, context);
+						return spans==null ? null : processor.process(queryString, context, spans);
+					}
+				}));
+			}
+			futuresMap.put(queryString, futures);
+		}
+		try {
+			for (Map.Entry<String, List<Future<T>>> entry : futuresMap.entrySet()) {
+				List<T> list = new ArrayList<T>();
+				for (Future<T> future : entry.getValue()) {
+					T result = future.get();
+					if (result!=null) {list.add(result);}
+				}
+				results.put(entry.getKey(), list);
+			}
+		} catch (InterruptedException e) {
+			cancel(futuresMap);
+			Thread.currentThread().interrupt();
+			throw new IOException("Span processing was interrupted.", e);
+		} catch (ExecutionException e) {
+			cancel(futuresMap);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {throw (IOException) cause;}
+			if (cause instanceof RuntimeException) {throw (RuntimeException) cause;}
+			throw new IOException("Unable to process spans.", cause);
+		}
+		return results;
+	}
+	
+	private <T> void cancel(Map<String, List<Future<T>>> futuresMap) {
+		for (List<Future<T>> futures : futuresMap.values()) {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	/**
+	 * A processor of the spans of a query in a single segment, used by
+	 * {@link CorpusMapper#processFilteredSpans(Map, LeafSpansProcessor, ExecutorService)}.
+	 * Document ids of the spans are relative to the segment ({@link LeafReaderContext#docBase}).
+	 */
+	public interface LeafSpansProcessor<T> {
+		public T process(String queryString, LeafReaderContext context, Spans spans) throws IOException;
+	}
+	
+	/**
+	 * Get the bitset of corpus documents for the specified segment, using segment-relative ids.
+	 * @param context the segment
+	 * @return the bitset or null if this segment contains no documents from this corpus
+	 * @throws IOException
+	 */
+	public BitSet getBitSet(LeafReaderContext context) throws IOException {
+		if (leafBitSets==null) {
+			buildLeafBitSets();
+		}
+		return leafBitSets[context.ord];
+	}
+	
+	private synchronized void buildLeafBitSets() throws IOException {
+		if (leafBitSets!=null) {return;}
+		List<LeafReaderContext> leaves = getLeafReaderContexts();
+		BitSet[] bitSets = new BitSet[leaves.size()];
+		for (int doc : getSharedLuceneIds()) {
+			int ord = ReaderUtil.subIndex(doc, leaves);
+			LeafReaderContext context = leaves.get(ord);
+			if (bitSets[ord]==null) {
+				bitSets[ord] = new SparseFixedBitSet(context.reader().maxDoc());
+			}
+			bitSets[ord].set(doc-context.docBase);
+		}
+		leafBitSets = bitSets;
+	}
+	
 	public Filter getFilter() throws IOException {
 		return new DocumentFilter(this);
 	}
@@ -202,9 +620,10 @@ public class CorpusMapper {
 	}
 
 	public BitSet getBitSetFromDocumentIds(List<String> documentIds) throws IOException {
-		BitSet subBitSet = new SparseFixedBitSet(getLeafReader().numDocs());
+		BitSet subBitSet = new SparseFixedBitSet(getLeafReader().maxDoc());
 		for (String id : documentIds) {
-			subBitSet.set(getLuceneIdFromDocumentId(id));
+			int doc = getLuceneIdFromDocumentId(id);
+			if (doc>-1) {subBitSet.set(doc);} // skip documents that aren't in this corpus or aren't indexed
 		}
 		return subBitSet;
 	}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Trombone is a flexible text processing and analysis library used
+ * primarily by Voyant Tools (voyant-tools.org).
+ *
+ * Copyright (©) 2007-2012 Stéfan Sinclair & Geoffrey Rockwell
+ *
+ * This file is part of Trombone.
+ *
+ * Trombone is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Trombone is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Trombone.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.voyanttools.trombone.lucene;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.voyanttools.trombone.model.Corpus;
+import org.voyanttools.trombone.storage.Storage;
+
+/**
+ * A bounded, least-recently-used cache of built {@link CorpusMapper}s keyed by corpus ID and
+ * reader generation of the {@link LuceneManager}. A corpus is immutable once built, so the document ID maps
+ * and bitset of a mapper remain valid for as long as the reader it was built against is current. Each cached
+ * mapper holds a reference on its reader that's released when the mapper is evicted.
+ *
+ * @author sgs
+ *
+ */
+public class CorpusMapperCache {
+
+	public static final int DEFAULT_MAX_SIZE = 50;
+
+	private final int maxSize;
+
+	private final Map<String, CorpusMapper> map;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	public CorpusMapperCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public CorpusMapperCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.map = new LinkedHashMap<String, CorpusMapper>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CorpusMapper> eldest) {
+				if (size() > CorpusMapperCache.this.maxSize) {
+					close(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get a {@link CorpusMapper} for the specified corpus that is bound to the current {@link DirectoryReader},
+	 * reusing a previously built one if available.
+	 * @param storage the storage to use
+	 * @param corpus the corpus to map
+	 * @return a (possibly shared) {@link CorpusMapper}
+	 * @throws IOException
+	 */
+	public CorpusMapper get(Storage storage, Corpus corpus) throws IOException {
+		return get(storage, corpus, false);
+	}
+	
+	/**
+	 * Get a {@link CorpusMapper} for the specified corpus like {@link #get(Storage, Corpus)}, with a reference
+	 * on its reader that must be released with {@link CorpusMapper#release()} (so that the reader stays open
+	 * even if the mapper is evicted in the meantime).
+	 * @param storage the storage to use
+	 * @param corpus the corpus to map
+	 * @return a (possibly shared) {@link CorpusMapper}
+	 * @throws IOException
+	 */
+	public CorpusMapper acquire(Storage storage, Corpus corpus) throws IOException {
+		return get(storage, corpus, true);
+	}
+	
+	private CorpusMapper get(Storage storage, Corpus corpus, boolean acquire) throws IOException {
+		LuceneManager luceneManager = storage.getLuceneManager();
+		while (true) {
+			DirectoryReader directoryReader;
+			long generation;
+			synchronized (luceneManager) { // so that the generation matches the reader
+				directoryReader = luceneManager.acquireDirectoryReader();
+				generation = luceneManager.getReaderGeneration();
+			}
+			String key = getKey(corpus.getId(), generation);
+			synchronized (map) {
+				// if the reader was replaced in the meantime the stale entries may already have been removed,
+				// so a mapper for our reader shouldn't be cached anymore, we'll try again with the new reader
+				if (luceneManager.getReaderGeneration()==generation) {
+					CorpusMapper corpusMapper = map.get(key);
+					if (corpusMapper!=null) {
+						hits.incrementAndGet();
+						if (acquire) {corpusMapper.acquire();}
+						luceneManager.releaseDirectoryReader(directoryReader); // the cached mapper has its own reference
+						return corpusMapper;
+					}
+					misses.incrementAndGet();
+					corpusMapper = new CorpusMapper(storage, corpus, directoryReader); // takes over our reference
+					if (acquire) {corpusMapper.acquire();}
+					map.put(key, corpusMapper); // evicted right away if maxSize < 1
+					return corpusMapper;
+				}
+			}
+			luceneManager.releaseDirectoryReader(directoryReader);
+		}
+	}
+
+	/**
+	 * Remove (and release) all entries that weren't built against the specified reader generation.
+	 * @param generation the generation of the current {@link DirectoryReader}
+	 */
+	public void removeStale(long generation) {
+		String suffix = getKey("", generation);
+		synchronized (map) {
+			Iterator<Map.Entry<String, CorpusMapper>> iterator = map.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, CorpusMapper> entry = iterator.next();
+				if (entry.getKey().endsWith(suffix)==false) {
+					close(entry.getValue());
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (map) {
+			for (CorpusMapper corpusMapper : map.values()) {
+				close(corpusMapper);
+			}
+			map.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (map) {
+			return map.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private static void close(CorpusMapper corpusMapper) {
+		try {
+			corpusMapper.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to release the reader of a cached corpus mapper.", e);
+		}
+	}
+
+	private static String getKey(String corpusId, long generation) {
+		return corpusId+"@"+String.valueOf(generation);
+	}
+
+}
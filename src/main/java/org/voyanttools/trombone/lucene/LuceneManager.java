@@ -24,14 +24,27 @@ package org.voyanttools.trombone.lucene;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LiveIndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.voyanttools.trombone.lucene.analysis.KitchenSinkPerFieldAnalyzerWrapper;
@@ -42,14 +55,109 @@ import org.voyanttools.trombone.lucene.analysis.KitchenSinkPerFieldAnalyzerWrapp
  */
 public class LuceneManager {
 	
+	/**
+	 * Named settings for the index writer: {@link #interactive} keeps memory use and merging modest for a
+	 * server that's also searching, {@link #bulk} uses a large RAM buffer, wider merge tiers, more merge threads
+	 * and no compound files to ingest large corpora quickly.
+	 */
+	public enum IndexWriterProfile {
+		interactive(16, IndexWriterConfig.DISABLE_AUTO_FLUSH, 10, 10, 5*1024, Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()/2)), true),
+		bulk(256, IndexWriterConfig.DISABLE_AUTO_FLUSH, 20, 20, 5*1024, Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())), false);
+		
+		private double ramBufferSizeMB;
+		
+		/**
+		 * the number of documents after which to flush ({@link IndexWriterConfig#DISABLE_AUTO_FLUSH} to flush by RAM
+		 * only, since document sizes vary too much for a count to be a good measure)
+		 */
+		private int maxBufferedDocs;
+		private double segmentsPerTier;
+		private int maxMergeAtOnce;
+		private double maxMergedSegmentMB;
+		private int mergeThreads;
+		private boolean useCompoundFile;
+		
+		private IndexWriterProfile(double ramBufferSizeMB, int maxBufferedDocs, double segmentsPerTier, int maxMergeAtOnce, double maxMergedSegmentMB, int mergeThreads, boolean useCompoundFile) {
+			this.ramBufferSizeMB = ramBufferSizeMB;
+			this.maxBufferedDocs = maxBufferedDocs;
+			this.segmentsPerTier = segmentsPerTier;
+			this.maxMergeAtOnce = maxMergeAtOnce;
+			this.maxMergedSegmentMB = maxMergedSegmentMB;
+			this.mergeThreads = mergeThreads;
+			this.useCompoundFile = useCompoundFile;
+		}
+		
+		public static IndexWriterProfile getForgivingly(String profile) {
+			for (IndexWriterProfile p : values()) {
+				if (p.name().equalsIgnoreCase(profile)) {return p;}
+			}
+			return interactive;
+		}
+		
+		/**
+		 * Apply this profile to the configuration of a new or live index writer.
+		 * @param config the configuration
+		 */
+		void apply(LiveIndexWriterConfig config) {
+			config.setRAMBufferSizeMB(ramBufferSizeMB);
+			config.setMaxBufferedDocs(maxBufferedDocs);
+			config.setUseCompoundFile(useCompoundFile);
+			if (config.getMergePolicy() instanceof TieredMergePolicy) {
+				TieredMergePolicy mergePolicy = (TieredMergePolicy) config.getMergePolicy();
+				mergePolicy.setSegmentsPerTier(segmentsPerTier);
+				mergePolicy.setMaxMergeAtOnce(maxMergeAtOnce);
+				mergePolicy.setMaxMergedSegmentMB(maxMergedSegmentMB);
+				mergePolicy.setNoCFSRatio(useCompoundFile ? TieredMergePolicy.DEFAULT_NO_CFS_RATIO : 0);
+			}
+			if (config.getMergeScheduler() instanceof ConcurrentMergeScheduler) {
+				((ConcurrentMergeScheduler) config.getMergeScheduler()).setMaxMergesAndThreads(mergeThreads+5, mergeThreads);
+			}
+		}
+	}
+	
 	private Directory directory;
 	
+	/**
+	 * the current reader, on which the manager holds one reference (acquired by {@link #acquireDirectoryReader()})
+	 */
 	private DirectoryReader directoryReader = null;
 	
+	/**
+	 * incremented every time the current reader is replaced (only while holding the lock of this manager, but it
+	 * can be read without it)
+	 */
+	private volatile long readerGeneration = 0;
+	
+	/**
+	 * the minimum time between checks for changes when a reader is acquired (0 to only refresh on commit)
+	 */
+	private long refreshInterval = 0;
+	
+	private long lastRefresh = System.currentTimeMillis();
+	
 	private IndexWriter indexWriter = null;
 	
+	private IndexWriterProfile indexWriterProfile = IndexWriterProfile.interactive;
+	
+	/**
+	 * held by a build while it uses an index writer profile, since the profile is applied to the single live
+	 * configuration of the shared writer (so concurrent builds take turns instead of overwriting each other's settings)
+	 */
+	private final ReentrantLock indexingLock = new ReentrantLock();
+	
 	private IndexSearcher indexSearcher = null;
 	
+	private CorpusMapperCache corpusMapperCache = new CorpusMapperCache();
+	
+	/**
+	 * the number of threads to use for concurrent searching (less than 2 disables concurrent searching)
+	 */
+	private int searchThreads = Runtime.getRuntime().availableProcessors();
+	
+	private ThreadPoolExecutor searchExecutor = null;
+	
+	private ForkJoinPool forkJoinPool = null;
+	
 //	public static Version VERSION = Version.LUCENE_4_9;
 	
 	private float luceneDocumentVersion = 4.1f;
@@ -111,20 +219,83 @@ public class LuceneManager {
 //		return indexSearcher;
 //	}
 	
-	public DirectoryReader getDirectoryReader() throws CorruptIndexException, IOException {
+	/**
+	 * Get the current reader without acquiring it. The reader is closed once it has been replaced and every
+	 * acquired reference has been released, so anything that holds on to it should use
+	 * {@link #acquireDirectoryReader()} instead.
+	 * @return the current reader
+	 * @throws IOException
+	 */
+	public synchronized DirectoryReader getDirectoryReader() throws CorruptIndexException, IOException {
 		return getDirectoryReader(false);
 	}
 	
-	public DirectoryReader getDirectoryReader(boolean replace) throws CorruptIndexException, IOException {
+	public synchronized DirectoryReader getDirectoryReader(boolean replace) throws CorruptIndexException, IOException {
 		if (directoryReader == null || replace) {
-			directoryReader = DirectoryReader.open(directory);
+			setDirectoryReader(DirectoryReader.open(directory));
 		}
 		return directoryReader;
 	}
+	
+	/**
+	 * Get the current reader with an additional reference that must be released with
+	 * {@link #releaseDirectoryReader(DirectoryReader)} when it's no longer needed. The reader is first refreshed
+	 * if the refresh interval has elapsed.
+	 * @return the current reader
+	 * @throws IOException
+	 */
+	public synchronized DirectoryReader acquireDirectoryReader() throws CorruptIndexException, IOException {
+		if (directoryReader!=null && refreshInterval>0 && System.currentTimeMillis()-lastRefresh>=refreshInterval) {
+			refresh();
+		}
+		DirectoryReader reader = getDirectoryReader();
+		reader.incRef();
+		return reader;
+	}
+	
+	/**
+	 * Release a reader obtained from {@link #acquireDirectoryReader()}.
+	 * @param reader the reader to release
+	 * @throws IOException
+	 */
+	public void releaseDirectoryReader(DirectoryReader reader) throws IOException {
+		reader.decRef();
+	}
+	
+	/**
+	 * Replace the current reader if the index has changed, either through the shared writer or in the directory.
+	 * @return true if the reader was replaced
+	 * @throws IOException
+	 */
+	public synchronized boolean refresh() throws CorruptIndexException, IOException {
+		lastRefresh = System.currentTimeMillis();
+		if (directoryReader==null) {return false;}
+		DirectoryReader newReader = indexWriter==null ? DirectoryReader.openIfChanged(directoryReader) : DirectoryReader.openIfChanged(directoryReader, indexWriter, true);
+		if (newReader==null) {return false;}
+		setDirectoryReader(newReader);
+		return true;
+	}
+	
+	/**
+	 * Get the generation of the current reader, which changes every time the reader is replaced.
+	 * This doesn't need the lock of this manager, so it can be checked while holding other locks.
+	 * @return the reader generation
+	 */
+	public long getReaderGeneration() {
+		return readerGeneration;
+	}
+	
+	/**
+	 * Set the minimum time between checks for index changes when a reader is acquired.
+	 * @param refreshInterval the interval in milliseconds (0 to only refresh on commit)
+	 */
+	public synchronized void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
 
 	public void commit() throws CorruptIndexException, LockObtainFailedException, IOException {
 		getIndexWriter().commit();
-		
+		refresh();
 	}
 	
 	public void addDocument(Document document) throws CorruptIndexException, IOException {
@@ -136,8 +307,7 @@ public class LuceneManager {
 		for (Document document : documents) {
 			writer.addDocument(document);
 		}
-		writer.commit();
-		setDirectoryReader(DirectoryReader.open(writer, true));
+		commit();
 	}
 
 //
@@ -153,10 +323,70 @@ public class LuceneManager {
 	// TODO: make this block across threads so that only one writer can exist at a time
 	public synchronized IndexWriter getIndexWriter() throws CorruptIndexException, LockObtainFailedException, IOException {
 		if (indexWriter==null) {
-			indexWriter = new IndexWriter(directory, new IndexWriterConfig(analyzer));
+			IndexWriterConfig config = new IndexWriterConfig(analyzer);
+			config.setMergePolicy(new TieredMergePolicy());
+			config.setMergeScheduler(new ConcurrentMergeScheduler());
+			indexWriterProfile.apply(config);
+			indexWriter = new IndexWriter(directory, config);
 		}
 		return indexWriter;
 	}
+	
+	/**
+	 * Get the index writer with the specified profile, applying it to the live configuration if the writer
+	 * already exists (the profile stays in effect until another one is requested).
+	 * @param profile the {@link IndexWriterProfile} to use
+	 * @return the shared index writer
+	 * @throws IOException
+	 */
+	public synchronized IndexWriter getIndexWriter(IndexWriterProfile profile) throws CorruptIndexException, LockObtainFailedException, IOException {
+		setIndexWriterProfile(profile);
+		return getIndexWriter();
+	}
+	
+	/**
+	 * Use the specified profile for the index writer, applying it to the live configuration if the writer already
+	 * exists (this doesn't create the writer).
+	 * @param profile the {@link IndexWriterProfile} to use
+	 */
+	public synchronized void setIndexWriterProfile(IndexWriterProfile profile) {
+		if (profile!=indexWriterProfile) {
+			indexWriterProfile = profile;
+			if (indexWriter!=null) {
+				try {
+					profile.apply(indexWriter.getConfig());
+				}
+				catch (AlreadyClosedException e) {
+					// the writer was closed after a failure, so there are no settings to change
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get the lock that a build holds while it uses an {@link IndexWriterProfile}: the profile applies to the
+	 * writer shared by every build, so builds that index at the same time are serialized.
+	 * @return the indexing lock
+	 */
+	public Lock getIndexingLock() {
+		return indexingLock;
+	}
+	
+	public synchronized IndexWriterProfile getIndexWriterProfile() {
+		return indexWriterProfile;
+	}
+	
+	/**
+	 * Merge the index down to the specified number of segments and commit. This is expensive and blocks
+	 * until the merges are done, so it should only be called after a bulk build.
+	 * @param maxSegments the maximum number of segments to keep
+	 * @throws IOException
+	 */
+	public void optimize(int maxSegments) throws CorruptIndexException, LockObtainFailedException, IOException {
+		IndexWriter writer = getIndexWriter();
+		writer.forceMerge(Math.max(1, maxSegments));
+		writer.commit();
+	}
 
 	public Analyzer getAnalyzer() {
 		return analyzer;
@@ -166,9 +396,87 @@ public class LuceneManager {
 		return DirectoryReader.indexExists(directory);
 	}
 
-	public void setDirectoryReader(DirectoryReader indexReader) {
+	/**
+	 * Make the specified (newly opened) reader current. The manager takes over the reference of the caller and
+	 * releases its reference on the previous reader, which is closed once nobody else has acquired it.
+	 * @param indexReader the new reader
+	 * @throws IOException
+	 */
+	public synchronized void setDirectoryReader(DirectoryReader indexReader) throws IOException {
+		if (indexReader==directoryReader) {return;}
+		DirectoryReader previousReader = directoryReader;
 		this.directoryReader = indexReader;
 		this.indexSearcher = new IndexSearcher(directoryReader);
+		readerGeneration++;
+		corpusMapperCache.removeStale(readerGeneration);
+		if (previousReader!=null) {
+			previousReader.decRef();
+		}
+	}
+	
+	/**
+	 * Get the shared executor used to evaluate searches and spans concurrently.
+	 * @return the executor or null if concurrent searching is disabled
+	 */
+	public synchronized ExecutorService getSearchExecutor() {
+		if (searchThreads<2) {return null;}
+		if (searchExecutor==null) {
+			searchExecutor = new ThreadPoolExecutor(searchThreads, searchThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "trombone-search-"+count.incrementAndGet());
+					thread.setDaemon(true); // don't prevent the JVM from exiting
+					return thread;
+				}
+			});
+			searchExecutor.allowCoreThreadTimeOut(true);
+		}
+		return searchExecutor;
+	}
+	
+	/**
+	 * Set the number of threads used for concurrent searching, resizing the shared executor if it already exists.
+	 * This is a setting for the whole server (all corpora and requests share the executor), not for a request.
+	 * @param searchThreads the number of threads (less than 2 disables concurrent searching)
+	 */
+	public synchronized void setSearchThreads(int searchThreads) {
+		if (searchThreads==this.searchThreads) {return;}
+		if (searchExecutor!=null && searchThreads>1) {
+			if (searchThreads > searchExecutor.getMaximumPoolSize()) {
+				searchExecutor.setMaximumPoolSize(searchThreads);
+				searchExecutor.setCorePoolSize(searchThreads);
+			}
+			else {
+				searchExecutor.setCorePoolSize(searchThreads);
+				searchExecutor.setMaximumPoolSize(searchThreads);
+			}
+		}
+		this.searchThreads = searchThreads;
+	}
+	
+	public synchronized int getSearchThreads() {
+		return searchThreads;
+	}
+	
+	/**
+	 * Get the shared pool used to split up work over the documents or segments of the index (like building
+	 * corpus term statistics). Its parallelism is the number of search threads when it's first requested.
+	 * @return the shared {@link ForkJoinPool}
+	 */
+	public synchronized ForkJoinPool getForkJoinPool() {
+		if (forkJoinPool==null) {
+			forkJoinPool = new ForkJoinPool(Math.max(1, searchThreads));
+		}
+		return forkJoinPool;
+	}
+	
+	/**
+	 * Get the shared cache of {@link CorpusMapper}s for this index.
+	 * @return the {@link CorpusMapperCache}
+	 */
+	public CorpusMapperCache getCorpusMapperCache() {
+		return corpusMapperCache;
 	}
 
 }
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Trombone is a flexible text processing and analysis library used
+ * primarily by Voyant Tools (voyant-tools.org).
+ * 
+ * Copyright (©) 2007-2012 Stéfan Sinclair & Geoffrey Rockwell
+ * 
+ * This file is part of Trombone.
+ * 
+ * Trombone is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Trombone is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Trombone.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.voyanttools.trombone.lucene.analysis;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+/**
+ * A pass-through filter that collects the statistics of a document (tokens, types, mean and standard
+ * deviation of type frequencies, last position and last offset) while it's being tokenized, so that they
+ * don't need to be read back from the term vector after indexing.
+ * 
+ * @author sgs
+ *
+ */
+public class TokenStatisticsFilter extends TokenFilter {
+	
+	private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+	private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
+	private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+	
+	private Map<String, int[]> typesCounts = new HashMap<String, int[]>();
+	private int tokensCount = 0;
+	private int position = -1;
+	private int lastPosition = 0;
+	private int lastOffset = 0;
+
+	public TokenStatisticsFilter(TokenStream input) {
+		super(input);
+	}
+
+	@Override
+	public final boolean incrementToken() throws IOException {
+		if (input.incrementToken()) {
+			String term = termAtt.toString();
+			int[] count = typesCounts.get(term);
+			if (count==null) {
+				typesCounts.put(term, new int[]{1});
+			}
+			else {
+				count[0]++;
+			}
+			tokensCount++;
+			position += posIncrAtt.getPositionIncrement();
+			if (position>lastPosition) {lastPosition=position;}
+			if (offsetAtt.startOffset()>lastOffset) {lastOffset=offsetAtt.startOffset();}
+			return true;
+		}
+		else {
+			return false;
+		}
+	}
+
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		typesCounts.clear();
+		tokensCount = 0;
+		position = -1;
+		lastPosition = 0;
+		lastOffset = 0;
+	}
+	
+	public int getTokensCount() {
+		return tokensCount;
+	}
+	
+	public int getTypesCount() {
+		return typesCounts.size();
+	}
+	
+	public int getLastPosition() {
+		return lastPosition;
+	}
+	
+	public int getLastOffset() {
+		return lastOffset;
+	}
+	
+	/**
+	 * Get the statistics of the type frequencies (from which the mean and standard deviation are read).
+	 * @return the statistics of the type frequencies
+	 */
+	public DescriptiveStatistics getTypesCountsStatistics() {
+		DescriptiveStatistics stats = new DescriptiveStatistics();
+		for (int[] count : typesCounts.values()) {
+			stats.addValue(count[0]);
+		}
+		return stats;
+	}
+
+}
@@ -19,6 +19,7 @@ import org.voyanttools.trombone.lucene.CorpusMapper;
  */
 public class DocumentFilter extends Filter {
 	
+	private CorpusMapper corpusMapper;
 	private DocIdSet docIdSet;
 	private String id;
 	private int length;
@@ -29,6 +30,7 @@ public class DocumentFilter extends Filter {
 	 * 
 	 */
 	public DocumentFilter(CorpusMapper corpusMapper) throws IOException {
+		this.corpusMapper = corpusMapper;
 		docIdSet = new BitDocIdSet(corpusMapper.getBitSet());
 		id = corpusMapper.getCorpus().getId();
 		length = corpusMapper.getCorpus().size();
@@ -39,7 +41,13 @@ public class DocumentFilter extends Filter {
 	 */
 	@Override
 	public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) throws IOException {
-		return docIdSet;
+		if (context.reader()==corpusMapper.getLeafReader()) { // composite reader
+			return docIdSet;
+		}
+		else { // segment of the directory reader
+			BitSet bitSet = corpusMapper.getBitSet(context);
+			return bitSet==null ? null : new BitDocIdSet(bitSet);
+		}
 	}
 
 	/* (non-Javadoc)
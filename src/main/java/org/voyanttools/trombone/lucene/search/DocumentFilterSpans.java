@@ -70,11 +70,17 @@ public class DocumentFilterSpans extends Spans {
     @Override
     public int nextDoc() throws IOException {
     	if (in==null) return NO_MORE_DOCS;
-    	int i = in.docID();
-    	int j = i+1;
-    	int k = bitSet.nextSetBit(j);
-    	int l = advance(k);
-    	return l < bitSet.length() && bitSet.get(l) ? l : NO_MORE_DOCS;
+    	int target = in.docID()+1;
+    	int length = bitSet.length();
+    	while (target < length) {
+	    	int k = bitSet.nextSetBit(target);
+	    	if (k==NO_MORE_DOCS) {break;}
+	    	int l = advance(k);
+	    	if (l==NO_MORE_DOCS) {break;}
+	    	if (l < length && bitSet.get(l)) {return l;}
+	    	target = l+1; // skip past documents that aren't in the bitset
+    	}
+    	return NO_MORE_DOCS;
     }
 	
 
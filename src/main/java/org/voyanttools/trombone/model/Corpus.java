@@ -48,13 +48,16 @@ public class Corpus implements Iterable<IndexedDocument> {
 	@XStreamOmitField
 	Map<String, Integer> documentPositionsMap = null;
 	
+	@XStreamOmitField
+	private DocumentStatistics documentStatistics = null;
+	
 	
 	public Corpus(Storage storage, CorpusMetadata corpusMetadata) {
 		this.storage = storage;
 		this.corpusMetadata = corpusMetadata;
 	}
 
-	private List<IndexedDocument> getDocumentsList() throws IOException {
+	private synchronized List<IndexedDocument> getDocumentsList() throws IOException {
 		if (documents==null) {
 			documentPositionsMap = new HashMap<String, Integer>();
 			documents = new ArrayList<IndexedDocument>();
@@ -88,22 +91,24 @@ public class Corpus implements Iterable<IndexedDocument> {
 		return getDocumentsList().get(docIndex);
 	}
 
-	public int[] getTokensCounts(TokenType tokenType) throws IOException {
-		int[] counts = new int[size()];
-		int index = 0;
-		for (IndexedDocument document : this) {
-			counts[index++] = document.getMetadata().getTokensCount(tokenType);
+	/**
+	 * Get the statistics of the documents in this corpus, loaded once rather than reading the metadata of each document.
+	 * @return the {@link DocumentStatistics}
+	 * @throws IOException
+	 */
+	public synchronized DocumentStatistics getDocumentStatistics() throws IOException {
+		if (documentStatistics==null) {
+			documentStatistics = DocumentStatistics.getInstance(storage, this);
 		}
-		return counts;
+		return documentStatistics;
+	}
+
+	public int[] getTokensCounts(TokenType tokenType) throws IOException {
+		return getDocumentStatistics().getTokensCounts(tokenType);
 	}
 
 	public int[] getLastTokenPositions(TokenType tokenType) throws IOException {
-		int[] counts = new int[size()];
-		int index = 0;
-		for (IndexedDocument document : this) {
-			counts[index++] = document.getMetadata().getLastTokenPositionIndex(tokenType);
-		}
-		return counts;
+		return getDocumentStatistics().getLastTokenPositions(tokenType);
 	}
 
 	public String getId() {
@@ -114,9 +119,16 @@ public class Corpus implements Iterable<IndexedDocument> {
 		return corpusMetadata;
 	}
 
+	/**
+	 * Get the position of the specified document in this corpus.
+	 * @param corpusId the document ID
+	 * @return the position of the document or -1 if it isn't in this corpus
+	 * @throws IOException
+	 */
 	public int getDocumentPosition(String corpusId) throws IOException {
 		if (documentPositionsMap==null) {getDocumentsList();} // this builds the map
-		return documentPositionsMap.get(corpusId);
+		Integer position = documentPositionsMap.get(corpusId);
+		return position==null ? -1 : position;
 	}
 
 	public List<String> getDocumentIds() {
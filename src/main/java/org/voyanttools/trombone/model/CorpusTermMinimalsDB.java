@@ -1,101 +1,744 @@
 package org.voyanttools.trombone.model;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.InPlaceMergeSorter;
 import org.voyanttools.trombone.lucene.CorpusMapper;
+import org.voyanttools.trombone.storage.Storage;
 
-public class CorpusTermMinimalsDB extends AbstractDB {
+/**
+ * Corpus-level statistics (raw frequency, number of documents containing the term and z-score) for
+ * every term of a field in a corpus. The statistics are stored in a single columnar buffer (memory-mapped
+ * for file storage): a sorted term dictionary followed by parallel primitive columns, so terms can be
+ * looked up by binary search and ranked by ordinal without deserializing objects. Ordinals are also
+ * stored in descending order of raw frequency and of in documents count so that the most common terms
+ * can be read without going through the whole vocabulary.
+ *
+ * <pre>
+ * int format, int termsCount, int documentsCount, int termBytesLength, int totalRawFreq
+ * int[termsCount+1] term offsets
+ * int[termsCount] raw frequencies
+ * int[termsCount] in documents counts
+ * float[termsCount] z-scores
+ * int[termsCount] ordinals by descending raw frequency
+ * int[termsCount] ordinals by descending in documents count
+ * byte[termBytesLength] UTF-8 terms in {@link BytesRef} order
+ * </pre>
+ *
+ * @author sgs
+ *
+ */
+public class CorpusTermMinimalsDB {
+	
+	/**
+	 * How the statistics are built when they haven't been stored yet: by walking the postings of each term
+	 * of the field (restricted to the corpus documents) or by reading the term vector of each document in
+	 * the corpus. The postings are usually faster unless the corpus is a small part of the index.
+	 */
+	public enum BuildStrategy {
+		auto, postings, termVectors;
+		public static BuildStrategy valueOfForgivingly(String string) {
+			if (string!=null) {
+				for (BuildStrategy t : values()) {
+					if (t.name().equalsIgnoreCase(string)) return t;
+				}
+			}
+			return auto;
+		}
+	}
 
-	Map<String, CorpusTermMinimal> map;
+	private static final int FORMAT = 2;
+
+	private static final int HEADER_LENGTH = 20;
 	
-	private CorpusTermMinimalsDB(CorpusMapper corpusMapper, String field, boolean readOnly) {
-		super(corpusMapper.getStorage(), getName(corpusMapper.getCorpus(), field), readOnly);
-		map = db.getHashMap(field);
+	/**
+	 * locks for statistics that are being built, keyed by the name of the stored statistics
+	 */
+	private static final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	private ByteBuffer buffer;
+
+	private int size;
+
+	private int documentsCount;
+
+	private int offsetsStart;
+
+	private int rawFreqsStart;
+
+	private int inDocumentsCountsStart;
+
+	private int zscoresStart;
+
+	private int rawFreqOrdinalsStart;
+
+	private int inDocumentsCountOrdinalsStart;
+
+	private int termsStart;
+	
+	private BuildStrategy buildStrategy = null;
+
+	private CorpusTermMinimalsDB(ByteBuffer buffer, BuildStrategy buildStrategy) throws IOException {
+		this.buffer = buffer;
+		this.buildStrategy = buildStrategy;
+		if (buffer.getInt(0)!=FORMAT) {
+			throw new IOException("Unrecognized format for corpus term statistics.");
+		}
+		this.size = buffer.getInt(4);
+		this.documentsCount = buffer.getInt(8);
+		this.offsetsStart = HEADER_LENGTH;
+		this.rawFreqsStart = offsetsStart + (size+1)*4;
+		this.inDocumentsCountsStart = rawFreqsStart + size*4;
+		this.zscoresStart = inDocumentsCountsStart + size*4;
+		this.rawFreqOrdinalsStart = zscoresStart + size*4;
+		this.inDocumentsCountOrdinalsStart = rawFreqOrdinalsStart + size*4;
+		this.termsStart = inDocumentsCountOrdinalsStart + size*4;
 	}
+
 	public boolean isEmpty() {
-		return map.isEmpty();
+		return size==0;
+	}
+
+	/**
+	 * Get the number of terms (and the number of ordinals).
+	 * @return the number of terms
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getDocumentsCount() {
+		return documentsCount;
+	}
+
+	/**
+	 * Get the sum of the raw frequencies of all terms (the number of tokens in the corpus for this field).
+	 * @return the total raw frequency
+	 */
+	public int getTotalRawFreq() {
+		return buffer.getInt(16);
+	}
+	
+	/**
+	 * Get the strategy that was used to build the statistics if they were built when this instance was created.
+	 * @return the strategy used ({@link BuildStrategy#postings} or {@link BuildStrategy#termVectors}) or null if the statistics were already stored
+	 */
+	public BuildStrategy getBuildStrategy() {
+		return buildStrategy;
 	}
-	public void put(String term, CorpusTermMinimal c) {
-		map.put(term,  c);
+
+	public int getRawFreq(int ord) {
+		return buffer.getInt(rawFreqsStart + ord*4);
+	}
+
+	public int getInDocumentsCount(int ord) {
+		return buffer.getInt(inDocumentsCountsStart + ord*4);
+	}
+
+	public float getZscore(int ord) {
+		return buffer.getFloat(zscoresStart + ord*4);
+	}
+
+	/**
+	 * Get the ordinal of the term at the specified rank by descending raw frequency (ties are in term order).
+	 * @param rank the rank, from 0 to {@link #size()}-1
+	 * @return the term ordinal
+	 */
+	public int getOrdinalByRawFreq(int rank) {
+		return buffer.getInt(rawFreqOrdinalsStart + rank*4);
+	}
+
+	/**
+	 * Get the ordinal of the term at the specified rank by descending in documents count (ties are in term order).
+	 * @param rank the rank, from 0 to {@link #size()}-1
+	 * @return the term ordinal
+	 */
+	public int getOrdinalByInDocumentsCount(int rank) {
+		return buffer.getInt(inDocumentsCountOrdinalsStart + rank*4);
 	}
+
+	/**
+	 * Get the sum of the raw frequencies of the specified terms.
+	 * @param ordinals the ordinals of the terms, such as compiled stopwords from {@link Keywords#getOrdinals(CorpusMapper, String)}
+	 * @return the total raw frequency of the terms
+	 */
+	public int getTotalRawFreq(BitSet ordinals) {
+		int total = 0;
+		for (int ord = ordinals.nextSetBit(0); ord<size; ord = ord+1<ordinals.length() ? ordinals.nextSetBit(ord+1) : DocIdSetIterator.NO_MORE_DOCS) {
+			total += getRawFreq(ord);
+		}
+		return total;
+	}
+
+	/**
+	 * Fill the specified {@link BytesRef} with the UTF-8 bytes of the term with the specified ordinal.
+	 * @param ord the ordinal of the term
+	 * @param bytesRef the {@link BytesRef} to fill (its array is grown if needed)
+	 * @return the filled {@link BytesRef}
+	 */
+	public BytesRef getTermBytes(int ord, BytesRef bytesRef) {
+		int start = buffer.getInt(offsetsStart + ord*4);
+		int length = buffer.getInt(offsetsStart + (ord+1)*4) - start;
+		if (bytesRef.bytes.length < length) {
+			bytesRef.bytes = new byte[length];
+		}
+		for (int i=0; i<length; i++) {
+			bytesRef.bytes[i] = buffer.get(termsStart + start + i);
+		}
+		bytesRef.offset = 0;
+		bytesRef.length = length;
+		return bytesRef;
+	}
+
+	public String getTerm(int ord) {
+		return getTermBytes(ord, new BytesRef()).utf8ToString();
+	}
+
+	/**
+	 * Get the ordinal of the specified term.
+	 * @param term the term to find
+	 * @return the ordinal of the term or -1 if it's not in the corpus
+	 */
+	public int getOrdinal(BytesRef term) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compareTerm(mid, term);
+			if (cmp < 0) {low = mid + 1;}
+			else if (cmp > 0) {high = mid - 1;}
+			else {return mid;}
+		}
+		return -1;
+	}
+
+	public int getOrdinal(String term) {
+		return getOrdinal(new BytesRef(term));
+	}
+
+	private int compareTerm(int ord, BytesRef term) {
+		int start = termsStart + buffer.getInt(offsetsStart + ord*4);
+		int length = termsStart + buffer.getInt(offsetsStart + (ord+1)*4) - start;
+		int len = Math.min(length, term.length);
+		for (int i=0; i<len; i++) {
+			int diff = (buffer.get(start+i) & 0xff) - (term.bytes[term.offset+i] & 0xff);
+			if (diff!=0) {return diff;}
+		}
+		return length - term.length;
+	}
+
 	public CorpusTermMinimal get(String term) {
-		return map.get(term);
+		int ord = getOrdinal(term);
+		return ord > -1 ? get(ord) : null;
 	}
+
+	public CorpusTermMinimal get(int ord) {
+		return new CorpusTermMinimal(getTerm(ord), getRawFreq(ord), getInDocumentsCount(ord), documentsCount, getZscore(ord));
+	}
+
+	/**
+	 * Get a view of all terms (in term order), each value is created as it's accessed.
+	 * @return a view of all terms
+	 */
 	public Collection<CorpusTermMinimal> values() {
-		return map.values();
+		return new AbstractList<CorpusTermMinimal>() {
+			@Override
+			public CorpusTermMinimal get(int index) {
+				return CorpusTermMinimalsDB.this.get(index);
+			}
+			@Override
+			public int size() {
+				return size;
+			}
+		};
 	}
+
+	/**
+	 * This is a no-op since the underlying buffer is released when no longer referenced (and the instance
+	 * is shared through the {@link CorpusMapper}), but it's kept for callers that treat this as a closeable resource.
+	 */
+	public void close() {
+	}
+
 	private static String getName(Corpus corpus, String field) {
-		return corpus.getId()+"-corpusTermMinimals-"+field;
+		return corpus.getId()+"-corpusTermStats-"+field;
+	}
+	
+	/**
+	 * Check whether statistics have been stored, without reading them (they may still be in an older format,
+	 * in which case {@link #getInstance(CorpusMapper, String, BuildStrategy)} rebuilds them).
+	 */
+	private static boolean exists(CorpusMapper corpusMapper, String field) {
+		return corpusMapper.getStorage().isStored(getName(corpusMapper.getCorpus(), field));
 	}
-	private synchronized static boolean exists(CorpusMapper corpusMapper, String field) {
-		return AbstractDB.exists(corpusMapper.getStorage(), getName(corpusMapper.getCorpus(), field));
+	
+	/**
+	 * Get the stored buffer if it exists and is in the current format (statistics stored in an older format are rebuilt).
+	 * @param corpusMapper
+	 * @param name the name of the stored statistics
+	 * @return the stored buffer or null
+	 */
+	private static ByteBuffer retrieveBuffer(CorpusMapper corpusMapper, String name) {
+		if (!corpusMapper.getStorage().isStored(name)) {return null;}
+		ByteBuffer buffer;
+		try {
+			buffer = corpusMapper.getStorage().retrieveBuffer(name);
+		} catch (IOException e) {
+			return null;
+		}
+		return buffer!=null && buffer.capacity()>=HEADER_LENGTH && buffer.getInt(0)==FORMAT ? buffer : null;
+	}
+	
+	/**
+	 * Get the lock for building the statistics of the specified corpus and field (so that building for one
+	 * corpus doesn't block lookups for others).
+	 * @param name the name of the stored statistics
+	 * @return the lock
+	 */
+	private static Object getLock(String name) {
+		Object lock = new Object();
+		Object existing = locks.putIfAbsent(name, lock);
+		return existing==null ? lock : existing;
 	}
-	public static synchronized CorpusTermMinimalsDB getInstance(CorpusMapper corpusMapper, TokenType tokenType) throws IOException {
+	
+	public static CorpusTermMinimalsDB getInstance(CorpusMapper corpusMapper, TokenType tokenType) throws IOException {
 		return getInstance(corpusMapper, tokenType.name());
 	}
 
-	public static synchronized CorpusTermMinimalsDB getInstance(CorpusMapper corpusMapper, String field) throws IOException {
-		if (!exists(corpusMapper, field)) {
-//			if (corpusMapper.getCorpus().size()==corpusMapper.getLeafReader().numDocs()) {
-//				buildFromReaderTerms(corpusMapper, field); // TODO: is this any faster than going through documents?
-//			}
-//			else {
-				buildFromDocumentTermVectors(corpusMapper, field);
-//			}
-		}
-		return new CorpusTermMinimalsDB(corpusMapper, field, true);
-	}
-	private static void buildFromDocumentTermVectors(CorpusMapper corpusMapper, String field) throws IOException {
-		LeafReader reader = corpusMapper.getLeafReader();
-		Map<String, AtomicInteger> inDocumentsCountMap = new HashMap<String, AtomicInteger>();
-		Map<String, AtomicInteger> rawFreqsMap = new HashMap<String, AtomicInteger>();
-		TermsEnum termsEnum = null;
-		for (int doc : corpusMapper.getLuceneIds()) {
-			Terms terms = reader.getTermVector(doc, field);
-			if (terms!=null) {
-				termsEnum = terms.iterator();
-				if (termsEnum!=null) {
-					BytesRef bytesRef = termsEnum.next();
-					while (bytesRef!=null) {
-						String term = bytesRef.utf8ToString();
-						if (!inDocumentsCountMap.containsKey(term)) {
-							inDocumentsCountMap.put(term, new AtomicInteger());
-							rawFreqsMap.put(term, new AtomicInteger());
-						}
-						inDocumentsCountMap.get(term).incrementAndGet();
-						rawFreqsMap.get(term).addAndGet((int) termsEnum.totalTermFreq());
-						bytesRef = termsEnum.next();
+	public static CorpusTermMinimalsDB getInstance(CorpusMapper corpusMapper, TokenType tokenType, BuildStrategy buildStrategy) throws IOException {
+		return getInstance(corpusMapper, tokenType.name(), buildStrategy);
+	}
+
+	public static CorpusTermMinimalsDB getInstance(CorpusMapper corpusMapper, String field) throws IOException {
+		return getInstance(corpusMapper, field, BuildStrategy.auto);
+	}
+
+	/**
+	 * Get the statistics of a field of the corpus, building and storing them first if needed. The instance is kept
+	 * with the {@link CorpusMapper}, so the stored statistics are only mapped once for each (shared) mapper.
+	 * @param corpusMapper the {@link CorpusMapper} of the corpus
+	 * @param field the field
+	 * @param buildStrategy how to build the statistics if they haven't been stored
+	 * @return the statistics
+	 * @throws IOException
+	 */
+	public static CorpusTermMinimalsDB getInstance(CorpusMapper corpusMapper, String field, BuildStrategy buildStrategy) throws IOException {
+		CorpusTermMinimalsDB corpusTermMinimalsDB = corpusMapper.getCorpusTermMinimalsDB(field);
+		if (corpusTermMinimalsDB!=null) {return corpusTermMinimalsDB;}
+		String name = getName(corpusMapper.getCorpus(), field);
+		BuildStrategy built = null;
+		ByteBuffer buffer = retrieveBuffer(corpusMapper, name);
+		if (buffer==null) {
+			Object lock = getLock(name);
+			synchronized (lock) {
+				buffer = retrieveBuffer(corpusMapper, name); // check again in case another thread built it while we waited
+				if (buffer==null) {
+					if (buildStrategy==BuildStrategy.auto) {
+						// walking the postings means going through the vocabulary of the whole index, so only do it if the corpus is a good part of the index
+						buildStrategy = corpusMapper.getCorpus().size()*4 >= corpusMapper.getLeafReader().numDocs() ? BuildStrategy.postings : BuildStrategy.termVectors;
 					}
+					TermStats termStats = buildStrategy==BuildStrategy.postings ? buildFromReaderTerms(corpusMapper, field) : buildFromDocumentTermVectors(corpusMapper, field);
+					termStats.store(corpusMapper.getStorage(), name, corpusMapper.getCorpus().size());
+					built = buildStrategy;
+					buffer = retrieveBuffer(corpusMapper, name);
+				}
+				locks.remove(name, lock); // anyone arriving later will find the stored statistics
+			}
+		}
+		if (buffer==null) {
+			throw new IOException("Unable to find corpus term statistics for "+field+" in corpus "+corpusMapper.getCorpus().getId());
+		}
+		return corpusMapper.putCorpusTermMinimalsDB(field, new CorpusTermMinimalsDB(buffer, built));
+	}
+	
+	/**
+	 * Build the statistics of a corpus that hasn't been stored yet from those of a parent corpus with mostly the same
+	 * documents (like when documents are added to or removed from a corpus): the term vectors of the added documents
+	 * are added to the parent's statistics and those of the removed documents are subtracted, then z-scores are
+	 * recalculated. Nothing is done if the parent's statistics haven't been built or if so many documents changed
+	 * that building from scratch would be as fast.
+	 * @param parentCorpusMapper the {@link CorpusMapper} of the parent corpus
+	 * @param corpusMapper the {@link CorpusMapper} of the new corpus
+	 * @param field the field for which to build statistics
+	 * @return true if the statistics were built from the parent
+	 * @throws IOException
+	 */
+	public static boolean buildFromParent(CorpusMapper parentCorpusMapper, CorpusMapper corpusMapper, String field) throws IOException {
+		if (exists(corpusMapper, field) || !exists(parentCorpusMapper, field)) {return false;}
+		
+		Set<String> parentIds = new HashSet<String>(parentCorpusMapper.getCorpus().getDocumentIds());
+		Set<String> ids = new HashSet<String>(corpusMapper.getCorpus().getDocumentIds());
+		int[] added = new int[0];
+		int addedCount = 0;
+		for (String id : ids) {
+			if (parentIds.contains(id)==false) {
+				int doc = corpusMapper.getLuceneIdFromDocumentId(id);
+				if (doc>-1) {
+					added = ArrayUtil.grow(added, addedCount+1);
+					added[addedCount++] = doc;
 				}
 			}
 		}
+		int[] removed = new int[0];
+		int removedCount = 0;
+		for (String id : parentIds) {
+			if (ids.contains(id)==false) {
+				int doc = parentCorpusMapper.getLuceneIdFromDocumentId(id);
+				if (doc>-1) {
+					removed = ArrayUtil.grow(removed, removedCount+1);
+					removed[removedCount++] = doc;
+				}
+			}
+		}
+		if (addedCount+removedCount>=ids.size()) {return false;}
+		Arrays.sort(added, 0, addedCount); // term vectors are read most efficiently in Lucene id order
+		Arrays.sort(removed, 0, removedCount);
 		
+		String name = getName(corpusMapper.getCorpus(), field);
+		Object lock = getLock(name);
+		synchronized (lock) {
+			boolean built = false;
+			if (!exists(corpusMapper, field)) {
+				CorpusTermMinimalsDB parent = getInstance(parentCorpusMapper, field);
+				TermStats termStats = new TermStats();
+				BytesRef bytesRef = new BytesRef();
+				for (int ord=0, len=parent.size(); ord<len; ord++) {
+					termStats.add(parent.getTermBytes(ord, bytesRef), parent.getRawFreq(ord), parent.getInDocumentsCount(ord));
+				}
+				if (addedCount>0) {
+					termStats.addAll(invoke(corpusMapper, new DocumentTermVectorsTask(corpusMapper.getLeafReader(), field, added, 0, addedCount)));
+				}
+				if (removedCount>0) {
+					termStats.subtractAll(invoke(parentCorpusMapper, new DocumentTermVectorsTask(parentCorpusMapper.getLeafReader(), field, removed, 0, removedCount)));
+				}
+				termStats.store(corpusMapper.getStorage(), name, corpusMapper.getCorpus().size());
+				built = true;
+			}
+			locks.remove(name, lock);
+			return built;
+		}
+	}
+	
+	/**
+	 * Build the statistics by going through the terms of the field in each segment and counting the postings that
+	 * are in the corpus, with segments counted concurrently on the shared {@link ForkJoinPool}.
+	 * @param corpusMapper
+	 * @param field
+	 * @throws IOException
+	 */
+	private static TermStats buildFromReaderTerms(CorpusMapper corpusMapper, String field) throws IOException {
+		List<LeafReaderContext> contexts = corpusMapper.getLeafReaderContexts();
+		if (contexts.isEmpty()) {return new TermStats();}
+		corpusMapper.getBitSet(contexts.get(0)); // build the segment bitsets before forking
+		return invoke(corpusMapper, new ReaderTermsTask(corpusMapper, field, contexts, 0, contexts.size()));
+	}
+	
+	/**
+	 * Build the statistics by reading the term vector of each document in the corpus, with shards of
+	 * documents counted concurrently on the shared {@link ForkJoinPool}.
+	 * @param corpusMapper
+	 * @param field
+	 * @throws IOException
+	 */
+	private static TermStats buildFromDocumentTermVectors(CorpusMapper corpusMapper, String field) throws IOException {
+		int[] luceneIds = corpusMapper.getLuceneIds();
+		return invoke(corpusMapper, new DocumentTermVectorsTask(corpusMapper.getLeafReader(), field, luceneIds, 0, luceneIds.length));
+	}
+	
+	private static TermStats invoke(CorpusMapper corpusMapper, RecursiveTask<TermStats> task) throws IOException {
+		try {
+			return corpusMapper.getStorage().getLuceneManager().getForkJoinPool().invoke(task);
+		}
+		catch (RuntimeException e) {
+			// the pool may rethrow a copy of the task's exception, so look through the causes
+			for (Throwable cause = e.getCause(); cause!=null; cause = cause.getCause()) {
+				if (cause instanceof IOException) {throw (IOException) cause;}
+			}
+			throw e;
+		}
+	}
+	
+	private static class ReaderTermsTask extends RecursiveTask<TermStats> {
+		private static final long serialVersionUID = 1L;
+		private final CorpusMapper corpusMapper;
+		private final String field;
+		private final List<LeafReaderContext> contexts;
+		private final int from;
+		private final int to;
+		private ReaderTermsTask(CorpusMapper corpusMapper, String field, List<LeafReaderContext> contexts, int from, int to) {
+			this.corpusMapper = corpusMapper;
+			this.field = field;
+			this.contexts = contexts;
+			this.from = from;
+			this.to = to;
+		}
+		@Override
+		protected TermStats compute() {
+			if (to-from>1) {
+				int mid = (from+to) >>> 1;
+				ReaderTermsTask left = new ReaderTermsTask(corpusMapper, field, contexts, from, mid);
+				left.fork();
+				TermStats termStats = new ReaderTermsTask(corpusMapper, field, contexts, mid, to).compute();
+				return termStats.addAll(left.join());
+			}
+			try {
+				return compute(contexts.get(from));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		private TermStats compute(LeafReaderContext context) throws IOException {
+			TermStats termStats = new TermStats();
+			BitSet bitSet = corpusMapper.getBitSet(context);
+			LeafReader reader = context.reader();
+			Terms terms = reader.terms(field);
+			if (bitSet==null || terms==null) {return termStats;}
+			int length = bitSet.length();
+			// no need to look at postings if every live document in the segment is in the corpus
+			boolean allDocs = reader.numDeletedDocs()==0 && bitSet.cardinality()==reader.maxDoc();
+			Bits liveDocs = reader.getLiveDocs();
+			TermsEnum termsEnum = terms.iterator();
+			DocsEnum docsEnum = null;
+			BytesRef bytesRef = termsEnum.next();
+			int rawFreq;
+			int inDocumentsCount;
+			int doc;
+			while (bytesRef!=null) {
+				if (allDocs) {
+					rawFreq = (int) termsEnum.totalTermFreq();
+					inDocumentsCount = termsEnum.docFreq();
+				}
+				else {
+					rawFreq = 0;
+					inDocumentsCount = 0;
+					docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_FREQS);
+					doc = docsEnum.nextDoc();
+					while (doc!=DocsEnum.NO_MORE_DOCS && doc<length) {
+						if (bitSet.get(doc)) {
+							rawFreq += docsEnum.freq();
+							inDocumentsCount++;
+							doc = docsEnum.nextDoc();
+						}
+						else {
+							// leapfrog to the next corpus document
+							doc = doc+1<length ? bitSet.nextSetBit(doc+1) : DocsEnum.NO_MORE_DOCS;
+							if (doc!=DocsEnum.NO_MORE_DOCS) {
+								doc = docsEnum.advance(doc);
+							}
+						}
+					}
+				}
+				if (inDocumentsCount>0) {
+					termStats.add(bytesRef, rawFreq, inDocumentsCount);
+				}
+				bytesRef = termsEnum.next();
+			}
+			return termStats;
+		}
+	}
+	
+	private static class DocumentTermVectorsTask extends RecursiveTask<TermStats> {
+		private static final long serialVersionUID = 1L;
+		private static final int DOCUMENTS_PER_TASK = 128;
+		private final LeafReader reader;
+		private final String field;
+		private final int[] luceneIds;
+		private final int from;
+		private final int to;
+		private DocumentTermVectorsTask(LeafReader reader, String field, int[] luceneIds, int from, int to) {
+			this.reader = reader;
+			this.field = field;
+			this.luceneIds = luceneIds;
+			this.from = from;
+			this.to = to;
+		}
+		@Override
+		protected TermStats compute() {
+			if (to-from>DOCUMENTS_PER_TASK) {
+				int mid = (from+to) >>> 1;
+				DocumentTermVectorsTask left = new DocumentTermVectorsTask(reader, field, luceneIds, from, mid);
+				left.fork();
+				TermStats termStats = new DocumentTermVectorsTask(reader, field, luceneIds, mid, to).compute();
+				return termStats.addAll(left.join());
+			}
+			TermStats termStats = new TermStats();
+			try {
+				TermsEnum termsEnum = null;
+				for (int i=from; i<to; i++) {
+					Terms terms = reader.getTermVector(luceneIds[i], field);
+					if (terms!=null) {
+						termsEnum = terms.iterator();
+						BytesRef bytesRef = termsEnum.next();
+						while (bytesRef!=null) {
+							termStats.add(bytesRef, (int) termsEnum.totalTermFreq(), 1);
+							bytesRef = termsEnum.next();
+						}
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return termStats;
+		}
+	}
+	
+	/**
+	 * Raw frequencies and in documents counts for a shard of the corpus, keyed by term bytes in a {@link BytesRefHash}
+	 * (an open-addressing hash of term ids) with parallel primitive arrays indexed by term id.
+	 */
+	private static class TermStats {
+		private final BytesRefHash terms = new BytesRefHash();
+		private int[] rawFreqs = new int[16];
+		private int[] inDocumentsCounts = new int[16];
+		private void add(BytesRef term, int rawFreq, int inDocumentsCount) {
+			int id = terms.add(term);
+			if (id<0) {id = -id-1;} // already there
+			else if (id>=rawFreqs.length) {
+				rawFreqs = ArrayUtil.grow(rawFreqs, id+1);
+				inDocumentsCounts = ArrayUtil.grow(inDocumentsCounts, id+1);
+			}
+			rawFreqs[id] += rawFreq;
+			inDocumentsCounts[id] += inDocumentsCount;
+		}
+		private TermStats addAll(TermStats other) {
+			BytesRef bytesRef = new BytesRef();
+			for (int id=0, len=other.terms.size(); id<len; id++) {
+				add(other.terms.get(id, bytesRef), other.rawFreqs[id], other.inDocumentsCounts[id]);
+			}
+			return this;
+		}
+		private TermStats subtractAll(TermStats other) {
+			BytesRef bytesRef = new BytesRef();
+			for (int id=0, len=other.terms.size(); id<len; id++) {
+				add(other.terms.get(id, bytesRef), -other.rawFreqs[id], -other.inDocumentsCounts[id]);
+			}
+			return this;
+		}
+		private void store(Storage storage, String name, int documentsCount) throws IOException {
+			final BytesRef[] refs = new BytesRef[terms.size()];
+			final int[] ids = new int[terms.size()];
+			int size = 0;
+			for (int id=0, len=terms.size(); id<len; id++) {
+				refs[id] = terms.get(id, new BytesRef());
+				if (inDocumentsCounts[id]>0) { // terms may have been subtracted out
+					ids[size++] = id;
+				}
+			}
+			new InPlaceMergeSorter() {
+				@Override
+				protected int compare(int i, int j) {
+					return refs[ids[i]].compareTo(refs[ids[j]]);
+				}
+				@Override
+				protected void swap(int i, int j) {
+					int id = ids[i];
+					ids[i] = ids[j];
+					ids[j] = id;
+				}
+			}.sort(0, size);
+			List<BytesRef> sortedTerms = new ArrayList<BytesRef>(size);
+			int[] sortedRawFreqs = new int[size];
+			int[] sortedInDocumentsCounts = new int[size];
+			for (int i=0; i<size; i++) {
+				sortedTerms.add(refs[ids[i]]);
+				sortedRawFreqs[i] = rawFreqs[ids[i]];
+				sortedInDocumentsCounts[i] = inDocumentsCounts[ids[i]];
+			}
+			CorpusTermMinimalsDB.store(storage, name, sortedTerms, sortedRawFreqs, sortedInDocumentsCounts, documentsCount);
+		}
+	}
+
+	/**
+	 * Store the statistics for the specified terms, calculating z-scores from the raw frequencies.
+	 * @param storage the storage to use
+	 * @param name the name of the stored buffer
+	 * @param terms the terms, sorted in {@link BytesRef} order
+	 * @param rawFreqs the raw frequency of each term (may be longer than the list of terms)
+	 * @param inDocumentsCounts the number of documents containing each term (may be longer than the list of terms)
+	 * @param documentsCount the number of documents in the corpus
+	 * @throws IOException
+	 */
+	private static void store(Storage storage, String name, List<BytesRef> terms, int[] rawFreqs, int[] inDocumentsCounts, int documentsCount) throws IOException {
 		// calculate aggregate stats
+		int size = terms.size();
 		SummaryStatistics stats = new SummaryStatistics();
-		for (AtomicInteger ai : rawFreqsMap.values()) {stats.addValue((int) ai.get());}
+		int totalRawFreq = 0;
+		for (int i=0; i<size; i++) {
+			stats.addValue(rawFreqs[i]);
+			totalRawFreq += rawFreqs[i];
+		}
 		float mean = (float) stats.getMean();
-		float stdDev = (float) stats.getStandardDeviation();		
-		CorpusTermMinimal corpusTermMinimal;
-		int documentsCount = corpusMapper.getCorpus().size();
-		int rawFreq;
-		// create map
-		CorpusTermMinimalsDB corpusTermMinimalsDB = new CorpusTermMinimalsDB(corpusMapper, field, false);
-		for (Map.Entry<String, AtomicInteger> entry : inDocumentsCountMap.entrySet()) {
-			String term = entry.getKey();
-			rawFreq = entry.getValue().get();
-			corpusTermMinimal = new CorpusTermMinimal(term, rawFreqsMap.get(term).get(), inDocumentsCountMap.get(term).get(), documentsCount, ((float) rawFreq-mean) / stdDev);
-			corpusTermMinimalsDB.put(term, corpusTermMinimal);
-		}
-		corpusTermMinimalsDB.commit();
-		corpusTermMinimalsDB.close();		
+		float stdDev = (float) stats.getStandardDeviation();
+
+		int termBytesLength = 0;
+		for (BytesRef term : terms) {termBytesLength += term.length;}
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + (size+1)*4 + size*20 + termBytesLength);
+		buffer.putInt(FORMAT);
+		buffer.putInt(size);
+		buffer.putInt(documentsCount);
+		buffer.putInt(termBytesLength);
+		buffer.putInt(totalRawFreq);
+		int offset = 0;
+		for (BytesRef term : terms) {
+			buffer.putInt(offset);
+			offset += term.length;
+		}
+		buffer.putInt(offset);
+		for (int i=0; i<size; i++) {buffer.putInt(rawFreqs[i]);}
+		for (int i=0; i<size; i++) {buffer.putInt(inDocumentsCounts[i]);}
+		for (int i=0; i<size; i++) {buffer.putFloat(((float) rawFreqs[i]-mean) / stdDev);}
+		for (int ord : getOrdinalsByDescendingValue(rawFreqs, size)) {buffer.putInt(ord);}
+		for (int ord : getOrdinalsByDescendingValue(inDocumentsCounts, size)) {buffer.putInt(ord);}
+		for (BytesRef term : terms) {buffer.put(term.bytes, term.offset, term.length);}
+		buffer.flip();
+		storage.storeBuffer(buffer, name);
+	}
+	
+	/**
+	 * Sort ordinals by descending value with a stable sort, so that ties stay in term order.
+	 * @param values the value of each ordinal
+	 * @param size the number of ordinals
+	 * @return the sorted ordinals
+	 */
+	private static int[] getOrdinalsByDescendingValue(final int[] values, int size) {
+		final int[] ords = new int[size];
+		for (int i=0; i<size; i++) {ords[i] = i;}
+		new InPlaceMergeSorter() {
+			@Override
+			protected int compare(int i, int j) {
+				return Integer.compare(values[ords[j]], values[ords[i]]);
+			}
+			@Override
+			protected void swap(int i, int j) {
+				int ord = ords[i];
+				ords[i] = ords[j];
+				ords[j] = ord;
+			}
+		}.sort(0, size);
+		return ords;
 	}
 }
@@ -243,6 +243,10 @@ public class DocumentMetadata implements Comparable<DocumentMetadata> {
 	public int getLastTokenPositionIndex(TokenType tokenType) {
 		return Integer.parseInt(getProperty("lastTokenPositionIndex-"+tokenType.name(), "0"));
 	}
+
+	public int getLastTokenOffsetIndex(TokenType tokenType) {
+		return Integer.parseInt(getProperty("lastTokenStartOffset-"+tokenType.name(), "0"));
+	}
 	
 	/**
 	 * Get the location of the source. This is a String representation that will
@@ -0,0 +1,394 @@
+package org.voyanttools.trombone.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.voyanttools.trombone.storage.Storage;
+
+/**
+ * A columnar snapshot of the document metadata of a corpus: per-document statistics (tokens, types, mean and standard
+ * deviation of type frequencies, last token position and last token offset for each {@link TokenType}) in fixed-width
+ * columns and the most used descriptive fields (title, author, language and publication date) in dictionary-encoded
+ * columns. The snapshot is gathered once from the {@link DocumentMetadata} of each document (usually when the corpus
+ * is built) and kept in a single stored buffer (memory-mapped for file storage). The metadata remains the source of
+ * truth, this is only a compact copy so that tools don't need to load the metadata of every document.
+ *
+ * <pre>
+ * int format, int documentsCount, int tokenTypesCount, int stringColumnsCount
+ * int[stringColumnsCount] start of each string column
+ * for each token type (in {@link TokenType} order):
+ *   int[documentsCount] tokens counts
+ *   int[documentsCount] types counts
+ *   float[documentsCount] types count means
+ *   float[documentsCount] types count standard deviations
+ *   int[documentsCount] last token positions
+ *   int[documentsCount] last token offsets
+ * for each string column (title, author, language, pubDate):
+ *   int valuesCount
+ *   int[documentsCount] value of each document (an index in the sorted values)
+ *   int[valuesCount+1] value offsets
+ *   byte[] UTF-8 values in {@link String} order
+ * </pre>
+ *
+ * @author sgs
+ *
+ */
+public class DocumentStatistics {
+
+	private static final int FORMAT = 2;
+
+	private static final int COLUMNS_COUNT = 6;
+
+	private static final int TOKENS_COUNTS = 0;
+
+	private static final int TYPES_COUNTS = 1;
+
+	private static final int TYPES_COUNT_MEANS = 2;
+
+	private static final int TYPES_COUNT_STDDEVS = 3;
+
+	private static final int LAST_TOKEN_POSITIONS = 4;
+
+	private static final int LAST_TOKEN_OFFSETS = 5;
+
+	private static final int TITLE = 0;
+
+	private static final int AUTHOR = 1;
+
+	private static final int LANGUAGE = 2;
+
+	private static final int PUBDATE = 3;
+
+	private static final int STRING_COLUMNS_COUNT = 4;
+
+	private static final int HEADER_LENGTH = 16 + STRING_COLUMNS_COUNT*4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * locks for statistics that are being built, keyed by the name of the stored statistics
+	 */
+	private static final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	private ByteBuffer buffer;
+
+	private int documentsCount;
+
+	/**
+	 * the decoded values of each string column, created when first needed
+	 */
+	private String[][] values = new String[STRING_COLUMNS_COUNT][];
+
+	private DocumentStatistics(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (!isCurrent(buffer)) {
+			throw new IOException("Unrecognized format for document statistics.");
+		}
+		this.documentsCount = buffer.getInt(4);
+	}
+
+	private static boolean isCurrent(ByteBuffer buffer) {
+		return buffer.capacity()>=HEADER_LENGTH && buffer.getInt(0)==FORMAT && buffer.getInt(8)==TokenType.values().length && buffer.getInt(12)==STRING_COLUMNS_COUNT;
+	}
+
+	public int getDocumentsCount() {
+		return documentsCount;
+	}
+
+	private int getIndex(TokenType tokenType, int column, int documentPosition) {
+		return HEADER_LENGTH + ((tokenType.ordinal()*COLUMNS_COUNT + column)*documentsCount + documentPosition)*4;
+	}
+
+	public int getTokensCount(TokenType tokenType, int documentPosition) {
+		return buffer.getInt(getIndex(tokenType, TOKENS_COUNTS, documentPosition));
+	}
+
+	public int getTypesCount(TokenType tokenType, int documentPosition) {
+		return buffer.getInt(getIndex(tokenType, TYPES_COUNTS, documentPosition));
+	}
+
+	public float getTypesCountMean(TokenType tokenType, int documentPosition) {
+		return buffer.getFloat(getIndex(tokenType, TYPES_COUNT_MEANS, documentPosition));
+	}
+
+	public float getTypesCountStdDev(TokenType tokenType, int documentPosition) {
+		return buffer.getFloat(getIndex(tokenType, TYPES_COUNT_STDDEVS, documentPosition));
+	}
+
+	public int getLastTokenPosition(TokenType tokenType, int documentPosition) {
+		return buffer.getInt(getIndex(tokenType, LAST_TOKEN_POSITIONS, documentPosition));
+	}
+
+	public int getLastTokenOffset(TokenType tokenType, int documentPosition) {
+		return buffer.getInt(getIndex(tokenType, LAST_TOKEN_OFFSETS, documentPosition));
+	}
+
+	public int[] getTokensCounts(TokenType tokenType) {
+		return getInts(tokenType, TOKENS_COUNTS);
+	}
+
+	public int[] getTypesCounts(TokenType tokenType) {
+		return getInts(tokenType, TYPES_COUNTS);
+	}
+
+	public float[] getTypesCountMeans(TokenType tokenType) {
+		return getFloats(tokenType, TYPES_COUNT_MEANS);
+	}
+
+	public float[] getTypesCountStdDevs(TokenType tokenType) {
+		return getFloats(tokenType, TYPES_COUNT_STDDEVS);
+	}
+
+	public int[] getLastTokenPositions(TokenType tokenType) {
+		return getInts(tokenType, LAST_TOKEN_POSITIONS);
+	}
+
+	public int[] getLastTokenOffsets(TokenType tokenType) {
+		return getInts(tokenType, LAST_TOKEN_OFFSETS);
+	}
+
+	private int[] getInts(TokenType tokenType, int column) {
+		int[] values = new int[documentsCount];
+		int index = getIndex(tokenType, column, 0);
+		for (int i=0; i<documentsCount; i++) {
+			values[i] = buffer.getInt(index + i*4);
+		}
+		return values;
+	}
+
+	private float[] getFloats(TokenType tokenType, int column) {
+		float[] values = new float[documentsCount];
+		int index = getIndex(tokenType, column, 0);
+		for (int i=0; i<documentsCount; i++) {
+			values[i] = buffer.getFloat(index + i*4);
+		}
+		return values;
+	}
+
+	public String getTitle(int documentPosition) {
+		return getString(TITLE, documentPosition);
+	}
+
+	public String getAuthor(int documentPosition) {
+		return getString(AUTHOR, documentPosition);
+	}
+
+	public String getLanguageCode(int documentPosition) {
+		return getString(LANGUAGE, documentPosition);
+	}
+
+	public String getPubDate(int documentPosition) {
+		return getString(PUBDATE, documentPosition);
+	}
+
+	/**
+	 * Get the index of the value of a string column for a document among the sorted values of the column,
+	 * so that documents can be compared without decoding strings.
+	 * @param column the string column
+	 * @param documentPosition the position of the document
+	 * @return the index of the value
+	 */
+	private int getStringCode(int column, int documentPosition) {
+		return buffer.getInt(buffer.getInt(16 + column*4) + 4 + documentPosition*4);
+	}
+
+	private String getString(int column, int documentPosition) {
+		return getStrings(column)[getStringCode(column, documentPosition)];
+	}
+
+	private synchronized String[] getStrings(int column) {
+		if (values[column]==null) {
+			int start = buffer.getInt(16 + column*4);
+			int valuesCount = buffer.getInt(start);
+			int offsetsStart = start + 4 + documentsCount*4;
+			int bytesStart = offsetsStart + (valuesCount+1)*4;
+			String[] strings = new String[valuesCount];
+			for (int i=0; i<valuesCount; i++) {
+				int offset = buffer.getInt(offsetsStart + i*4);
+				byte[] bytes = new byte[buffer.getInt(offsetsStart + (i+1)*4) - offset];
+				for (int j=0; j<bytes.length; j++) {
+					bytes[j] = buffer.get(bytesStart + offset + j);
+				}
+				strings[i] = new String(bytes, UTF8);
+			}
+			values[column] = strings;
+		}
+		return values[column];
+	}
+
+	/**
+	 * Get a comparator of document positions that puts documents in the same order as a {@link IndexedDocument.IndexedDocumentPriorityQueue}
+	 * with the specified sort gives them, but reading from this snapshot instead of the metadata of each document.
+	 * @param sort the sort
+	 * @return a comparator of document positions
+	 */
+	public Comparator<Integer> getComparator(final IndexedDocument.Sort sort) {
+		return new Comparator<Integer>() {
+			@Override
+			public int compare(Integer position1, Integer position2) {
+				int d1 = position1;
+				int d2 = position2;
+				switch (sort) {
+				case INDEXDESC:
+					return Integer.compare(d2, d1);
+				case TITLEASC:
+					return Integer.compare(getStringCode(TITLE, d1), getStringCode(TITLE, d2));
+				case TITLEDESC:
+					return Integer.compare(getStringCode(TITLE, d2), getStringCode(TITLE, d1));
+				case AUTHORASC:
+					return Integer.compare(getStringCode(AUTHOR, d1), getStringCode(AUTHOR, d2));
+				case AUTHORDESC:
+					return Integer.compare(getStringCode(AUTHOR, d2), getStringCode(AUTHOR, d1));
+				case TOKENSCOUNTLEXICALASC:
+					return Integer.compare(getTokensCount(TokenType.lexical, d1), getTokensCount(TokenType.lexical, d2));
+				case TOKENSCOUNTLEXICALDESC:
+					return Integer.compare(getTokensCount(TokenType.lexical, d2), getTokensCount(TokenType.lexical, d1));
+				case TYPESCOUNTLEXICALASC:
+					return Integer.compare(getTypesCount(TokenType.lexical, d1), getTypesCount(TokenType.lexical, d2));
+				case TYPESCOUNTLEXICALDESC:
+					return Integer.compare(getTypesCount(TokenType.lexical, d2), getTypesCount(TokenType.lexical, d1));
+				case TYPETOKENRATIOLEXICALASC:
+					return Float.compare(getTypeTokenRatio(d1), getTypeTokenRatio(d2));
+				case TYPETOKENRATIOLEXICALDESC:
+					return Float.compare(getTypeTokenRatio(d2), getTypeTokenRatio(d1));
+				case PUBDATEASC: // like the metadata comparators, ascending puts the latest dates first and ties are by title
+				case PUBDATEDESC:
+					int p1 = getStringCode(PUBDATE, d1);
+					int p2 = getStringCode(PUBDATE, d2);
+					if (p1==p2) {
+						return Integer.compare(getStringCode(TITLE, d1), getStringCode(TITLE, d2));
+					}
+					return sort==IndexedDocument.Sort.PUBDATEASC ? Integer.compare(p2, p1) : Integer.compare(p1, p2);
+				default:
+					return Integer.compare(d1, d2);
+				}
+			}
+		};
+	}
+
+	private float getTypeTokenRatio(int documentPosition) {
+		return (float) getTypesCount(TokenType.lexical, documentPosition) / (float) getTokensCount(TokenType.lexical, documentPosition);
+	}
+
+	private static String getName(Corpus corpus) {
+		return corpus.getId()+"-documentStats";
+	}
+
+	private static ByteBuffer retrieveBuffer(Storage storage, String name) throws IOException {
+		if (!storage.isStored(name)) {return null;}
+		ByteBuffer buffer = storage.retrieveBuffer(name);
+		return buffer!=null && isCurrent(buffer) ? buffer : null; // snapshots in an older format are gathered again
+	}
+
+	/**
+	 * Get the document statistics of the specified corpus, gathering them from the metadata of each document if they
+	 * haven't been stored yet. Callers should usually go through {@link Corpus#getDocumentStatistics()}, which keeps
+	 * the loaded instance.
+	 * @param storage the storage to use
+	 * @param corpus the corpus
+	 * @return the document statistics
+	 * @throws IOException
+	 */
+	public static DocumentStatistics getInstance(Storage storage, Corpus corpus) throws IOException {
+		String name = getName(corpus);
+		ByteBuffer buffer = retrieveBuffer(storage, name);
+		if (buffer==null) {
+			Object lock = new Object();
+			Object existing = locks.putIfAbsent(name, lock);
+			if (existing!=null) {lock = existing;}
+			synchronized (lock) {
+				buffer = retrieveBuffer(storage, name); // check again in case another thread built it while we waited
+				if (buffer==null) {
+					build(storage, corpus, name);
+					buffer = retrieveBuffer(storage, name);
+				}
+				locks.remove(name, lock); // anyone arriving later will find the stored statistics
+			}
+		}
+		if (buffer==null) {
+			throw new IOException("Unable to find document statistics for corpus "+corpus.getId());
+		}
+		return new DocumentStatistics(buffer);
+	}
+
+	private static void build(Storage storage, Corpus corpus, String name) throws IOException {
+		int documentsCount = corpus.size();
+		TokenType[] tokenTypes = TokenType.values();
+		int numericLength = tokenTypes.length*COLUMNS_COUNT*documentsCount*4;
+
+		// gather the numeric columns and the string values of each document
+		ByteBuffer numeric = ByteBuffer.allocate(numericLength);
+		String[][] strings = new String[STRING_COLUMNS_COUNT][documentsCount];
+		int columnLength = documentsCount*4;
+		int documentPosition = 0;
+		for (IndexedDocument document : corpus) {
+			DocumentMetadata metadata = document.getMetadata();
+			for (TokenType tokenType : tokenTypes) {
+				int index = (tokenType.ordinal()*COLUMNS_COUNT*documentsCount + documentPosition)*4;
+				numeric.putInt(index + TOKENS_COUNTS*columnLength, metadata.getTokensCount(tokenType));
+				numeric.putInt(index + TYPES_COUNTS*columnLength, metadata.getTypesCount(tokenType));
+				numeric.putFloat(index + TYPES_COUNT_MEANS*columnLength, metadata.getTypesCountMean(tokenType));
+				numeric.putFloat(index + TYPES_COUNT_STDDEVS*columnLength, metadata.getTypesCountStdDev(tokenType));
+				numeric.putInt(index + LAST_TOKEN_POSITIONS*columnLength, metadata.getLastTokenPositionIndex(tokenType));
+				numeric.putInt(index + LAST_TOKEN_OFFSETS*columnLength, metadata.getLastTokenOffsetIndex(tokenType));
+			}
+			strings[TITLE][documentPosition] = metadata.getTitle();
+			strings[AUTHOR][documentPosition] = metadata.getAuthor();
+			strings[LANGUAGE][documentPosition] = metadata.getLanguageCode();
+			strings[PUBDATE][documentPosition] = metadata.getPubDate();
+			documentPosition++;
+		}
+
+		// build the sorted dictionary of each string column
+		byte[][][] dictionaries = new byte[STRING_COLUMNS_COUNT][][];
+		int[][] codes = new int[STRING_COLUMNS_COUNT][documentsCount];
+		int stringsLength = 0;
+		for (int column=0; column<STRING_COLUMNS_COUNT; column++) {
+			TreeMap<String, Integer> dictionary = new TreeMap<String, Integer>();
+			for (String string : strings[column]) {dictionary.put(string, 0);}
+			dictionaries[column] = new byte[dictionary.size()][];
+			int code = 0;
+			for (String string : dictionary.keySet()) {
+				dictionary.put(string, code);
+				dictionaries[column][code++] = string.getBytes(UTF8);
+			}
+			for (int i=0; i<documentsCount; i++) {
+				codes[column][i] = dictionary.get(strings[column][i]);
+			}
+			stringsLength += 4 + documentsCount*4 + (dictionaries[column].length+1)*4;
+			for (byte[] bytes : dictionaries[column]) {stringsLength += bytes.length;}
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + numericLength + stringsLength);
+		buffer.putInt(FORMAT);
+		buffer.putInt(documentsCount);
+		buffer.putInt(tokenTypes.length);
+		buffer.putInt(STRING_COLUMNS_COUNT);
+		int start = HEADER_LENGTH + numericLength;
+		for (int column=0; column<STRING_COLUMNS_COUNT; column++) {
+			buffer.putInt(start);
+			start += 4 + documentsCount*4 + (dictionaries[column].length+1)*4;
+			for (byte[] bytes : dictionaries[column]) {start += bytes.length;}
+		}
+		numeric.rewind();
+		buffer.put(numeric);
+		for (int column=0; column<STRING_COLUMNS_COUNT; column++) {
+			buffer.putInt(dictionaries[column].length);
+			for (int code : codes[column]) {buffer.putInt(code);}
+			int offset = 0;
+			for (byte[] bytes : dictionaries[column]) {
+				buffer.putInt(offset);
+				offset += bytes.length;
+			}
+			buffer.putInt(offset);
+			for (byte[] bytes : dictionaries[column]) {buffer.put(bytes);}
+		}
+		buffer.flip();
+		storage.storeBuffer(buffer, name);
+	}
+}
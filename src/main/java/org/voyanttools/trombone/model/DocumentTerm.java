@@ -70,7 +70,7 @@ public class DocumentTerm {
 		this.term = term;
 		this.rawFreq = rawFreq;
 		this.totalTermsCount = totalTokens;
-		this.relativeFreq = totalTokens > 0 ? ((float) rawFreq / totalTokens) * 1000000 : 0;
+		this.relativeFreq = getRelativeFrequency(rawFreq, totalTokens);
 		this.zscore = zscore;
 		this.positions = positions;
 		this.offsets = offsets;
@@ -347,11 +347,34 @@ public class DocumentTerm {
 	}
 	public float getTfIdf() {
 		if (corpusTermMinimal!=null && Float.isNaN(tfidf)) {
-			int inDocuments = corpusTermMinimal.getInDocumentsCount();
-			if (inDocuments>0) {
-				this.tfidf = ((float) rawFreq / (float) totalTermsCount) * (float) Math.log10((float) corpusTermMinimal.getDocumentsCount() / (float) inDocuments);
-			}
+			this.tfidf = getTfIdf(rawFreq, totalTermsCount, corpusTermMinimal.getInDocumentsCount(), corpusTermMinimal.getDocumentsCount());
 		}
 		return tfidf;
 	}
+	
+	/**
+	 * Calculate the relative frequency (per million tokens) the same way as instances do, so that candidates can be
+	 * compared before an instance is created.
+	 * @param rawFreq the raw frequency of the term in the document
+	 * @param totalTokens the number of tokens in the document
+	 * @return the relative frequency
+	 */
+	public static float getRelativeFrequency(int rawFreq, int totalTokens) {
+		return totalTokens > 0 ? ((float) rawFreq / totalTokens) * 1000000 : 0;
+	}
+	
+	/**
+	 * Calculate the TF-IDF the same way as instances do, so that candidates can be compared before an instance is created.
+	 * @param rawFreq the raw frequency of the term in the document
+	 * @param totalTokens the number of tokens in the document
+	 * @param inDocumentsCount the number of documents in the corpus that contain the term
+	 * @param documentsCount the number of documents in the corpus
+	 * @return the TF-IDF or NaN if no document contains the term
+	 */
+	public static float getTfIdf(int rawFreq, int totalTokens, int inDocumentsCount, int documentsCount) {
+		if (inDocumentsCount>0) {
+			return ((float) rawFreq / (float) totalTokens) * (float) Math.log10((float) documentsCount / (float) inDocumentsCount);
+		}
+		return Float.NaN;
+	}
 }
@@ -32,19 +32,26 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.voyanttools.trombone.input.source.InputSource;
 import org.voyanttools.trombone.input.source.UriInputSource;
+import org.voyanttools.trombone.lucene.CorpusMapper;
 import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.storage.StoredDocumentSourceStorage;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamOmitField;
 
 /**
  * @author sgs
@@ -59,7 +66,25 @@ public class Keywords {
 	private static String KEYWORDS_PREFIX = "keywords-";
 	private static String COMMENT = "#";
 	
+	/**
+	 * the lines of the stopword files bundled with Trombone, which don't change once loaded
+	 */
+	private static final ConcurrentMap<String, List<String>> stopwordsFiles = new ConcurrentHashMap<String, List<String>>();
+	
 	private Set<String> keywords;
+	
+	/**
+	 * the keywords as UTF-8 bytes, created when first needed (a set rather than a {@link org.apache.lucene.util.BytesRefHash}
+	 * since lookups in a hash set can be shared by threads)
+	 */
+	@XStreamOmitField
+	private Set<BytesRef> keywordsBytes = null;
+	
+	/**
+	 * bitsets of the term ordinals of the keywords for a field in a corpus, keyed by corpus ID and field
+	 */
+	@XStreamOmitField
+	private ConcurrentMap<String, FixedBitSet> ordinalsMap = null;
 
 	/**
 	 * 
@@ -71,6 +96,69 @@ public class Keywords {
 	public boolean isKeyword(String keyword) {
 		return keywords.contains(keyword);
 	}
+	
+	/**
+	 * Determine if the specified term is a keyword without decoding it to a string.
+	 * @param term the UTF-8 bytes of the term
+	 * @return true if the term is a keyword
+	 */
+	public boolean isKeyword(BytesRef term) {
+		return getKeywordsBytes().contains(term);
+	}
+	
+	private synchronized Set<BytesRef> getKeywordsBytes() {
+		if (keywordsBytes==null) {
+			Set<BytesRef> bytes = new HashSet<BytesRef>();
+			for (String keyword : keywords) {
+				bytes.add(new BytesRef(keyword));
+			}
+			keywordsBytes = bytes;
+		}
+		return keywordsBytes;
+	}
+	
+	public FixedBitSet getOrdinals(CorpusMapper corpusMapper, TokenType tokenType) throws IOException {
+		return getOrdinals(corpusMapper, tokenType.name());
+	}
+	
+	/**
+	 * Get the keywords compiled for a field of a corpus: a bitset over the term ordinals of the {@link CorpusTermMinimalsDB}
+	 * where the ordinals of keywords are set. The bitset is kept with this instance, so it's only built once for each corpus and field.
+	 * @param corpusMapper the {@link CorpusMapper} of the corpus
+	 * @param field the field
+	 * @return a bitset of term ordinals with at least one bit (don't modify it, it may be shared)
+	 * @throws IOException
+	 */
+	public FixedBitSet getOrdinals(CorpusMapper corpusMapper, String field) throws IOException {
+		ConcurrentMap<String, FixedBitSet> map = getOrdinalsMap();
+		String key = corpusMapper.getCorpus().getId()+"-"+field;
+		FixedBitSet ordinals = map.get(key);
+		if (ordinals==null) {
+			CorpusTermMinimalsDB corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, field);
+			ordinals = new FixedBitSet(Math.max(1, corpusTermMinimalsDB.size()));
+			for (String keyword : keywords) {
+				int ord = corpusTermMinimalsDB.getOrdinal(keyword);
+				if (ord>-1) {ordinals.set(ord);}
+			}
+			map.put(key, ordinals);
+		}
+		return ordinals;
+	}
+	
+	private synchronized ConcurrentMap<String, FixedBitSet> getOrdinalsMap() {
+		if (ordinalsMap==null) {
+			ordinalsMap = new ConcurrentHashMap<String, FixedBitSet>();
+		}
+		return ordinalsMap;
+	}
+	
+	/**
+	 * Forget the compiled forms of the keywords after they've changed.
+	 */
+	private synchronized void clearCompiled() {
+		keywordsBytes = null;
+		ordinalsMap = null;
+	}
 
 	public void load(Storage storage, String[] references) throws IOException {
 		for (String ref : references) {
@@ -101,6 +189,11 @@ public class Keywords {
 				}
 			}
 			else if (ref.startsWith(STOPWORDS_FILE_PREFIX)) {
+				List<String> lines = stopwordsFiles.get(ref);
+				if (lines!=null) {
+					add(lines);
+					continue;
+				}
 				URI uri;
 				InputStream inputstream;
 				// Original version gives a null pointer exception, therefore I changed getRessource to getResourceAsStream
@@ -121,7 +214,7 @@ public class Keywords {
 				
 				//List<String> refs = FileUtils.readLines(file);
 				
-				
+				stopwordsFiles.putIfAbsent(ref, refs);
 				add(refs);
 			}
 			else if (ref.startsWith(KEYWORDS_PREFIX)) {
@@ -134,6 +227,7 @@ public class Keywords {
 			}
 			else { // individual term, so let's add it
 				keywords.add(ref);
+				clearCompiled();
 			}
 		}
 	}
@@ -160,6 +254,7 @@ public class Keywords {
 				this.keywords.add(keyword);
 			}
 		}
+		clearCompiled();
 	}
 
 }
@@ -0,0 +1,237 @@
+package org.voyanttools.trombone.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.voyanttools.trombone.lucene.CorpusMapper;
+
+/**
+ * A sparse term-by-document matrix of raw frequencies for a field in a corpus, in compressed sparse row
+ * format: the rows are the term ordinals of the {@link CorpusTermMinimalsDB} for the same field and each
+ * row lists the positions of the documents that contain the term (in ascending order) with their frequencies.
+ * The matrix is built once, off the heap, and kept in a single stored buffer (memory-mapped for file storage), so per-term
+ * distributions are slices of the buffer rather than a pass over every term vector.
+ *
+ * <pre>
+ * int format, int termsCount, int documentsCount, int entriesCount
+ * int[termsCount+1] start of each row
+ * int[entriesCount] document positions
+ * int[entriesCount] raw frequencies
+ * </pre>
+ *
+ * @author sgs
+ *
+ */
+public class TermDocumentMatrix {
+
+	private static final int FORMAT = 1;
+
+	private static final int HEADER_LENGTH = 16;
+
+	/**
+	 * locks for matrices that are being built, keyed by the name of the stored matrix
+	 */
+	private static final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	private ByteBuffer buffer;
+
+	private int termsCount;
+
+	private int documentsCount;
+
+	private int rowsStart;
+
+	private int documentPositionsStart;
+
+	private int rawFreqsStart;
+
+	private TermDocumentMatrix(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.getInt(0)!=FORMAT) {
+			throw new IOException("Unrecognized format for term-document matrix.");
+		}
+		this.termsCount = buffer.getInt(4);
+		this.documentsCount = buffer.getInt(8);
+		int entriesCount = buffer.getInt(12);
+		this.rowsStart = HEADER_LENGTH;
+		this.documentPositionsStart = rowsStart + (termsCount+1)*4;
+		this.rawFreqsStart = documentPositionsStart + entriesCount*4;
+	}
+
+	public int getTermsCount() {
+		return termsCount;
+	}
+
+	public int getDocumentsCount() {
+		return documentsCount;
+	}
+
+	/**
+	 * Get the index of the first entry for the specified term.
+	 * @param ord the term ordinal
+	 * @return the index of the first entry
+	 */
+	public int getStart(int ord) {
+		return buffer.getInt(rowsStart + ord*4);
+	}
+
+	/**
+	 * Get the index after the last entry for the specified term.
+	 * @param ord the term ordinal
+	 * @return the index after the last entry
+	 */
+	public int getEnd(int ord) {
+		return buffer.getInt(rowsStart + (ord+1)*4);
+	}
+
+	public int getDocumentPosition(int entry) {
+		return buffer.getInt(documentPositionsStart + entry*4);
+	}
+
+	public int getRawFreq(int entry) {
+		return buffer.getInt(rawFreqsStart + entry*4);
+	}
+
+	/**
+	 * Fill the specified array with the raw frequencies of the term in each document.
+	 * @param ord the term ordinal
+	 * @param documentRawFreqs an array with a length of at least the number of documents (it's cleared first)
+	 * @return the total raw frequency of the term
+	 */
+	public int getRawFreqs(int ord, int[] documentRawFreqs) {
+		for (int i=0; i<documentsCount; i++) {documentRawFreqs[i] = 0;}
+		int total = 0;
+		int freq;
+		for (int entry=getStart(ord), end=getEnd(ord); entry<end; entry++) {
+			freq = getRawFreq(entry);
+			documentRawFreqs[getDocumentPosition(entry)] = freq;
+			total += freq;
+		}
+		return total;
+	}
+
+	private static String getName(Corpus corpus, String field) {
+		return corpus.getId()+"-termDocumentMatrix-"+field;
+	}
+
+	public static TermDocumentMatrix getInstance(CorpusMapper corpusMapper, TokenType tokenType) throws IOException {
+		return getInstance(corpusMapper, tokenType.name());
+	}
+
+	/**
+	 * Get the matrix of a field of the corpus, building and storing it first if needed. The instance is kept
+	 * with the {@link CorpusMapper}, so the stored matrix is only mapped once for each (shared) mapper.
+	 * @param corpusMapper the {@link CorpusMapper} of the corpus
+	 * @param field the field
+	 * @return the matrix
+	 * @throws IOException
+	 */
+	public static TermDocumentMatrix getInstance(CorpusMapper corpusMapper, String field) throws IOException {
+		TermDocumentMatrix termDocumentMatrix = corpusMapper.getTermDocumentMatrix(field);
+		if (termDocumentMatrix!=null) {return termDocumentMatrix;}
+		String name = getName(corpusMapper.getCorpus(), field);
+		if (!corpusMapper.getStorage().isStored(name)) {
+			Object lock = new Object();
+			Object existing = locks.putIfAbsent(name, lock);
+			if (existing!=null) {lock = existing;}
+			synchronized (lock) {
+				if (!corpusMapper.getStorage().isStored(name)) { // check again in case another thread built it while we waited
+					build(corpusMapper, field, name);
+				}
+				locks.remove(name, lock); // anyone arriving later will find the stored matrix
+			}
+		}
+		ByteBuffer buffer = corpusMapper.getStorage().retrieveBuffer(name);
+		if (buffer==null) {
+			throw new IOException("Unable to find term-document matrix for "+field+" in corpus "+corpusMapper.getCorpus().getId());
+		}
+		return corpusMapper.putTermDocumentMatrix(field, new TermDocumentMatrix(buffer));
+	}
+
+	/**
+	 * Build the matrix from the term vectors of the documents, in document order so that each row is sorted.
+	 * The size of each row is known ahead of time from the number of documents containing each term, so the
+	 * matrix is written directly into a memory-mapped temporary file that's then stored (rather than on the heap).
+	 * @param corpusMapper
+	 * @param field
+	 * @param name
+	 * @throws IOException
+	 */
+	private static void build(CorpusMapper corpusMapper, String field, String name) throws IOException {
+		CorpusTermMinimalsDB corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, field);
+		int termsCount = corpusTermMinimalsDB.size();
+		int documentsCount = corpusMapper.getCorpus().size();
+		long[] rows = new long[termsCount+1];
+		for (int ord=0; ord<termsCount; ord++) {
+			rows[ord+1] = rows[ord] + corpusTermMinimalsDB.getInDocumentsCount(ord);
+		}
+		long entriesCount = rows[termsCount];
+		long length = HEADER_LENGTH + (termsCount+1L)*4 + entriesCount*8;
+		if (length > Integer.MAX_VALUE) { // the stored matrix is read as a single buffer
+			throw new IOException("The term-document matrix for "+field+" in corpus "+corpusMapper.getCorpus().getId()+" is too large ("+entriesCount+" entries).");
+		}
+		
+		File file = File.createTempFile(name, ".tmp");
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		boolean stored = false;
+		try {
+			randomAccessFile.setLength(length);
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			buffer.putInt(0, FORMAT);
+			buffer.putInt(4, termsCount);
+			buffer.putInt(8, documentsCount);
+			buffer.putInt(12, (int) entriesCount);
+			int rowsStart = HEADER_LENGTH;
+			int documentPositionsStart = rowsStart + (termsCount+1)*4;
+			int rawFreqsStart = documentPositionsStart + (int) entriesCount*4;
+			for (int ord=0; ord<=termsCount; ord++) {
+				buffer.putInt(rowsStart + ord*4, (int) rows[ord]);
+			}
+			int[] cursors = new int[termsCount]; // the next entry to fill for each term
+			for (int ord=0; ord<termsCount; ord++) {
+				cursors[ord] = (int) rows[ord];
+			}
+	
+			LeafReader reader = corpusMapper.getLeafReader();
+			TermsEnum termsEnum = null;
+			for (int documentPosition=0; documentPosition<documentsCount; documentPosition++) {
+				int doc = corpusMapper.getLuceneIdFromDocumentPosition(documentPosition);
+				if (doc<0) {continue;} // not indexed or a repeated document
+				Terms terms = reader.getTermVector(doc, field);
+				if (terms==null) {continue;}
+				termsEnum = terms.iterator();
+				BytesRef bytesRef = termsEnum.next();
+				while (bytesRef!=null) {
+					int ord = corpusTermMinimalsDB.getOrdinal(bytesRef);
+					if (ord<0 || cursors[ord]>=rows[ord+1]) {
+						throw new IOException("The term statistics of this corpus don't match its term vectors: "+corpusMapper.getCorpus().getId());
+					}
+					buffer.putInt(documentPositionsStart + cursors[ord]*4, documentPosition);
+					buffer.putInt(rawFreqsStart + cursors[ord]*4, (int) termsEnum.totalTermFreq());
+					cursors[ord]++;
+					bytesRef = termsEnum.next();
+				}
+			}
+			buffer.force();
+			randomAccessFile.close(); // the mapping remains valid until it's collected
+			corpusMapper.getStorage().storeFile(file, name);
+			stored = true;
+		}
+		finally {
+			randomAccessFile.close();
+			if (stored==false) {
+				file.delete(); // the storage didn't take it over, so don't leave it in the temporary directory
+			}
+		}
+	}
+}
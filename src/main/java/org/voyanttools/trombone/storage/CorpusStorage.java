@@ -22,6 +22,7 @@
 package org.voyanttools.trombone.storage;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
 
 import org.voyanttools.trombone.model.Corpus;
 import org.voyanttools.trombone.util.FlexibleParameters;
@@ -37,5 +38,28 @@ public interface CorpusStorage {
 	public boolean corpusExists(String id);
 	
 	public void storeCorpus(Corpus corpus, FlexibleParameters parameters) throws IOException;
+	
+	/**
+	 * Retrieve the previously stored mapping between Lucene document ids and corpus document positions
+	 * for the specified corpus and index reader version.
+	 * 
+	 * @param id the ID of the corpus
+	 * @param version the version of the index reader for which the mapping was built
+	 * @return an array of two buffers (Lucene id to document position and document position to Lucene id) or null if not stored
+	 * @throws IOException
+	 */
+	public IntBuffer[] getLuceneIdMaps(String id, long version) throws IOException;
+	
+	/**
+	 * Store the mapping between Lucene document ids and corpus document positions for the specified corpus
+	 * and index reader version, replacing any mapping stored for another version.
+	 * 
+	 * @param id the ID of the corpus
+	 * @param version the version of the index reader for which the mapping was built
+	 * @param luceneIdToDocumentPosition the position of each Lucene document in the corpus (or -1)
+	 * @param documentPositionToLuceneId the Lucene id of each document in the corpus (or -1)
+	 * @throws IOException
+	 */
+	public void storeLuceneIdMaps(String id, long version, int[] luceneIdToDocumentPosition, int[] documentPositionToLuceneId) throws IOException;
 
 }
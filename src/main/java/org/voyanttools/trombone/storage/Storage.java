@@ -21,9 +21,11 @@
  ******************************************************************************/
 package org.voyanttools.trombone.storage;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 
@@ -77,6 +79,33 @@ public interface Storage {
 	public Object retrieve(String id) throws IOException, ClassNotFoundException;
 	
 	public Reader retrieveStringReader(String id) throws IOException;
+	
+	/**
+	 * Store the remaining bytes of the specified buffer so that they can be retrieved later with {@link #retrieveBuffer(String)}.
+	 * @param buffer the buffer to store
+	 * @param id the ID to use
+	 * @throws IOException
+	 */
+	public void storeBuffer(ByteBuffer buffer, String id) throws IOException;
+	
+	/**
+	 * Store the contents of the specified file so that they can be retrieved later with {@link #retrieveBuffer(String)}.
+	 * The file is moved (or copied and deleted), so it shouldn't be used afterwards.
+	 * @param file the file to store
+	 * @param id the ID to use
+	 * @throws IOException
+	 */
+	public void storeFile(File file, String id) throws IOException;
+	
+	/**
+	 * Retrieve a read-only buffer of previously stored bytes (memory-mapped when the storage is file-based),
+	 * or null if nothing was stored with this ID. Only absolute get methods should be used if the buffer
+	 * is shared between threads.
+	 * @param id the ID of the stored buffer
+	 * @return a read-only buffer or null
+	 * @throws IOException
+	 */
+	public ByteBuffer retrieveBuffer(String id) throws IOException;
 
 	public CorpusStorage getCorpusStorage();
 	
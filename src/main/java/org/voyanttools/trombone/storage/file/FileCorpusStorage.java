@@ -22,10 +22,16 @@
 package org.voyanttools.trombone.storage.file;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.voyanttools.trombone.model.Corpus;
 import org.voyanttools.trombone.model.CorpusMetadata;
@@ -47,6 +53,8 @@ public class FileCorpusStorage implements CorpusStorage {
 	
 	private static String METADATA_FILE_NAME = "metadata.xml"; 
 	private static String PARAMETERS_FILE_NAME = "parameters.xml"; 
+	private static String LUCENE_ID_MAPS_FILE_PREFIX = "lucene-id-maps-"; 
+	private static String LUCENE_ID_MAPS_FILE_SUFFIX = ".bin"; 
 
 	FileCorpusStorage(Storage storage, File storageLocation) {
 		this.storage = storage;
@@ -91,6 +99,80 @@ public class FileCorpusStorage implements CorpusStorage {
 		}
 	}
 
+	@Override
+	public IntBuffer[] getLuceneIdMaps(String id, long version) throws IOException {
+		File file = getLuceneIdMapsFile(id, version);
+		if (file.exists()==false) {return null;}
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			if (channel.size() < 8) {return null;} // incomplete file
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // remains valid after the channel is closed
+			int luceneIdsCount = buffer.getInt(0);
+			int documentsCount = buffer.getInt(4);
+			if (channel.size() != 8 + ((long) luceneIdsCount + documentsCount) * 4) {return null;} // incomplete file
+			buffer.position(8);
+			IntBuffer ints = buffer.slice().asIntBuffer();
+			ints.limit(luceneIdsCount);
+			IntBuffer luceneIdToDocumentPosition = ints.slice();
+			ints.clear();
+			ints.position(luceneIdsCount);
+			IntBuffer documentPositionToLuceneId = ints.slice();
+			return new IntBuffer[]{luceneIdToDocumentPosition, documentPositionToLuceneId};
+		}
+		finally {
+			randomAccessFile.close();
+		}
+	}
+
+	@Override
+	public void storeLuceneIdMaps(String id, final long version, int[] luceneIdToDocumentPosition, int[] documentPositionToLuceneId) throws IOException {
+		File corpusDirectory = new File(corpusStorageLocation, id);
+		if (corpusDirectory.exists()==false) {return;} // corpus hasn't been stored (yet)
+		
+		// write to a temporary file and then rename so that readers never see a partial file
+		File file = getLuceneIdMapsFile(id, version);
+		File tmpFile = new File(corpusDirectory, file.getName()+".tmp");
+		ByteBuffer buffer = ByteBuffer.allocate(8 + (luceneIdToDocumentPosition.length + documentPositionToLuceneId.length) * 4);
+		buffer.putInt(luceneIdToDocumentPosition.length);
+		buffer.putInt(documentPositionToLuceneId.length);
+		buffer.asIntBuffer().put(luceneIdToDocumentPosition).put(documentPositionToLuceneId);
+		buffer.rewind();
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try {
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		finally {
+			out.close();
+		}
+		if (tmpFile.renameTo(file)==false) {
+			tmpFile.delete();
+			return; // another thread probably beat us to it
+		}
+		
+		// remove maps for older versions of the index
+		final String currentName = file.getName();
+		File[] oldFiles = corpusDirectory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				String name = f.getName();
+				return name.startsWith(LUCENE_ID_MAPS_FILE_PREFIX) && name.endsWith(LUCENE_ID_MAPS_FILE_SUFFIX) && name.equals(currentName)==false;
+			}
+		});
+		if (oldFiles!=null) {
+			for (File f : oldFiles) {
+				f.delete();
+			}
+		}
+	}
+	
+	private File getLuceneIdMapsFile(String id, long version) {
+		return new File(new File(corpusStorageLocation, id), LUCENE_ID_MAPS_FILE_PREFIX+String.valueOf(version)+LUCENE_ID_MAPS_FILE_SUFFIX);
+	}
+
 	@Override
 	public boolean corpusExists(String id) {
 		File corpusDirectory = new File(corpusStorageLocation, id);
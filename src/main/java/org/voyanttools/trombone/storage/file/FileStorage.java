@@ -29,8 +29,11 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -228,6 +231,83 @@ public class FileStorage implements Storage {
 		return obj;
 	}
 
+	@Override
+	public void storeBuffer(ByteBuffer buffer, String id) throws IOException {
+		// write to a temporary file and then rename so that readers never see a partial file
+		File file = getFile(id);
+		if (file.getParentFile().exists()==false) {
+			file.getParentFile().mkdirs();
+		}
+		File tmpFile = new File(file.getParentFile(), id+"."+UUID.randomUUID().toString()+".tmp");
+		ByteBuffer source = buffer.duplicate();
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try {
+			FileChannel channel = out.getChannel();
+			while (source.hasRemaining()) {
+				channel.write(source);
+			}
+		}
+		finally {
+			out.close();
+		}
+		if (tmpFile.renameTo(file)==false) {
+			tmpFile.delete();
+			if (file.exists()==false) {
+				throw new IOException("Unable to store buffer: "+id);
+			}
+		}
+	}
+
+	@Override
+	public void storeFile(File source, String id) throws IOException {
+		File file = getFile(id);
+		if (file.getParentFile().exists()==false) {
+			file.getParentFile().mkdirs();
+		}
+		if (source.renameTo(file)) {return;}
+		// probably on another file system, so copy next to the destination and then rename
+		File tmpFile = new File(file.getParentFile(), id+"."+UUID.randomUUID().toString()+".tmp");
+		FileInputStream in = new FileInputStream(source);
+		try {
+			FileOutputStream out = new FileOutputStream(tmpFile);
+			try {
+				FileChannel channel = in.getChannel();
+				long position = 0;
+				long size = channel.size();
+				while (position < size) {
+					position += channel.transferTo(position, size-position, out.getChannel());
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+		source.delete();
+		if (tmpFile.renameTo(file)==false) {
+			tmpFile.delete();
+			if (file.exists()==false) {
+				throw new IOException("Unable to store file: "+id);
+			}
+		}
+	}
+
+	@Override
+	public ByteBuffer retrieveBuffer(String id) throws IOException {
+		File file = getFile(id);
+		if (file.exists()==false) {return null;}
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // remains valid after the channel is closed
+		}
+		finally {
+			randomAccessFile.close();
+		}
+	}
+
 	@Override
 	public Reader retrieveStringReader(String id) throws IOException {
 		File file = getFile(id);
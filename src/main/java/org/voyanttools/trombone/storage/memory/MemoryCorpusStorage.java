@@ -22,6 +22,7 @@
 package org.voyanttools.trombone.storage.memory;
 
 import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -37,6 +38,8 @@ class MemoryCorpusStorage implements CorpusStorage {
 	
 	private Map<String, Corpus> corpusMap = new HashMap<String, Corpus>();
 	private Map<String, FlexibleParameters> parametersMap = new HashMap<String, FlexibleParameters>();
+	private Map<String, int[][]> luceneIdMapsMap = new HashMap<String, int[][]>();
+	private Map<String, Long> luceneIdMapsVersionMap = new HashMap<String, Long>();
 
 	@Override
 	public Corpus getCorpus(String id) throws IOException {
@@ -60,6 +63,20 @@ class MemoryCorpusStorage implements CorpusStorage {
 		}
 	}
 
+	@Override
+	public synchronized IntBuffer[] getLuceneIdMaps(String id, long version) throws IOException {
+		Long storedVersion = luceneIdMapsVersionMap.get(id);
+		if (storedVersion==null || storedVersion.longValue()!=version) {return null;}
+		int[][] maps = luceneIdMapsMap.get(id);
+		return maps==null ? null : new IntBuffer[]{IntBuffer.wrap(maps[0]).asReadOnlyBuffer(), IntBuffer.wrap(maps[1]).asReadOnlyBuffer()};
+	}
+
+	@Override
+	public synchronized void storeLuceneIdMaps(String id, long version, int[] luceneIdToDocumentPosition, int[] documentPositionToLuceneId) throws IOException {
+		luceneIdMapsMap.put(id, new int[][]{luceneIdToDocumentPosition, documentPositionToLuceneId});
+		luceneIdMapsVersionMap.put(id, version);
+	}
+
 	@Override
 	public boolean corpusExists(String id) {
 		return corpusMap.containsKey(id);
@@ -21,18 +21,22 @@
  ******************************************************************************/
 package org.voyanttools.trombone.storage.memory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.store.RAMDirectory;
 import org.mapdb.DB;
@@ -56,7 +60,7 @@ import edu.stanford.nlp.util.StringUtils;
  */
 public class MemoryStorage implements Storage {
 
-	private Map<String, Object> storedObjectsMap = new HashMap<String, Object>();
+	private Map<String, Object> storedObjectsMap = Collections.synchronizedMap(new HashMap<String, Object>());
 	
 	/**
 	 * the {@link StoredDocumentSourceStorage} for this storage
@@ -157,6 +161,28 @@ public class MemoryStorage implements Storage {
 		return storedObjectsMap.get(id);
 	}
 	
+	@Override
+	public void storeBuffer(ByteBuffer buffer, String id) throws IOException {
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+		copy.put(buffer.duplicate());
+		copy.flip();
+		storedObjectsMap.put(id, copy);
+	}
+
+	@Override
+	public void storeFile(File file, String id) throws IOException {
+		storedObjectsMap.put(id, ByteBuffer.wrap(FileUtils.readFileToByteArray(file)));
+		file.delete();
+	}
+
+	@Override
+	public ByteBuffer retrieveBuffer(String id) throws IOException {
+		Object buffer = storedObjectsMap.get(id);
+		if (buffer==null) {return null;}
+		if (buffer instanceof ByteBuffer == false) throw new IOException("An object was stored with this ID but it's not a buffer: "+id);
+		return ((ByteBuffer) buffer).asReadOnlyBuffer();
+	}
+	
 	@Override
 	public Reader retrieveStringReader(String id) throws IOException {
 		return new StringReader(retrieveString(id));
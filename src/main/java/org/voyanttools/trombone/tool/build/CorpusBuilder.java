@@ -29,7 +29,6 @@ import org.voyanttools.trombone.input.source.InputSource;
 import org.voyanttools.trombone.lucene.CorpusMapper;
 import org.voyanttools.trombone.model.Corpus;
 import org.voyanttools.trombone.model.CorpusMetadata;
-import org.voyanttools.trombone.model.CorpusTermMinimal;
 import org.voyanttools.trombone.model.CorpusTermMinimalsDB;
 import org.voyanttools.trombone.model.StoredDocumentSource;
 import org.voyanttools.trombone.model.TokenType;
@@ -84,19 +83,25 @@ public class CorpusBuilder extends AbstractTool {
 			if (verbose) {log("Starting corpus terms index.");}
 			CorpusMapper corpusMapper = new CorpusMapper(storage, corpus);
 			// create and close to avoid concurrent requests later 
-			CorpusTermMinimalsDB corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, TokenType.lexical);
+			CorpusTermMinimalsDB.BuildStrategy buildStrategy = CorpusTermMinimalsDB.BuildStrategy.valueOfForgivingly(parameters.getParameterValue("termStatsBuildStrategy"));
+			CorpusTermMinimalsDB corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, TokenType.lexical, buildStrategy);
 			
 			int totalWordTokens = 0;
-			int totalWordTypes = 0;
-			for (CorpusTermMinimal corpusTermMinimal : corpusTermMinimalsDB.values()) {
-				totalWordTokens += corpusTermMinimal.getRawFreq();
-				totalWordTypes++;
+			int totalWordTypes = corpusTermMinimalsDB.size();
+			for (int ord=0; ord<totalWordTypes; ord++) {
+				totalWordTokens += corpusTermMinimalsDB.getRawFreq(ord);
 			}
 			corpusTermMinimalsDB.close();
+			corpusMapper.close();
 			metadata.setCreatedTime(Calendar.getInstance().getTimeInMillis());
 			metadata.setTokensCount(TokenType.lexical, totalWordTokens);
 			metadata.setTypesCount(TokenType.lexical, totalWordTypes);
-			if (verbose) {log("Finished corpus terms index.", start);}
+			if (verbose) {log("Finished corpus terms index"+(corpusTermMinimalsDB.getBuildStrategy()==null ? "." : " (from "+corpusTermMinimalsDB.getBuildStrategy().name()+")."), start);}
+			
+			// snapshot the document metadata so that tools don't need to read the metadata of each document
+			start = Calendar.getInstance();
+			corpus.getDocumentStatistics();
+			if (verbose) {log("Finished document metadata snapshot.", start);}
 			
 			storage.getCorpusStorage().storeCorpus(corpus, parameters);
 		}
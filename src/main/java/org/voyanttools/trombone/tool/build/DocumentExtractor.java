@@ -47,6 +47,11 @@ class DocumentExtractor extends AbstractTool {
 
 	private String storedId = null;
 	
+	/**
+	 * the documents left out because their extraction ran out of time
+	 */
+	private List<String> skippedIds = new ArrayList<String>();
+	
 	@XStreamOmitField
 	private List<StoredDocumentSource> storedDocumentSources = new ArrayList<StoredDocumentSource>();
 	
@@ -82,6 +87,10 @@ class DocumentExtractor extends AbstractTool {
 		StoredDocumentSourceStorage storedDocumentStorage = storage.getStoredDocumentSourceStorage();
 		StoredDocumentSourceExtractor extractor = new StoredDocumentSourceExtractor(storedDocumentStorage, parameters);
 		storedDocumentSources = extractor.getExtractedStoredDocumentSources(extractableStoredDocumentSources);
+		skippedIds = extractor.getSkippedIds();
+		if (skippedIds.isEmpty()==false) {
+			log("Skipped "+skippedIds.size()+" documents whose extraction ran out of time: "+skippedIds);
+		}
 		
 		// sort documents if needed
 		if (parameters.containsKey("sort")) {
@@ -104,5 +113,9 @@ class DocumentExtractor extends AbstractTool {
 	String getStoredId() {
 		return storedId;
 	}
+	
+	List<String> getSkippedIds() {
+		return skippedIds;
+	}
 
 }
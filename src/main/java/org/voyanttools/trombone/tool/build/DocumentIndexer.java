@@ -26,7 +26,6 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 
-import org.voyanttools.trombone.input.index.Indexer;
 import org.voyanttools.trombone.input.index.LuceneIndexer;
 import org.voyanttools.trombone.model.DocumentMetadata;
 import org.voyanttools.trombone.model.StoredDocumentSource;
@@ -45,6 +44,10 @@ class DocumentIndexer extends AbstractTool {
 
 	private String storedId = null;
 	
+	private int indexedDocumentsCount = 0;
+	
+	private int skippedDocumentsCount = 0;
+	
 	@XStreamOmitField
 	private List<StoredDocumentSource> indexableStoredDocumentSources = null;
 	/**
@@ -75,10 +78,12 @@ class DocumentIndexer extends AbstractTool {
 		log("Starting document indexing.");
 
 		this.indexableStoredDocumentSources = indexableStoredDocumentSources;
-		Indexer indexer = new LuceneIndexer(storage, parameters);
+		LuceneIndexer indexer = new LuceneIndexer(storage, parameters);
 		storedId = indexer.index(indexableStoredDocumentSources);
+		indexedDocumentsCount = indexer.getIndexedDocumentsCount();
+		skippedDocumentsCount = indexer.getSkippedDocumentsCount();
 		
-		log("Finished indexing of "+indexableStoredDocumentSources.size()+" documents.", start);
+		log("Finished indexing of "+indexableStoredDocumentSources.size()+" documents ("+indexedDocumentsCount+" indexed, "+skippedDocumentsCount+" skipped).", start);
 
 		
 	}
@@ -90,5 +95,13 @@ class DocumentIndexer extends AbstractTool {
 	String getStoredId() {
 		return storedId;
 	}
+	
+	int getIndexedDocumentsCount() {
+		return indexedDocumentsCount;
+	}
+	
+	int getSkippedDocumentsCount() {
+		return skippedDocumentsCount;
+	}
 
 }
@@ -0,0 +1,408 @@
+/*******************************************************************************
+ * Trombone is a flexible text processing and analysis library used
+ * primarily by Voyant Tools (voyant-tools.org).
+ * 
+ * Copyright (©) 2007-2012 Stéfan Sinclair & Geoffrey Rockwell
+ * 
+ * This file is part of Trombone.
+ * 
+ * Trombone is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Trombone is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Trombone.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.voyanttools.trombone.tool.build;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.DirectoryReader;
+
+import org.voyanttools.trombone.input.expand.StoredDocumentSourceExpander;
+import org.voyanttools.trombone.input.extract.StoredDocumentSourceExtractor;
+import org.voyanttools.trombone.input.index.LuceneIndexer;
+import org.voyanttools.trombone.input.source.InputSource;
+import org.voyanttools.trombone.input.source.InputSourcesBuilder;
+import org.voyanttools.trombone.lucene.LuceneManager;
+import org.voyanttools.trombone.model.StoredDocumentSource;
+import org.voyanttools.trombone.storage.Storage;
+import org.voyanttools.trombone.storage.StoredDocumentSourceStorage;
+import org.voyanttools.trombone.util.FlexibleParameters;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Runs the store, expand, extract and index steps of corpus creation as concurrent stages connected by
+ * bounded queues, so that each document moves on to the next stage as soon as it's ready (and a full
+ * queue makes the previous stage do the work itself rather than reading further ahead). The resulting
+ * documents are in the same order as with the sequential steps.
+ * 
+ * @author sgs
+ *
+ */
+class DocumentPipeline {
+	
+	/**
+	 * marks the end of the documents to index
+	 */
+	private static final StoredDocumentSource END = new StoredDocumentSource("", null);
+	
+	/**
+	 * The threads, documents and timings (in milliseconds) of a stage: the time is from the start of the
+	 * pipeline until the stage finished and the busy time is the sum of the time spent on each document.
+	 */
+	@XStreamAlias("stage")
+	static class Stage {
+		private String name;
+		private int threads;
+		private int documents = 0;
+		private long time = 0;
+		private long busyTime = 0;
+		private Stage(String name, int threads) {
+			this.name = name;
+			this.threads = threads;
+		}
+		String getName() {
+			return name;
+		}
+		int getDocuments() {
+			return documents;
+		}
+		long getTime() {
+			return time;
+		}
+	}
+	
+	private Storage storage;
+	
+	private FlexibleParameters parameters;
+	
+	private List<Stage> stages = new ArrayList<Stage>();
+	
+	/**
+	 * the first failure in any stage, after which remaining work is skipped
+	 */
+	private AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+	
+	private long start;
+	
+	/**
+	 * the documents left out because their extraction ran out of time
+	 */
+	private List<String> skippedIds = new ArrayList<String>();
+
+	DocumentPipeline(Storage storage, FlexibleParameters parameters) {
+		this.storage = storage;
+		this.parameters = parameters;
+	}
+	
+	List<Stage> getStages() {
+		return stages;
+	}
+	
+	/**
+	 * Get the IDs of the documents that were left out because their extraction ran out of time.
+	 * @return the skipped document IDs
+	 */
+	List<String> getSkippedIds() {
+		return skippedIds;
+	}
+	
+	/**
+	 * Store, expand, extract and index the input sources from the parameters.
+	 * @return the extracted (and indexed) documents, in corpus order
+	 * @throws IOException
+	 */
+	List<StoredDocumentSource> run() throws IOException {
+		return run(new InputSourcesBuilder(parameters).getInputSources());
+	}
+	
+	List<StoredDocumentSource> run(List<InputSource> inputSources) throws IOException {
+		
+		start = System.currentTimeMillis();
+		int processors = Runtime.getRuntime().availableProcessors();
+		final StoredDocumentSourceStorage storedDocumentSourceStorage = storage.getStoredDocumentSourceStorage();
+		
+		// expanders keep state between documents, so each worker has its own (the extractor does this itself)
+		final ThreadLocal<StoredDocumentSourceExpander> expanders = new ThreadLocal<StoredDocumentSourceExpander>() {
+			@Override
+			protected StoredDocumentSourceExpander initialValue() {
+				return new StoredDocumentSourceExpander(storedDocumentSourceStorage, parameters);
+			}
+		};
+		final StoredDocumentSourceExtractor extractor = new StoredDocumentSourceExtractor(storedDocumentSourceStorage, parameters);
+		
+		// the extracted documents of each input source, in the order of expansion
+		final StoredDocumentSource[][] extracted = new StoredDocumentSource[inputSources.size()][];
+		
+		final StageExecutor storeStage = new StageExecutor("store", parameters.getParameterIntValue("storeThreads", Math.max(1, processors/2)));
+		final StageExecutor expandStage = new StageExecutor("expand", parameters.getParameterIntValue("expandThreads", Math.max(1, processors/2)));
+		final StageExecutor extractStage = new StageExecutor("extract", parameters.getParameterIntValue("extractThreads", processors));
+		final IndexStage indexStage = new IndexStage(parameters.getParameterIntValue("indexBatchSize", 500));
+		indexStage.start();
+		
+		try {
+			for (int i=0, len=inputSources.size(); i<len; i++) {
+				final int position = i;
+				final InputSource inputSource = inputSources.get(i);
+				storeStage.execute(new StageTask() {
+					@Override
+					public void run() throws IOException {
+						final StoredDocumentSource storedDocumentSource = storedDocumentSourceStorage.getStoredDocumentSource(inputSource);
+						expandStage.execute(new StageTask() {
+							@Override
+							public void run() throws IOException {
+								List<StoredDocumentSource> expanded = expanders.get().getExpandedStoredDocumentSources(storedDocumentSource);
+								extracted[position] = new StoredDocumentSource[expanded.size()];
+								for (int j=0, size=expanded.size(); j<size; j++) {
+									final int childPosition = j;
+									final StoredDocumentSource expandedStoredDocumentSource = expanded.get(j);
+									extractStage.execute(new StageTask() {
+										@Override
+										public void run() throws IOException {
+											StoredDocumentSource extractedStoredDocumentSource = extractor.getExtractedStoredDocumentSourceOrSkip(expandedStoredDocumentSource);
+											if (extractedStoredDocumentSource==null) {return;} // it ran out of time
+											extracted[position][childPosition] = extractedStoredDocumentSource;
+											indexStage.put(extractedStoredDocumentSource);
+										}
+									});
+								}
+							}
+						});
+					}
+				});
+			}
+		}
+		finally {
+			// each stage only receives work from the previous one, so they can be finished in order
+			storeStage.finish();
+			expandStage.finish();
+			extractStage.finish();
+			extractor.close();
+			indexStage.finish();
+		}
+		
+		skippedIds = extractor.getSkippedIds();
+		
+		Throwable e = error.get();
+		if (e!=null) {
+			if (e instanceof IOException) {throw (IOException) e;}
+			if (e instanceof RuntimeException) {throw (RuntimeException) e;}
+			throw new RuntimeException("Unable to create the corpus.", e);
+		}
+		
+		List<StoredDocumentSource> storedDocumentSources = new ArrayList<StoredDocumentSource>();
+		for (StoredDocumentSource[] children : extracted) {
+			for (StoredDocumentSource child : children) {
+				if (child!=null) {storedDocumentSources.add(child);} // null if skipped
+			}
+		}
+		
+		// sort documents if needed (this only changes the corpus order, not what's indexed)
+		if (parameters.containsKey("sort")) {
+			Collections.sort(storedDocumentSources, StoredDocumentSource.getComparator(parameters));
+		}
+		
+		return storedDocumentSources;
+	}
+	
+	private interface StageTask {
+		public void run() throws IOException;
+	}
+	
+	/**
+	 * A pool of worker threads for a stage with a bounded queue: when it's full the submitting thread
+	 * (a worker of the previous stage) runs the task itself.
+	 */
+	private class StageExecutor {
+		
+		private Stage stage;
+		private ThreadPoolExecutor executor;
+		private AtomicInteger documents = new AtomicInteger();
+		private AtomicLong busyTime = new AtomicLong();
+		
+		private StageExecutor(String name, int threads) {
+			threads = Math.max(1, threads);
+			stage = new Stage(name, threads);
+			stages.add(stage);
+			executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(parameters.getParameterIntValue("pipelineQueueSize", threads*4)),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		
+		private void execute(final StageTask task) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (error.get()!=null) {return;} // something already failed, so skip the remaining work
+					long taskStart = System.currentTimeMillis();
+					try {
+						task.run();
+						documents.incrementAndGet();
+					}
+					catch (Throwable e) {
+						error.compareAndSet(null, e);
+					}
+					finally {
+						busyTime.addAndGet(System.currentTimeMillis()-taskStart);
+					}
+				}
+			});
+		}
+		
+		private void finish() {
+			executor.shutdown();
+			try {
+				while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {}
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				error.compareAndSet(null, e);
+			}
+			stage.documents = documents.get();
+			stage.busyTime = busyTime.get();
+			stage.time = System.currentTimeMillis()-start;
+		}
+	}
+	
+	/**
+	 * A single thread that indexes the extracted documents in batches as they arrive (the {@link LuceneIndexer}
+	 * uses its own workers for each batch).
+	 */
+	private class IndexStage extends Thread {
+		
+		private Stage stage = new Stage("index", 1);
+		private BlockingQueue<StoredDocumentSource> queue;
+		private int batchSize;
+		
+		/**
+		 * the parameters for each batch: the index is only optimized and the reader opened once at the end
+		 */
+		private FlexibleParameters batchParameters;
+		
+		/**
+		 * whether any batch has been written to the index (even if it failed part way)
+		 */
+		private boolean indexed = false;
+		
+		/**
+		 * the documents already sent to the indexer: the reader isn't reopened between batches, so
+		 * the indexer can't tell that a repeated document was in an earlier batch
+		 */
+		private Set<String> indexedIds = new HashSet<String>();
+		
+		private IndexStage(int batchSize) {
+			super("trombone-pipeline-index");
+			this.batchSize = Math.max(1, batchSize);
+			this.queue = new ArrayBlockingQueue<StoredDocumentSource>(this.batchSize*2);
+			batchParameters = parameters.clone();
+			batchParameters.removeParameter("luceneOptimize");
+			batchParameters.setParameter("luceneBatch", "true");
+			stages.add(stage);
+		}
+		
+		private void put(StoredDocumentSource storedDocumentSource) throws IOException {
+			try {
+				// don't wait forever if the index thread has stopped taking documents
+				while (!queue.offer(storedDocumentSource, 1, TimeUnit.SECONDS)) {
+					if (error.get()!=null || isAlive()==false) {
+						throw new IOException("Indexing has stopped, unable to index: "+storedDocumentSource);
+					}
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting to index: "+storedDocumentSource, e);
+			}
+		}
+		
+		@Override
+		public void run() {
+			List<StoredDocumentSource> batch = new ArrayList<StoredDocumentSource>();
+			try {
+				while (true) {
+					StoredDocumentSource storedDocumentSource = queue.poll(1, TimeUnit.SECONDS);
+					if (storedDocumentSource==END) {break;}
+					if (storedDocumentSource!=null && indexedIds.add(storedDocumentSource.getId())) {
+						batch.add(storedDocumentSource);
+					}
+					// index full batches, or whatever we have while the other stages are busy
+					if (batch.size()>=batchSize || (storedDocumentSource==null && batch.isEmpty()==false)) {
+						index(batch);
+					}
+				}
+				index(batch);
+			} catch (InterruptedException e) {
+				error.compareAndSet(null, e);
+			}
+			finally {
+				finishIndex();
+			}
+		}
+		
+		/**
+		 * Optimize the index if requested (only if everything was indexed) and make the new documents visible
+		 * with a single new reader.
+		 */
+		private void finishIndex() {
+			if (indexed==false) {return;}
+			long finishStart = System.currentTimeMillis();
+			try {
+				LuceneManager luceneManager = storage.getLuceneManager();
+				if (error.get()==null && parameters.getParameterBooleanValue("luceneOptimize")) {
+					luceneManager.optimize(parameters.getParameterIntValue("luceneOptimizeMaxSegments", 1));
+				}
+				// also after a failure, since the committed documents are in the index and are skipped next time
+				luceneManager.setDirectoryReader(DirectoryReader.open(luceneManager.getIndexWriter(), true));
+			}
+			catch (Throwable e) {
+				error.compareAndSet(null, e);
+			}
+			stage.busyTime += System.currentTimeMillis()-finishStart;
+		}
+		
+		private void index(List<StoredDocumentSource> batch) {
+			if (batch.isEmpty()) {return;}
+			if (error.get()==null) {
+				long batchStart = System.currentTimeMillis();
+				try {
+					indexed = true;
+					new LuceneIndexer(storage, batchParameters).index(new ArrayList<StoredDocumentSource>(batch));
+					stage.documents += batch.size();
+				}
+				catch (Throwable e) {
+					error.compareAndSet(null, e);
+				}
+				stage.busyTime += System.currentTimeMillis()-batchStart;
+			}
+			batch.clear(); // after a failure we keep draining the queue so that the other stages don't block
+		}
+		
+		private void finish() {
+			try {
+				while (isAlive() && !queue.offer(END, 1, TimeUnit.SECONDS)) {}
+				join();
+			} catch (InterruptedException e) {
+				error.compareAndSet(null, e);
+			}
+			stage.time = System.currentTimeMillis()-start;
+		}
+	}
+
+}
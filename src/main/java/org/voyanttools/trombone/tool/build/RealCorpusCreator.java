@@ -22,6 +22,7 @@
 package org.voyanttools.trombone.tool.build;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
 
@@ -48,6 +49,16 @@ public class RealCorpusCreator extends AbstractTool {
 	
 	private String storedId;
 	
+	/**
+	 * the documents left out of the corpus because their extraction ran out of time
+	 */
+	private List<String> skippedIds = new ArrayList<String>();
+	
+	/**
+	 * the threads and timings of each stage when the steps are run as a pipeline (null otherwise)
+	 */
+	private List<DocumentPipeline.Stage> pipelineStages = null;
+	
 	public RealCorpusCreator(Storage storage, FlexibleParameters parameters) {
 		super(storage, parameters);
 	}
@@ -66,6 +77,28 @@ public class RealCorpusCreator extends AbstractTool {
 		// this is used to go from one step to the next in a single pass, without needing to deal with storedId
 		List<StoredDocumentSource> storedDocumentSources = null;
 		
+		// store, expand, extract and index concurrently when we're going through all of those steps anyway
+		if (nextCorpusCreatorStep.equals("store") && parameters.getParameterBooleanValue("pipeline") && steps>=4) {
+			DocumentPipeline pipeline = new DocumentPipeline(storage, parameters);
+			storedDocumentSources = pipeline.run();
+			pipelineStages = pipeline.getStages();
+			skippedIds = pipeline.getSkippedIds();
+			if (skippedIds.isEmpty()==false) {
+				log("Skipped "+skippedIds.size()+" documents whose extraction ran out of time: "+skippedIds);
+			}
+			for (DocumentPipeline.Stage stage : pipelineStages) {
+				log("Finished pipeline "+stage.getName()+" stage of "+stage.getDocuments()+" documents ("+stage.getTime()+" ms).");
+			}
+			DocumentIndexer indexer = new DocumentIndexer(storage, parameters);
+			indexer.run(storedDocumentSources); // everything is indexed already, this just determines the corpus documents
+			storedDocumentSources = indexer.getStoredDocumentSources();
+			storedId = indexer.getStoredId();
+			nextCorpusCreatorStep = "corpus";
+			step += 4;
+			if (timeout>0 && Calendar.getInstance().getTimeInMillis()-start>timeout) {return;}
+			if (steps>0 && step>=steps) {return;}
+		}
+		
 		if (nextCorpusCreatorStep.equals("store")) {
 			DocumentStorer storer = new DocumentStorer(storage, parameters);
 			storer.run();
@@ -93,6 +126,7 @@ public class RealCorpusCreator extends AbstractTool {
 			else {extractor.run(storedDocumentSources);}
 			storedDocumentSources = extractor.getStoredDocumentSources();
 			storedId = extractor.getStoredId();
+			skippedIds = extractor.getSkippedIds();
 			nextCorpusCreatorStep = "index";
 			if (timeout>0 && Calendar.getInstance().getTimeInMillis()-start>timeout) {return;}
 			if (steps>0 && ++step>=steps) {return;}
@@ -126,6 +160,14 @@ public class RealCorpusCreator extends AbstractTool {
 	public String getStoredId() {
 		return storedId;
 	}
+	
+	/**
+	 * Get the IDs of the documents that were left out of the corpus because their extraction ran out of time.
+	 * @return the skipped document IDs
+	 */
+	public List<String> getSkippedIds() {
+		return skippedIds;
+	}
 
 
 }
@@ -32,8 +32,7 @@ import java.util.Set;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
 import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.spans.SpanQuery;
@@ -81,40 +80,44 @@ public abstract class AbstractContextTerms extends AbstractTerms {
 		LeafReader LeafReader = corpusMapper.getLeafReader();
 		SpanQueryParser spanQueryParser = new SpanQueryParser(LeafReader, storage.getLuceneManager().getAnalyzer());
 		Map<String, SpanQuery> spanQueries = spanQueryParser.getSpanQueriesMap(queries, tokenType, isQueryCollapse);
-		Map<Term, TermContext> termContexts = new HashMap<Term, TermContext>();
 		
 		Collection<DocumentSpansData> documentSpansDataList = new ArrayList<DocumentSpansData>();
 		
 		List<String> ids = this.getCorpusStoredDocumentIdsFromParameters(corpusMapper.getCorpus());
 		
-//		CorpusTermsQueue queue = new CorpusTermsQueue(size, corpusTermSort);
-		for (Map.Entry<String, SpanQuery> spanQueryEntry : spanQueries.entrySet()) {
-			String queryString = spanQueryEntry.getKey();
-			SpanQuery spanQuery = spanQueryEntry.getValue();
-			Spans spans = corpusMapper.getFilteredSpans(spanQuery);
-			
-			// map lucene document id to span offset information
-			List<int[]> spansDocDataList = new ArrayList<int[]>();
-			
-			// we're going to go through all the span for all documents so that we can then
-			// parallelize the searching of kwics
-			int doc = spans.nextDoc();
-			while (doc!=spans.NO_MORE_DOCS) {
-				int pos = spans.nextStartPosition();
-				while (pos != spans.NO_MORE_POSITIONS) {
-					spansDocDataList.add(new int[]{spans.startPosition(), spans.endPosition()});
-					pos = spans.nextStartPosition();
-				}
-				if (!spansDocDataList.isEmpty()) {
-					int[][] data = new int[spansDocDataList.size()][2];
-					for (int i=0, len=data.length; i<len; i++) {
-						data[i] = spansDocDataList.get(i);
+		// we're going to go through all the span for all documents (for each query and segment in parallel, if possible)
+		// so that we can then parallelize the searching of kwics
+		Map<String, List<List<DocumentSpansData>>> documentSpansDataLists = corpusMapper.processFilteredSpans(spanQueries, new CorpusMapper.LeafSpansProcessor<List<DocumentSpansData>>() {
+			@Override
+			public List<DocumentSpansData> process(String queryString, LeafReaderContext context, Spans spans) throws IOException {
+				List<DocumentSpansData> list = new ArrayList<DocumentSpansData>();
+				
+				// map lucene document id to span offset information
+				List<int[]> spansDocDataList = new ArrayList<int[]>();
+				int doc = spans.nextDoc();
+				while (doc!=spans.NO_MORE_DOCS) {
+					int pos = spans.nextStartPosition();
+					while (pos != spans.NO_MORE_POSITIONS) {
+						spansDocDataList.add(new int[]{spans.startPosition(), spans.endPosition()});
+						pos = spans.nextStartPosition();
 					}
-					documentSpansDataList.add(new DocumentSpansData(doc, data, queryString));
-					spansDocDataList.clear();
-					total++;
+					if (!spansDocDataList.isEmpty()) {
+						int[][] data = new int[spansDocDataList.size()][2];
+						for (int i=0, len=data.length; i<len; i++) {
+							data[i] = spansDocDataList.get(i);
+						}
+						list.add(new DocumentSpansData(context.docBase+doc, data, queryString));
+						spansDocDataList.clear();
+					}
+					doc = spans.nextDoc();
 				}
-				doc = spans.nextDoc();
+				return list;
+			}
+		}, getSearchExecutor());
+		for (List<List<DocumentSpansData>> lists : documentSpansDataLists.values()) {
+			for (List<DocumentSpansData> list : lists) {
+				documentSpansDataList.addAll(list);
+				total+=list.size();
 			}
 		}
 		
@@ -6,8 +6,10 @@ package org.voyanttools.trombone.tool.corpus;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.voyanttools.trombone.lucene.CorpusMapper;
+import org.voyanttools.trombone.lucene.LuceneManager;
 import org.voyanttools.trombone.model.Corpus;
 import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.tool.utils.AbstractTool;
@@ -29,8 +31,13 @@ public abstract class AbstractCorpusTool extends AbstractTool {
 	@Override
 	public void run() throws IOException {
 		Corpus corpus = CorpusManager.getCorpus(storage, parameters);
-		CorpusMapper corpusMapper = new CorpusMapper(storage, corpus);
-		run(corpusMapper);
+		CorpusMapper corpusMapper = CorpusMapper.acquireInstance(storage, corpus);
+		try {
+			run(corpusMapper);
+		}
+		finally {
+			corpusMapper.release(); // the reader stays open until we're done even if the index is refreshed
+		}
 	}
 	
 	protected List<String> getCorpusStoredDocumentIdsFromParameters(Corpus corpus) throws IOException {
@@ -62,8 +69,28 @@ public abstract class AbstractCorpusTool extends AbstractTool {
 		
 	}
 	
+	/**
+	 * Get a shared {@link CorpusMapper} for the specified corpus, which must be released with
+	 * {@link CorpusMapper#release()} when it's no longer needed.
+	 * @param corpus the corpus
+	 * @return the acquired mapper
+	 * @throws IOException
+	 */
 	protected CorpusMapper getStoredToLuceneDocumentsMapper(Corpus corpus) throws IOException {
-		return new CorpusMapper(storage, corpus);
+		return CorpusMapper.acquireInstance(storage, corpus);
+	}
+	
+	/**
+	 * Get the shared executor to use for evaluating queries and segments concurrently. The size of the shared pool
+	 * is a setting of the {@link LuceneManager}, a request can only set the <code>searchThreads</code> parameter to
+	 * 0 or 1 to disable concurrency for itself (other values are ignored).
+	 * @return the executor or null if queries should be evaluated in the calling thread
+	 * @throws IOException
+	 */
+	protected ExecutorService getSearchExecutor() throws IOException {
+		int threads = parameters.getParameterIntValue("searchThreads", -1);
+		if (threads==0 || threads==1) {return null;}
+		return storage.getLuceneManager().getSearchExecutor();
 	}
 	
 	public abstract void run(CorpusMapper corpusMapper) throws IOException;
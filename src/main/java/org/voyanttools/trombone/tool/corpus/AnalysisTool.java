@@ -100,6 +100,8 @@ public abstract class AnalysisTool extends AbstractCorpusTool {
 		FlexibleParameters params = parameters.clone();
 		// remove bins so that CorpusTerm.getRawDistributions is divided into documents
 		params.removeParameter("bins");
+		// the distributions are read once from the term-document matrix and used for the frequency matrix
+		params.setParameter("withDistributions", "true");
 		
 		CorpusTerms ct = new CorpusTerms(storage, params);
 		ct.run(corpusMapper);
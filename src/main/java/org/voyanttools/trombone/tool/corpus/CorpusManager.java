@@ -9,8 +9,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import org.voyanttools.trombone.lucene.CorpusMapper;
 import org.voyanttools.trombone.model.Corpus;
 import org.voyanttools.trombone.model.CorpusAliasDB;
+import org.voyanttools.trombone.model.CorpusMetadata;
+import org.voyanttools.trombone.model.CorpusTermMinimalsDB;
+import org.voyanttools.trombone.model.TokenType;
 import org.voyanttools.trombone.storage.Migrator;
 import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.tool.build.RealCorpusCreator;
@@ -156,6 +160,9 @@ public class CorpusManager extends AbstractTool {
 			}
 			
 			String corpusId = storage.storeStrings(keepers);
+			if (storage.getCorpusStorage().corpusExists(corpusId)==false) {
+				buildTermStatsFromCorpus(corpusId, keepers);
+			}
 			FlexibleParameters params = new FlexibleParameters(new String[]{"storedId="+corpusId,"nextCorpusCreatorStep=corpus"});
 			RealCorpusCreator realCorpusCreator = new RealCorpusCreator(storage, params);
 			realCorpusCreator.run(); // make sure to create corpus
@@ -171,6 +178,29 @@ public class CorpusManager extends AbstractTool {
 
 	}
 
+	/**
+	 * Derive the term statistics of the new corpus from those of the current corpus when only a few documents
+	 * changed, instead of building them from scratch when the new corpus is created.
+	 * @param corpusId the ID of the new corpus
+	 * @param documentIds the document IDs of the new corpus
+	 * @throws IOException
+	 */
+	private void buildTermStatsFromCorpus(String corpusId, List<String> documentIds) throws IOException {
+		CorpusMetadata metadata = new CorpusMetadata(corpusId);
+		metadata.setDocumentIds(documentIds);
+		CorpusMapper corpusMapper = new CorpusMapper(storage, new Corpus(storage, metadata));
+		CorpusMapper parentCorpusMapper = CorpusMapper.acquireInstance(storage, corpus);
+		try {
+			for (TokenType tokenType : TokenType.values()) {
+				CorpusTermMinimalsDB.buildFromParent(parentCorpusMapper, corpusMapper, tokenType.name());
+			}
+		}
+		finally {
+			parentCorpusMapper.release();
+			corpusMapper.close();
+		}
+	}
+
 	Corpus getCorpus() throws IOException {
 		if (this.corpus==null && this.id!=null) {
 			this.corpus = this.storage.getCorpusStorage().getCorpus(this.id);
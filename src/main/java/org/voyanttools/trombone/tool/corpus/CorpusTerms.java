@@ -28,19 +28,15 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.index.TermContext;
-import org.apache.lucene.index.Terms;
-import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.search.spans.Spans;
-import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.voyanttools.trombone.lucene.CorpusMapper;
 import org.voyanttools.trombone.lucene.search.FieldPrefixAwareSimpleQueryParser;
 import org.voyanttools.trombone.lucene.search.FieldPrefixAwareSimpleSpanQueryParser;
@@ -50,6 +46,7 @@ import org.voyanttools.trombone.model.CorpusTerm;
 import org.voyanttools.trombone.model.CorpusTermMinimal;
 import org.voyanttools.trombone.model.CorpusTermMinimalsDB;
 import org.voyanttools.trombone.model.Keywords;
+import org.voyanttools.trombone.model.TermDocumentMatrix;
 import org.voyanttools.trombone.model.TokenType;
 import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.util.FlexibleParameters;
@@ -103,55 +100,46 @@ public class CorpusTerms extends AbstractTerms implements Iterable<CorpusTerm> {
 		return super.getVersion()+9;
 	}
 
-	private FlexibleQueue<CorpusTerm> runAllTermsWithDistributionsDocumentTermVectors(CorpusMapper corpusMapper, Keywords stopwords) throws IOException {
+	/**
+	 * Offer all terms in the corpus with their distributions across documents, read from the rows of the {@link TermDocumentMatrix}.
+	 * @param corpusMapper
+	 * @param stopwords
+	 * @throws IOException
+	 */
+	private FlexibleQueue<CorpusTerm> runAllTermsWithDistributionsFromMatrix(CorpusMapper corpusMapper, Keywords stopwords) throws IOException {
 		FlexibleQueue<CorpusTerm> queue = new FlexibleQueue<CorpusTerm>(comparator, start+limit);
-		
-		LeafReader reader = corpusMapper.getLeafReader();
-		Map<String, Map<Integer, Integer>> rawFreqsMap = new HashMap<String, Map<Integer, Integer>>();
-		TermsEnum termsEnum = null;
-		for (int doc : corpusMapper.getLuceneIds()) {
-			Terms terms = reader.getTermVector(doc, "lexical");
-			if (terms!=null) {
-				termsEnum = terms.iterator();
-				if (termsEnum!=null) {
-					BytesRef bytesRef = termsEnum.next();
-					while (bytesRef!=null) {
-						String term = bytesRef.utf8ToString();
-						if (!stopwords.isKeyword(term)) {
-							if (!rawFreqsMap.containsKey(term)) {
-								rawFreqsMap.put(term, new HashMap<Integer, Integer>());
-							}
-							rawFreqsMap.get(term).put(corpusMapper.getDocumentPositionFromLuceneId(doc), (int) termsEnum.totalTermFreq());
-						}
-						bytesRef = termsEnum.next();
-					}
-				}
-			}
-		}
+		CorpusTermMinimalsDB corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, tokenType);
+		TermDocumentMatrix termDocumentMatrix = TermDocumentMatrix.getInstance(corpusMapper, tokenType);
 		
 		int corpusSize = corpusMapper.getCorpus().size();
+		int totalTokens = corpusMapper.getCorpus().getTokensCount(tokenType);
 		int[] tokensCounts = corpusMapper.getCorpus().getTokensCounts(tokenType);
 		int bins = parameters.getParameterIntValue("bins", corpusSize);
 		int[] documentRawFreqs;
 		float[] documentRelativeFreqs;
+		FixedBitSet stopwordsOrdinals = stopwords.getOrdinals(corpusMapper, tokenType);
 		int documentPosition;
 		int termFreq;
 		int freq;
-		for (Map.Entry<String, Map<Integer, Integer>> termsMap : rawFreqsMap.entrySet()) {
-			String termString = termsMap.getKey();
+		String termString;
+		for (int ord=0, len=termDocumentMatrix.getTermsCount(); ord<len; ord++) {
+			if (stopwordsOrdinals.get(ord)) {continue;}
+			termString = corpusTermMinimalsDB.getTerm(ord);
 			documentRawFreqs = new int[corpusSize];
 			documentRelativeFreqs = new float[corpusSize];
 			termFreq = 0;
-			for (Map.Entry<Integer, Integer> docsMap : termsMap.getValue().entrySet()) {
-				documentPosition = docsMap.getKey();
-				freq = docsMap.getValue();
+			int entry = termDocumentMatrix.getStart(ord);
+			int end = termDocumentMatrix.getEnd(ord);
+			for (; entry<end; entry++) {
+				documentPosition = termDocumentMatrix.getDocumentPosition(entry);
+				freq = termDocumentMatrix.getRawFreq(entry);
 				termFreq+=freq;
-				totalTokens+=freq;
 				documentRawFreqs[documentPosition] = freq;
 				documentRelativeFreqs[documentPosition] = (float) freq/tokensCounts[documentPosition];
 			}
+			this.totalTokens+=termFreq;
 			total++;
-			queue.offer(new CorpusTerm(termString, termFreq, totalTokens, termsMap.getValue().size(), corpusSize, documentRawFreqs, documentRelativeFreqs, bins));
+			queue.offer(new CorpusTerm(termString, termFreq, totalTokens, end-termDocumentMatrix.getStart(ord), corpusSize, documentRawFreqs, documentRelativeFreqs, bins));
 		}
 		return queue;
 	}
@@ -165,22 +153,61 @@ public class CorpusTerms extends AbstractTerms implements Iterable<CorpusTerm> {
 		FlexibleQueue<CorpusTerm> queue = new FlexibleQueue<CorpusTerm>(comparator, start+limit);
 		CorpusTermMinimalsDB corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, tokenType);
 		int totalTokens = corpusMapper.getCorpus().getTokensCount(tokenType);
-		for (CorpusTermMinimal corpusTermMinimal : corpusTermMinimalsDB.values()) {
-			if (!stopwords.isKeyword(corpusTermMinimal.getTerm())) {
+		int documentsCount = corpusTermMinimalsDB.getDocumentsCount();
+		FixedBitSet stopwordsOrdinals = stopwords.getOrdinals(corpusMapper, tokenType);
+		if (corpusTermSort==CorpusTerm.Sort.RAWFREQDESC || corpusTermSort==CorpusTerm.Sort.INDOCUMENTSCOUNTDESC) {
+			return runAllTermsWithoutDistributionsFromOrdering(queue, corpusTermMinimalsDB, stopwordsOrdinals, totalTokens);
+		}
+		int rawFreq;
+		for (int ord=0, len=corpusTermMinimalsDB.size(); ord<len; ord++) {
+			if (!stopwordsOrdinals.get(ord)) {
 				total++;
-				this.totalTokens+=corpusTermMinimal.getRawFreq();
-				CorpusTerm corpusTerm = new CorpusTerm(corpusTermMinimal, totalTokens);
-				queue.offer(corpusTerm);
+				rawFreq = corpusTermMinimalsDB.getRawFreq(ord);
+				this.totalTokens+=rawFreq;
+				queue.offer(new CorpusTerm(corpusTermMinimalsDB.getTerm(ord), rawFreq, totalTokens, corpusTermMinimalsDB.getInDocumentsCount(ord), documentsCount, null, null, 0));
 			}
 		}
 		return queue;
 	}
 	
+	/**
+	 * Read the terms in the stored order of the current sort, stopping once enough terms have been offered
+	 * to fill the page (and any terms tied with the last of them), so only the top of the vocabulary is read.
+	 * The totals are derived from the corpus totals minus the stopwords rather than counted term by term.
+	 * @param queue the queue to fill
+	 * @param corpusTermMinimalsDB the term statistics
+	 * @param stopwordsOrdinals the ordinals of the stopwords to skip
+	 * @param totalTokens the number of tokens in the corpus
+	 * @return the filled queue
+	 */
+	private FlexibleQueue<CorpusTerm> runAllTermsWithoutDistributionsFromOrdering(FlexibleQueue<CorpusTerm> queue, CorpusTermMinimalsDB corpusTermMinimalsDB, FixedBitSet stopwordsOrdinals, int totalTokens) {
+		boolean byRawFreq = corpusTermSort==CorpusTerm.Sort.RAWFREQDESC;
+		int documentsCount = corpusTermMinimalsDB.getDocumentsCount();
+		long wanted = (long) start + limit;
+		int offered = 0;
+		int lastValue = -1;
+		int ord;
+		int value;
+		for (int rank=0, len=corpusTermMinimalsDB.size(); rank<len; rank++) {
+			ord = byRawFreq ? corpusTermMinimalsDB.getOrdinalByRawFreq(rank) : corpusTermMinimalsDB.getOrdinalByInDocumentsCount(rank);
+			value = byRawFreq ? corpusTermMinimalsDB.getRawFreq(ord) : corpusTermMinimalsDB.getInDocumentsCount(ord);
+			if (offered>=wanted && value<lastValue) {break;} // ties are still offered since the queue breaks them by term
+			if (!stopwordsOrdinals.get(ord)) {
+				queue.offer(new CorpusTerm(corpusTermMinimalsDB.getTerm(ord), corpusTermMinimalsDB.getRawFreq(ord), totalTokens, corpusTermMinimalsDB.getInDocumentsCount(ord), documentsCount, null, null, 0));
+				offered++;
+				lastValue = value;
+			}
+		}
+		total += corpusTermMinimalsDB.size() - stopwordsOrdinals.cardinality();
+		this.totalTokens += corpusTermMinimalsDB.getTotalRawFreq() - corpusTermMinimalsDB.getTotalRawFreq(stopwordsOrdinals);
+		return queue;
+	}
+	
 	protected void runAllTerms(CorpusMapper corpusMapper, Keywords stopwords) throws IOException {
 		
 		FlexibleQueue<CorpusTerm> queue = withDistributions || corpusTermSort.needDistributions() ?
 //				runAllTermsWithDistributionsFromReaderTerms(corpusMapper, stopwords) :
-			runAllTermsWithDistributionsDocumentTermVectors(corpusMapper, stopwords) :
+			runAllTermsWithDistributionsFromMatrix(corpusMapper, stopwords) :
 			runAllTermsWithoutDistributions(corpusMapper, stopwords);
 		this.terms.addAll(queue.getOrderedList(start));
 
@@ -203,17 +230,15 @@ public class CorpusTerms extends AbstractTerms implements Iterable<CorpusTerm> {
 	}
 
 	private void runSpanQueries(CorpusMapper corpusMapper, FlexibleQueue<CorpusTerm> queue, Map<String, SpanQuery> queriesMap) throws IOException {
-		Map<Term, TermContext> termContexts = new HashMap<Term, TermContext>();
-		boolean needDistributions = withDistributions || corpusTermSort.needDistributions();
+		if (withDistributions || corpusTermSort.needDistributions()) {
+			addToQueueFromSpansWithDistributions(corpusMapper, queue, queriesMap); // all queries at once so that they can run concurrently
+			return;
+		}
 		CorpusTermMinimalsDB corpusTermMinimalsDB = null; // only create it if we need it
 		for (Map.Entry<String, SpanQuery> entry : queriesMap.entrySet()) {
 			SpanQuery query = entry.getValue();
 			String queryString = entry.getKey();
-			if (needDistributions) {
-				Spans spans = corpusMapper.getFilteredSpans((SpanQuery) query);
-				addToQueueFromSpansWithDistributions(corpusMapper, queue, queryString, spans);
-			}
-			else if (query instanceof SpanTermQuery) {
+			if (query instanceof SpanTermQuery) {
 				if (corpusTermMinimalsDB==null) {
 					corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, ((SpanTermQuery) query).getTerm().field());
 				}
@@ -255,45 +280,57 @@ public class CorpusTerms extends AbstractTerms implements Iterable<CorpusTerm> {
 
 	private void addToQueueFromQueryWithoutDistributions(CorpusMapper corpusMapper, FlexibleQueue<CorpusTerm> queue, String queryString, Query query) throws IOException {
 		LuceneDocIdsCollector collector = new LuceneDocIdsCollector();
-		corpusMapper.getSearcher().search(corpusMapper.getFilteredQuery(query), collector);
+		corpusMapper.getSegmentsSearcher().search(corpusMapper.getFilteredQuery(query), collector);
 		CorpusTerm corpusTerm = new CorpusTerm(queryString, collector.getRawFreq(), totalTokens, collector.getInDocumentsCount(), corpusMapper.getCorpus().size());
 		offer(queue, corpusTerm);
 	}
 	
-	private void addToQueueFromSpansWithDistributions(CorpusMapper corpusMapper, FlexibleQueue<CorpusTerm> queue, String queryString, Spans spans) throws IOException {
+	private void addToQueueFromSpansWithDistributions(final CorpusMapper corpusMapper, FlexibleQueue<CorpusTerm> queue, Map<String, SpanQuery> queriesMap) throws IOException {
 		Corpus corpus = corpusMapper.getCorpus();
-		int docIndexInCorpus = -1; // this should always be changed on the first span
 		int tokensCounts[] = corpus.getTokensCounts(TokenType.lexical);
-		Map<Integer, AtomicInteger> positionsMap = new HashMap<Integer, AtomicInteger>();
-		int lastDoc = -1;
 		int totalTokens = corpus.getTokensCount(tokenType);
-		int doc = spans.nextDoc();
-		while(doc!=spans.NO_MORE_DOCS) {
-			docIndexInCorpus = corpusMapper.getDocumentPositionFromLuceneId(doc);
-			if (positionsMap.containsKey(docIndexInCorpus)==false) {
-				positionsMap.put(docIndexInCorpus, new AtomicInteger(1));
-			}
-			else {
-				positionsMap.get(docIndexInCorpus).incrementAndGet();
+		int bins = parameters.getParameterIntValue("bins", corpus.size());
+		
+		// count the spans of each query in each document (in parallel, if possible), keyed by document position
+		Map<String, List<Map<Integer, Integer>>> freqsMaps = corpusMapper.processFilteredSpans(queriesMap, new CorpusMapper.LeafSpansProcessor<Map<Integer, Integer>>() {
+			@Override
+			public Map<Integer, Integer> process(String queryString, LeafReaderContext context, Spans spans) throws IOException {
+				Map<Integer, Integer> freqsMap = new HashMap<Integer, Integer>();
+				int doc = spans.nextDoc();
+				while(doc!=spans.NO_MORE_DOCS) {
+					int freq = 0;
+					int pos = spans.nextStartPosition();
+					while (pos!=spans.NO_MORE_POSITIONS) {
+						freq++;
+						pos = spans.nextStartPosition();
+					}
+					if (freq>0) {
+						freqsMap.put(corpusMapper.getDocumentPositionFromLuceneId(context.docBase+doc), freq);
+					}
+					doc = spans.nextDoc();
+				}
+				return freqsMap;
 			}
-			doc = spans.nextDoc();
-		}
-		int[] rawFreqs = new int[corpus.size()];
-		float[] relativeFreqs = new float[corpus.size()];
-		int freq = 0;
-		int inDocumentsCount = 0;
-		for (Map.Entry<Integer, AtomicInteger> entry : positionsMap.entrySet()) {
-			int f = entry.getValue().intValue();
-			int documentPosition = entry.getKey();
-			if (f>0) {
-				freq+=f;
-				inDocumentsCount++;
+		}, getSearchExecutor());
+		
+		for (Map.Entry<String, List<Map<Integer, Integer>>> queryEntry : freqsMaps.entrySet()) {
+			int[] rawFreqs = new int[corpus.size()];
+			float[] relativeFreqs = new float[corpus.size()];
+			int freq = 0;
+			int inDocumentsCount = 0;
+			for (Map<Integer, Integer> freqsMap : queryEntry.getValue()) {
+				for (Map.Entry<Integer, Integer> entry : freqsMap.entrySet()) {
+					int f = entry.getValue();
+					int documentPosition = entry.getKey();
+					freq+=f;
+					inDocumentsCount++;
+					rawFreqs[documentPosition] = f;
+					relativeFreqs[documentPosition] = (float) f/tokensCounts[documentPosition];
+				}
 			}
-			rawFreqs[documentPosition] = f;
-			relativeFreqs[documentPosition] = (float) f/tokensCounts[documentPosition];
+			CorpusTerm corpusTerm = new CorpusTerm(queryEntry.getKey(), freq, totalTokens, inDocumentsCount, corpus.size(), rawFreqs, relativeFreqs, bins);
+			offer(queue, corpusTerm);
 		}
-		CorpusTerm corpusTerm = new CorpusTerm(queryString, freq, totalTokens, inDocumentsCount, corpus.size(), rawFreqs, relativeFreqs, parameters.getParameterIntValue("bins", corpus.size()));
-		offer(queue, corpusTerm);
 	}
 	
 	private void offer(FlexibleQueue<CorpusTerm> queue, CorpusTerm corpusTerm) {
@@ -30,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermContext;
 import org.apache.lucene.index.Terms;
@@ -112,18 +113,22 @@ public class DocumentNgrams extends AbstractTerms {
 		
 		for (Map.Entry<String, SpanQuery> spanQueryEntry : spanQueries.entrySet()) {
 //			CorpusTermMinimal corpusTermMinimal = corpusTermMinimalsDB.get(queryString);
-			Spans spans = corpusMapper.getFilteredSpans(spanQueryEntry.getValue());
 			Map<Integer, List<int[]>> documentAndPositionsMap = new HashMap<Integer, List<int[]>>();
-			int doc = spans.nextDoc();
-			while(doc!=spans.NO_MORE_DOCS) {
-				int pos = spans.nextStartPosition();
-				docIndexInCorpus = corpusMapper.getDocumentPositionFromLuceneId(doc);
-				documentAndPositionsMap.put(docIndexInCorpus, new ArrayList<int[]>());
-				while(pos!=spans.NO_MORE_POSITIONS) {
-					documentAndPositionsMap.get(docIndexInCorpus).add(new int[]{spans.startPosition(), spans.endPosition()});
-					pos = spans.nextStartPosition();
-				}
+			int doc;
+			for (LeafReaderContext context : corpusMapper.getLeafReaderContexts()) {
+				Spans spans = corpusMapper.getFilteredSpans(spanQueryEntry.getValue(), context);
+				if (spans==null) {continue;}
 				doc = spans.nextDoc();
+				while(doc!=spans.NO_MORE_DOCS) {
+					int pos = spans.nextStartPosition();
+					docIndexInCorpus = corpusMapper.getDocumentPositionFromLuceneId(context.docBase+doc);
+					documentAndPositionsMap.put(docIndexInCorpus, new ArrayList<int[]>());
+					while(pos!=spans.NO_MORE_POSITIONS) {
+						documentAndPositionsMap.get(docIndexInCorpus).add(new int[]{spans.startPosition(), spans.endPosition()});
+						pos = spans.nextStartPosition();
+					}
+					doc = spans.nextDoc();
+				}
 			}
 			String queryString = spanQueryEntry.getKey();
 			for (Map.Entry<Integer, List<int[]>> entry : documentAndPositionsMap.entrySet()) {
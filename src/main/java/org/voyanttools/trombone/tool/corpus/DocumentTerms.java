@@ -31,8 +31,7 @@ import java.util.Map;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
 import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.spans.SpanQuery;
@@ -40,14 +39,16 @@ import org.apache.lucene.search.spans.Spans;
 import org.apache.lucene.util.BitSet;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.voyanttools.trombone.lucene.CorpusMapper;
 import org.voyanttools.trombone.lucene.search.SpanQueryParser;
 import org.voyanttools.trombone.model.Corpus;
 import org.voyanttools.trombone.model.CorpusTermMinimal;
 import org.voyanttools.trombone.model.CorpusTermMinimalsDB;
-import org.voyanttools.trombone.model.DocumentMetadata;
+import org.voyanttools.trombone.model.DocumentStatistics;
 import org.voyanttools.trombone.model.DocumentTerm;
 import org.voyanttools.trombone.model.Keywords;
+import org.voyanttools.trombone.model.TermDocumentMatrix;
 import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.util.FlexibleParameters;
 import org.voyanttools.trombone.util.FlexibleQueue;
@@ -112,61 +113,69 @@ public class DocumentTerms extends AbstractTerms implements Iterable<DocumentTer
 	}
 
 	@Override
-	protected void runQueries(CorpusMapper corpusMapper, Keywords stopwords, String[] queries) throws IOException {
+	protected void runQueries(final CorpusMapper corpusMapper, Keywords stopwords, String[] queries) throws IOException {
 	
 		SpanQueryParser spanQueryParser = new SpanQueryParser(corpusMapper.getLeafReader(), storage.getLuceneManager().getAnalyzer());
 		Corpus corpus = corpusMapper.getCorpus();
 		Map<String, SpanQuery> spanQueries = spanQueryParser.getSpanQueriesMap(queries, tokenType, isQueryCollapse);
-		Map<Term, TermContext> termContexts = new HashMap<Term, TermContext>();
-		Map<Integer, List<Integer>> positionsMap = new HashMap<Integer, List<Integer>>();
 		int size = start+limit;
 		FlexibleQueue<DocumentTerm> queue = new FlexibleQueue<DocumentTerm>(comparator, size);
-		int[] totalTokenCounts = corpus.getTokensCounts(tokenType);
+		DocumentStatistics documentStatistics = corpus.getDocumentStatistics();
+		int[] totalTokenCounts = documentStatistics.getTokensCounts(tokenType);
 //		Bits docIdSet = corpusMapper.getDocIdOpenBitSetFromStoredDocumentIds(this.getCorpusStoredDocumentIdsFromParameters(corpus));
 
 		CorpusTermMinimalsDB corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, tokenType);
 		
-		BitSet bitset = corpusMapper.getBitSetFromDocumentIds(this.getCorpusStoredDocumentIdsFromParameters(corpus));
+		final BitSet bitset = corpusMapper.getBitSetFromDocumentIds(this.getCorpusStoredDocumentIdsFromParameters(corpus));
 		
-		for (Map.Entry<String, SpanQuery> spanQueryEntry : spanQueries.entrySet()) {
-			String queryString = spanQueryEntry.getKey();
-			CorpusTermMinimal corpusTermMinimal = corpusTermMinimalsDB.get(queryString);
-			Spans spans = corpusMapper.getFilteredSpans(spanQueryEntry.getValue());
-			int doc = spans.nextDoc();
-			while(doc!=spans.NO_MORE_DOCS) {
-				if (bitset.get(doc)) {
-					int docIndexInCorpus = corpusMapper.getDocumentPositionFromLuceneId(doc);
-					positionsMap.put(docIndexInCorpus, new ArrayList<Integer>());
-					int pos = spans.nextStartPosition();
-					while (pos!=spans.NO_MORE_POSITIONS) {
-						positionsMap.get(docIndexInCorpus).add(pos);
-						pos = spans.nextStartPosition();
+		// gather the positions of each query for each document (in parallel, if possible), keyed by document position
+		Map<String, List<Map<Integer, int[]>>> positionsMaps = corpusMapper.processFilteredSpans(spanQueries, new CorpusMapper.LeafSpansProcessor<Map<Integer, int[]>>() {
+			@Override
+			public Map<Integer, int[]> process(String queryString, LeafReaderContext context, Spans spans) throws IOException {
+				Map<Integer, int[]> positionsMap = new HashMap<Integer, int[]>();
+				List<Integer> positionsList = new ArrayList<Integer>();
+				int doc = spans.nextDoc();
+				while(doc!=spans.NO_MORE_DOCS) {
+					if (bitset.get(context.docBase+doc)) {
+						int pos = spans.nextStartPosition();
+						while (pos!=spans.NO_MORE_POSITIONS) {
+							positionsList.add(pos);
+							pos = spans.nextStartPosition();
+						}
+						int[] positions = new int[positionsList.size()];
+						for (int i=0; i<positions.length; i++) {
+							positions[i] = positionsList.get(i);
+						}
+						positionsMap.put(corpusMapper.getDocumentPositionFromLuceneId(context.docBase+doc), positions);
+						positionsList.clear();
 					}
+					doc = spans.nextDoc();
 				}
-				doc = spans.nextDoc();
+				return positionsMap;
 			}
-			for (Map.Entry<Integer, List<Integer>> entry : positionsMap.entrySet()) {
-				List<Integer> positionsList = entry.getValue();
-				int freq = positionsList.size();
-				int[] positions = new int[positionsList.size()];
-				for (int i=0; i<positions.length; i++) {
-					positions[i] = positionsList.get(i);
-				}
-				int documentPosition = entry.getKey();
-				String docId = corpusMapper.getDocumentIdFromDocumentPosition(documentPosition);
-				DocumentMetadata documentMetadata = corpus.getDocument(docId).getMetadata();
-				float mean = documentMetadata.getTypesCountMean(tokenType);
-				float stdDev = documentMetadata.getTypesCountStdDev(tokenType);
-
-				if (freq>0) {
-					total++;
-					float zscore = stdDev != 0 ? ((float) freq - mean / stdDev) : Float.NaN;
-					DocumentTerm documentTerm = new DocumentTerm(documentPosition, docId, queryString, freq, totalTokenCounts[documentPosition], zscore, positions, null, corpusTermMinimal);
-					queue.offer(documentTerm);
-					
+		}, getSearchExecutor());
+		
+		for (Map.Entry<String, List<Map<Integer, int[]>>> queryEntry : positionsMaps.entrySet()) {
+			String queryString = queryEntry.getKey();
+			CorpusTermMinimal corpusTermMinimal = corpusTermMinimalsDB.get(queryString);
+			for (Map<Integer, int[]> positionsMap : queryEntry.getValue()) {
+				for (Map.Entry<Integer, int[]> entry : positionsMap.entrySet()) {
+					int[] positions = entry.getValue();
+					int freq = positions.length;
+					int documentPosition = entry.getKey();
+					String docId = corpusMapper.getDocumentIdFromDocumentPosition(documentPosition);
+					float mean = documentStatistics.getTypesCountMean(tokenType, documentPosition);
+					float stdDev = documentStatistics.getTypesCountStdDev(tokenType, documentPosition);
+	
+					if (freq>0) {
+						total++;
+						float zscore = stdDev != 0 ? ((float) freq - mean) / stdDev : Float.NaN;
+						DocumentTerm documentTerm = new DocumentTerm(documentPosition, docId, queryString, freq, totalTokenCounts[documentPosition], zscore, positions, null, corpusTermMinimal);
+						queue.offer(documentTerm);
+						
+					}
 				}
 			}
-			positionsMap.clear(); // prepare for new entries
 		}
 		corpusTermMinimalsDB.close();
 		terms.addAll(queue.getOrderedList(start));
@@ -182,14 +191,14 @@ public class DocumentTerms extends AbstractTerms implements Iterable<DocumentTer
 		DocsAndPositionsEnum docsAndPositionsEnum = null;
 		Bits docIdBitSet =  corpusMapper.getBitSetFromDocumentIds(this.getCorpusStoredDocumentIdsFromParameters(corpus));
 		Bits allBits = new Bits.MatchAllBits(reader.numDocs());
+		DocumentStatistics documentStatistics = corpus.getDocumentStatistics();
 		for (int doc : corpusMapper.getLuceneIds()) {
 			if (!docIdBitSet.get(doc)) {continue;}
 			int documentPosition = corpusMapper.getDocumentPositionFromLuceneId(doc);
 			String docId = corpusMapper.getDocumentIdFromLuceneId(doc);
-			DocumentMetadata metadata = corpus.getDocument(docId).getMetadata();
-			float mean = metadata.getTypesCountMean(tokenType);
-			float stdDev = metadata.getTypesCountStdDev(tokenType);
-			int totalTokensCount = metadata.getTokensCount(tokenType);
+			float mean = documentStatistics.getTypesCountMean(tokenType, documentPosition);
+			float stdDev = documentStatistics.getTypesCountStdDev(tokenType, documentPosition);
+			int totalTokensCount = documentStatistics.getTokensCount(tokenType, documentPosition);
 			Terms terms = reader.getTermVector(doc, "lexical");
 			if (terms!=null) {
 				termsEnum = terms.iterator();
@@ -197,32 +206,32 @@ public class DocumentTerms extends AbstractTerms implements Iterable<DocumentTer
 					BytesRef bytesRef = termsEnum.next();
 					
 					while (bytesRef!=null) {
-						String termString = bytesRef.utf8ToString();
-						if (!stopwords.isKeyword(termString)) {
-							CorpusTermMinimal corpusTermMinimal = corpusTermMinimalsDB.get(termString);
-							if (!stopwords.isKeyword(termString)) {
-								int[] positions = null;
-								int[] offsets = null;
-								int freq;
-								if (isNeedsPositions || isNeedsOffsets) {
-									docsAndPositionsEnum = termsEnum.docsAndPositions(allBits, docsAndPositionsEnum, DocsAndPositionsEnum.FLAG_OFFSETS);
-									docsAndPositionsEnum.nextDoc();
-									freq = docsAndPositionsEnum.freq();
-									positions = new int[freq];
-									offsets = new int[freq];
-									for (int i=0; i<freq; i++) {
-										positions[i] = docsAndPositionsEnum.nextPosition();
-										offsets[i] = docsAndPositionsEnum.startOffset();
-									}
-								}
-								else {
-									freq = (int) termsEnum.totalTermFreq();
+						if (!stopwords.isKeyword(bytesRef)) {
+							int freq = (int) termsEnum.totalTermFreq();
+							total+=freq;
+							int ord = corpusTermMinimalsDB.getOrdinal(bytesRef);
+							// first check with primitives whether the queue would keep this term
+							if (isRejected(queue.getThreshold(), freq, totalTokensCount, ord>-1 ? corpusTermMinimalsDB.getInDocumentsCount(ord) : 0, corpusTermMinimalsDB.getDocumentsCount())) {
+								bytesRef = termsEnum.next();
+								continue;
+							}
+							CorpusTermMinimal corpusTermMinimal = ord>-1 ? corpusTermMinimalsDB.get(ord) : null;
+							String termString = bytesRef.utf8ToString();
+							int[] positions = null;
+							int[] offsets = null;
+							if (isNeedsPositions || isNeedsOffsets) {
+								docsAndPositionsEnum = termsEnum.docsAndPositions(allBits, docsAndPositionsEnum, DocsAndPositionsEnum.FLAG_OFFSETS);
+								docsAndPositionsEnum.nextDoc();
+								positions = new int[freq];
+								offsets = new int[freq];
+								for (int i=0; i<freq; i++) {
+									positions[i] = docsAndPositionsEnum.nextPosition();
+									offsets[i] = docsAndPositionsEnum.startOffset();
 								}
-								total+=freq;
-								float zscore = stdDev != 0 ? ((float) freq - mean / stdDev) : Float.NaN;
-								DocumentTerm documentTerm = new DocumentTerm(documentPosition, docId, termString, freq, totalTokensCount, zscore, positions, offsets, corpusTermMinimal);
-								queue.offer(documentTerm);
 							}
+							float zscore = stdDev != 0 ? ((float) freq - mean) / stdDev : Float.NaN;
+							DocumentTerm documentTerm = new DocumentTerm(documentPosition, docId, termString, freq, totalTokensCount, zscore, positions, offsets, corpusTermMinimal);
+							queue.offer(documentTerm);
 						}
 						bytesRef = termsEnum.next();
 					}
@@ -233,8 +242,97 @@ public class DocumentTerms extends AbstractTerms implements Iterable<DocumentTer
 		this.terms.addAll(queue.getOrderedList(start));
 	}
 
+	/**
+	 * Offer the frequencies of all terms in each document from the rows of the {@link TermDocumentMatrix}
+	 * (positions and offsets still need the term vectors).
+	 * @param corpusMapper
+	 * @param stopwords
+	 * @throws IOException
+	 */
+	private void runAllTermsFromMatrix(CorpusMapper corpusMapper, Keywords stopwords) throws IOException {
+		FlexibleQueue<DocumentTerm> queue = new FlexibleQueue<DocumentTerm>(comparator, start+limit);
+		Corpus corpus = corpusMapper.getCorpus();
+		CorpusTermMinimalsDB corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, tokenType);
+		TermDocumentMatrix termDocumentMatrix = TermDocumentMatrix.getInstance(corpusMapper, tokenType);
+		Bits docIdBitSet =  corpusMapper.getBitSetFromDocumentIds(this.getCorpusStoredDocumentIdsFromParameters(corpus));
+		
+		// the ids of the selected documents, by document position
+		int corpusSize = corpus.size();
+		String[] docIds = new String[corpusSize];
+		for (int documentPosition=0; documentPosition<corpusSize; documentPosition++) {
+			int doc = corpusMapper.getLuceneIdFromDocumentPosition(documentPosition);
+			if (doc<0 || !docIdBitSet.get(doc)) {continue;}
+			docIds[documentPosition] = corpusMapper.getDocumentIdFromDocumentPosition(documentPosition);
+		}
+		DocumentStatistics documentStatistics = corpus.getDocumentStatistics();
+		float[] means = documentStatistics.getTypesCountMeans(tokenType);
+		float[] stdDevs = documentStatistics.getTypesCountStdDevs(tokenType);
+		int[] totalTokensCounts = documentStatistics.getTokensCounts(tokenType);
+		
+		FixedBitSet stopwordsOrdinals = stopwords.getOrdinals(corpusMapper, tokenType);
+		for (int ord=0, len=termDocumentMatrix.getTermsCount(); ord<len; ord++) {
+			if (stopwordsOrdinals.get(ord)) {continue;}
+			String termString = null;
+			CorpusTermMinimal corpusTermMinimal = null;
+			for (int entry=termDocumentMatrix.getStart(ord), end=termDocumentMatrix.getEnd(ord); entry<end; entry++) {
+				int documentPosition = termDocumentMatrix.getDocumentPosition(entry);
+				if (docIds[documentPosition]==null) {continue;} // not selected
+				int freq = termDocumentMatrix.getRawFreq(entry);
+				total+=freq;
+				if (isRejected(queue.getThreshold(), freq, totalTokensCounts[documentPosition], corpusTermMinimalsDB.getInDocumentsCount(ord), corpusTermMinimalsDB.getDocumentsCount())) {continue;}
+				if (corpusTermMinimal==null) {
+					corpusTermMinimal = corpusTermMinimalsDB.get(ord);
+					termString = corpusTermMinimal.getTerm();
+				}
+				float mean = means[documentPosition];
+				float stdDev = stdDevs[documentPosition];
+				float zscore = stdDev != 0 ? ((float) freq - mean) / stdDev : Float.NaN;
+				DocumentTerm documentTerm = new DocumentTerm(documentPosition, docIds[documentPosition], termString, freq, totalTokensCounts[documentPosition], zscore, null, null, corpusTermMinimal);
+				queue.offer(documentTerm);
+			}
+		}
+		corpusTermMinimalsDB.close();
+		this.terms.addAll(queue.getOrderedList(start));
+	}
+
+	/**
+	 * Determine from primitives whether a term would be rejected by a full queue, so that the {@link DocumentTerm}
+	 * (with its string, positions and corpus statistics) is only created for terms that can make it into the results.
+	 * Only the primary sort value is compared, so ties are left to the queue's comparator.
+	 * @param threshold the least term kept by the queue (or null if the queue isn't full)
+	 * @param rawFreq the raw frequency of the term in the document
+	 * @param totalTokens the number of tokens in the document
+	 * @param inDocumentsCount the number of documents in the corpus containing the term
+	 * @param documentsCount the number of documents in the corpus
+	 * @return true if the term would be rejected
+	 */
+	private boolean isRejected(DocumentTerm threshold, int rawFreq, int totalTokens, int inDocumentsCount, int documentsCount) {
+		if (threshold==null) {return false;}
+		switch (documentTermsSort) {
+		case RAWFREQDESC:
+			return rawFreq < threshold.getRawFrequency();
+		case RAWFREQASC:
+			return rawFreq > threshold.getRawFrequency();
+		case RELATIVEFREQDESC:
+			return Float.compare(DocumentTerm.getRelativeFrequency(rawFreq, totalTokens), threshold.getRelativeFrequency()) < 0;
+		case RELATIVEFREQASC:
+			return Float.compare(DocumentTerm.getRelativeFrequency(rawFreq, totalTokens), threshold.getRelativeFrequency()) > 0;
+		case TFIDFDESC:
+			return Float.compare(DocumentTerm.getTfIdf(rawFreq, totalTokens, inDocumentsCount, documentsCount), threshold.getTfIdf()) < 0;
+		case TFIDFASC:
+			return Float.compare(DocumentTerm.getTfIdf(rawFreq, totalTokens, inDocumentsCount, documentsCount), threshold.getTfIdf()) > 0;
+		default: // sorting by term needs the string
+			return false;
+		}
+	}
+
 	protected void runAllTerms(CorpusMapper corpusMapper, Keywords stopwords) throws IOException {
-		runAllTermsFromDocumentTermVectors(corpusMapper, stopwords);
+		if (isNeedsPositions || isNeedsOffsets) {
+			runAllTermsFromDocumentTermVectors(corpusMapper, stopwords);
+		}
+		else {
+			runAllTermsFromMatrix(corpusMapper, stopwords);
+		}
 	}
 	
 
@@ -70,7 +70,7 @@ public class DocumentsFinder extends AbstractTerms {
 		Corpus corpus = corpusMapper.getCorpus();
 		total = corpus.size();
 		
-		IndexSearcher indexSearcher = corpusMapper.getSearcher();
+		IndexSearcher indexSearcher = corpusMapper.getSegmentsSearcher();
 		SimpleQueryParser queryParser = new FieldPrefixAwareSimpleQueryParser(corpusMapper.getLeafReader(), storage.getLuceneManager().getAnalyzer());
 		boolean createNewCorpus = parameters.getParameterBooleanValue("createNewCorpus");
 		for (String queryString : getQueries(queries)) {
@@ -21,7 +21,6 @@ import org.voyanttools.trombone.lucene.search.LuceneDocIdsCollector;
 import org.voyanttools.trombone.model.Corpus;
 import org.voyanttools.trombone.model.IndexedDocument;
 import org.voyanttools.trombone.model.TokenType;
-import org.voyanttools.trombone.model.IndexedDocument.IndexedDocumentPriorityQueue;
 import org.voyanttools.trombone.model.IndexedDocument.Sort;
 import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.util.FlexibleParameters;
@@ -60,7 +59,7 @@ public class DocumentsMetadata extends AbstractCorpusTool {
 			weights.put("title", 1f);
 			weights.put("author", 1f);
 			weights.put(TokenType.lexical.name(), 1f);
-			IndexSearcher indexSearcher = corpusMapper.getSearcher();
+			IndexSearcher indexSearcher = corpusMapper.getSegmentsSearcher();
 			SimpleQueryParser queryParser = new FieldPrefixAwareSimpleQueryParser(indexSearcher.getIndexReader(), storage.getLuceneManager().getAnalyzer(), weights);
 			
 			Set<String> idsSet = new HashSet<String>();
@@ -92,19 +91,19 @@ public class DocumentsMetadata extends AbstractCorpusTool {
 		int limit = parameters.getParameterIntValue("limit", Integer.MAX_VALUE);
 		
 		int size = start+limit;
-		IndexedDocumentPriorityQueue queue = new IndexedDocument.IndexedDocumentPriorityQueue(size > corpus.size() ? size : corpus.size(), sort);
-		int index = 0;
+		
+		// sort by document position from the metadata snapshot so that only the documents returned need their metadata
+		List<Integer> positions = new ArrayList<Integer>(ids.size());
 		for (String id : ids) {
-			IndexedDocument document = corpus.getDocument(id);
-			document.getMetadata().setIndex(corpus.getDocumentPosition(id)); // make sure index is set
-			queue.offer(document);
-			if (++index>=size && sort==Sort.INDEXASC) {break;} // we don't need to look any further since docs in order
+			positions.add(corpus.getDocumentPosition(id));
+			if (size>0 && positions.size()>=size && sort==Sort.INDEXASC) {break;} // we don't need to look any further since docs in order
 		}
-		
-		for (int i=0, len = queue.size()-start; i<len; i++) {
-			documents.add(queue.poll());
+		Collections.sort(positions, corpus.getDocumentStatistics().getComparator(sort));
+		for (int i=start, len=positions.size(); i<len; i++) {
+			IndexedDocument document = corpus.getDocument(positions.get(i));
+			document.getMetadata().setIndex(positions.get(i)); // make sure index is set
+			documents.add(document);
 		}
-		Collections.reverse(documents);
 
 	}
 	
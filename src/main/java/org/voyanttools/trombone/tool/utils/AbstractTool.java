@@ -30,6 +30,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.voyanttools.trombone.lucene.CorpusMapper;
 import org.voyanttools.trombone.model.Corpus;
 import org.voyanttools.trombone.model.IndexedDocument;
 import org.voyanttools.trombone.model.Keywords;
@@ -93,7 +94,30 @@ public abstract class AbstractTool implements RunnableTool {
 	public FlexibleParameters getParameters() {
 		return parameters;
 	}
+	/**
+	 * Get the stopwords for the specified corpus from the stopList parameter. The loaded stopwords are kept with the
+	 * shared {@link CorpusMapper} of the corpus, so a stoplist (including "auto") is only loaded once per corpus.
+	 * @param corpus the corpus
+	 * @return the stopwords (empty if there's no stopList parameter)
+	 * @throws IOException
+	 */
 	protected Keywords getStopwords(Corpus corpus) throws IOException {
+		if (parameters.containsKey("stopList")==false) {return new Keywords();}
+		String stopList = StringUtils.join(parameters.getParameterValues("stopList"), ",");
+		CorpusMapper corpusMapper = CorpusMapper.acquireInstance(storage, corpus);
+		try {
+			Keywords keywords = corpusMapper.getStopwords(stopList);
+			if (keywords==null) {
+				keywords = corpusMapper.putStopwords(stopList, loadStopwords(corpus));
+			}
+			return keywords;
+		}
+		finally {
+			corpusMapper.release();
+		}
+	}
+	
+	private Keywords loadStopwords(Corpus corpus) throws IOException {
 		Keywords keywords = new Keywords();
 		if (parameters.containsKey("stopList")) {
 			if (parameters.getParameterValue("stopList", "").equals("auto")) {
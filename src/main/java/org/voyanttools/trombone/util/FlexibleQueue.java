@@ -43,6 +43,18 @@ public class FlexibleQueue<T> {
 		if (list!=null) {list.add(element);}
 		else if (luceneQueue!=null) {luceneQueue.insertWithOverflow(element);}
 	}
+	
+	/**
+	 * Get the element that a new element has to beat in order to be kept, so that callers can skip creating
+	 * elements that would be rejected right away.
+	 * @return the least element kept, or null if the queue isn't bounded or isn't full yet
+	 */
+	public T getThreshold() {
+		if (luceneQueue!=null && luceneQueue.size()>=luceneQueue.maxSize) {
+			return luceneQueue.top();
+		}
+		return null;
+	}
 
 	public List<T> getOrderedList() {
 		return getOrderedList(0);
@@ -87,10 +99,13 @@ public class FlexibleQueue<T> {
 	private class LuceneQueue<T> extends PriorityQueue<T> {
 		
 		Comparator<T> comparator;
+		
+		private final int maxSize;
 
 		private LuceneQueue(Comparator<T> comparator, int maxSize) {
 			super(maxSize);
 			this.comparator = comparator;
+			this.maxSize = maxSize;
 		}
 		
 		private Object[] getHeap() {
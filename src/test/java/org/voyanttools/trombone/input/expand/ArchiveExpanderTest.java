@@ -23,8 +23,12 @@ package org.voyanttools.trombone.input.expand;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Test;
 import org.voyanttools.trombone.input.source.FileInputSource;
@@ -32,6 +36,7 @@ import org.voyanttools.trombone.input.source.InputSource;
 import org.voyanttools.trombone.model.StoredDocumentSource;
 import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.storage.StoredDocumentSourceStorage;
+import org.voyanttools.trombone.util.FlexibleParameters;
 import org.voyanttools.trombone.util.TestHelper;
 
 /**
@@ -78,4 +83,42 @@ public class ArchiveExpanderTest {
 		storage.destroy();
 	}
 
+	@Test
+	public void testConcurrentOrder() throws IOException {
+		
+		Storage storage = TestHelper.getDefaultTestStorage();
+		StoredDocumentSourceStorage storedDocumentSourceStorage = storage.getStoredDocumentSourceStorage();
+		FlexibleParameters parameters = new FlexibleParameters();
+		parameters.setParameter("archiveExpandThreads", 4);
+		parameters.setParameter("archiveEntryBufferKB", 1); // the larger entries are stored while reading
+		StoredDocumentSourceExpander storedDocumentSourceExpander = new StoredDocumentSourceExpander(storedDocumentSourceStorage, parameters);
+		
+		File file = File.createTempFile("trombone-archive", ".zip");
+		file.deleteOnExit();
+		ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(file));
+		for (int i=0; i<50; i++) {
+			zipOutputStream.putNextEntry(new ZipEntry("doc"+i+".txt"));
+			StringBuilder sb = new StringBuilder();
+			for (int j=0, len=i%2==0 ? 1 : 200; j<len; j++) {sb.append("document "+i+" ");}
+			zipOutputStream.write(sb.toString().getBytes("UTF-8"));
+			zipOutputStream.closeEntry();
+		}
+		zipOutputStream.close();
+		
+		StoredDocumentSource storedDocumentSource = storedDocumentSourceStorage.getStoredDocumentSource(new FileInputSource(file));
+		List<StoredDocumentSource> expandedSourceDocumentSources = storedDocumentSourceExpander.expandArchive(storedDocumentSource);
+		assertEquals(50, expandedSourceDocumentSources.size());
+		for (int i=0; i<50; i++) {
+			assertEquals("doc"+i, expandedSourceDocumentSources.get(i).getMetadata().getTitle());
+		}
+		
+		// the stored expansion keeps the same order
+		expandedSourceDocumentSources = storedDocumentSourceStorage.getMultipleExpandedStoredDocumentSources(storedDocumentSource.getId());
+		for (int i=0; i<50; i++) {
+			assertEquals("doc"+i, expandedSourceDocumentSources.get(i).getMetadata().getTitle());
+		}
+
+		storage.destroy();
+	}
+
 }
@@ -207,4 +207,64 @@ public class XmlExpanderTest {
 
 	}
 
+	@Test
+	public void testStreaming() throws IOException {
+		Storage storage = TestHelper.getDefaultTestStorage();
+		StoredDocumentSourceStorage storedDocumentSourceStorage = storage.getStoredDocumentSourceStorage();
+		StoredDocumentSourceExpander storedDocumentSourceExpander;
+		StoredDocumentSource storedDocumentSource;
+		List<StoredDocumentSource> expandedSourceDocumentSources;
+		FlexibleParameters parameters;
+		String string;
+		
+		parameters = new FlexibleParameters(new String[]{"xmlDocumentsXpath=/rss/channel/item","xmlDocumentsStreaming=true"});
+		storedDocumentSourceExpander = new StoredDocumentSourceExpander(storedDocumentSourceStorage, parameters);
+		storedDocumentSource = storedDocumentSourceStorage.getStoredDocumentSource(new FileInputSource(TestHelper.getResource("xml/rss.xml")));
+		expandedSourceDocumentSources = storedDocumentSourceExpander.expandXml(storedDocumentSource);
+		assertEquals(2, expandedSourceDocumentSources.size());
+		string = IOUtils.toString(storedDocumentSourceStorage.getStoredDocumentSourceInputStream(expandedSourceDocumentSources.get(1).getId()));
+		assertTrue(string.contains("<title>Announcing new Products</title>"));
+		assertEquals(DocumentFormat.XML, expandedSourceDocumentSources.get(1).getMetadata().getDocumentFormat());
+		
+		// namespaces declared on ancestors are carried over
+		parameters = new FlexibleParameters(new String[]{"xmlDocumentsXpath=//dc:creator","xmlDocumentsStreaming=true"});
+		storedDocumentSourceExpander = new StoredDocumentSourceExpander(storedDocumentSourceStorage, parameters);
+		storedDocumentSource = storedDocumentSourceStorage.getStoredDocumentSource(new FileInputSource(TestHelper.getResource("xml/rss.xml")));
+		expandedSourceDocumentSources = storedDocumentSourceExpander.expandXml(storedDocumentSource);
+		assertEquals(1, expandedSourceDocumentSources.size());
+		string = IOUtils.toString(storedDocumentSourceStorage.getStoredDocumentSourceInputStream(expandedSourceDocumentSources.get(0).getId()));
+		assertTrue(string.contains("xmlns:dc=\"http://purl.org/dc/elements/1.1/\""));
+		
+		// no prefix means no namespace
+		parameters = new FlexibleParameters(new String[]{"xmlDocumentsXpath=//creator","xmlDocumentsStreaming=true"});
+		storedDocumentSourceExpander = new StoredDocumentSourceExpander(storedDocumentSourceStorage, parameters);
+		storedDocumentSource = storedDocumentSourceStorage.getStoredDocumentSource(new FileInputSource(TestHelper.getResource("xml/rss.xml")));
+		assertEquals(0, storedDocumentSourceExpander.expandXml(storedDocumentSource).size());
+		
+		// predicates aren't streamed but still work
+		parameters = new FlexibleParameters(new String[]{"xmlDocumentsXpath=//*[local-name()='table']","xmlDocumentsStreaming=true"});
+		storedDocumentSourceExpander = new StoredDocumentSourceExpander(storedDocumentSourceStorage, parameters);
+		storedDocumentSource = storedDocumentSourceStorage.getStoredDocumentSource(new FileInputSource(TestHelper.getResource("xml/namespaces.xml")));
+		assertEquals(3, storedDocumentSourceExpander.expandXml(storedDocumentSource).size());
+		
+		// nested matches are children too, with the same ids as with the DOM
+		storedDocumentSource = storedDocumentSourceStorage.getStoredDocumentSource(new StringInputSource("<body><div>one<div>two</div></div><div>three</div></body>"));
+		parameters = new FlexibleParameters(new String[]{"xmlDocumentsXpath=//div","inputFormat=XML"});
+		List<StoredDocumentSource> domSourceDocumentSources = new StoredDocumentSourceExpander(storedDocumentSourceStorage, parameters).expandXml(storedDocumentSource);
+		parameters.setParameter("xmlDocumentsStreaming", "true");
+		expandedSourceDocumentSources = new StoredDocumentSourceExpander(storedDocumentSourceStorage, parameters).expandXml(storedDocumentSource);
+		assertEquals(3, domSourceDocumentSources.size());
+		assertEquals(3, expandedSourceDocumentSources.size());
+		for (int i=0; i<3; i++) {
+			assertEquals(domSourceDocumentSources.get(i).getId(), expandedSourceDocumentSources.get(i).getId());
+		}
+		string = IOUtils.toString(storedDocumentSourceStorage.getStoredDocumentSourceInputStream(expandedSourceDocumentSources.get(0).getId()));
+		assertTrue(string.contains("<div>one<div>two</div></div>"));
+		string = IOUtils.toString(storedDocumentSourceStorage.getStoredDocumentSourceInputStream(expandedSourceDocumentSources.get(1).getId()));
+		assertTrue(string.contains("<div>two</div>"));
+		assertFalse(string.contains("one"));
+		
+		storage.destroy();
+	}
+
 }
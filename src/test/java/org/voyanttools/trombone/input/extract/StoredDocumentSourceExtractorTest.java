@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Trombone is a flexible text processing and analysis library used
+ * primarily by Voyant Tools (voyant-tools.org).
+ * 
+ * Copyright (©) 2007-2012 Stéfan Sinclair & Geoffrey Rockwell
+ * 
+ * This file is part of Trombone.
+ * 
+ * Trombone is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Trombone is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Trombone.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.voyanttools.trombone.input.extract;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.voyanttools.trombone.input.source.StringInputSource;
+import org.voyanttools.trombone.model.StoredDocumentSource;
+import org.voyanttools.trombone.storage.Storage;
+import org.voyanttools.trombone.storage.StoredDocumentSourceStorage;
+import org.voyanttools.trombone.util.FlexibleParameters;
+import org.voyanttools.trombone.util.TestHelper;
+
+/**
+ * @author sgs
+ *
+ */
+public class StoredDocumentSourceExtractorTest {
+
+	@Test(timeout=30000)
+	public void testTimeout() throws IOException {
+		Storage storage = TestHelper.getDefaultTestStorage();
+		StoredDocumentSourceStorage storedDocumentSourceStorage = storage.getStoredDocumentSourceStorage();
+		FlexibleParameters parameters = new FlexibleParameters(new String[]{"extractThreads=1","extractTimeoutSeconds=1"});
+		
+		final StoredDocumentSource stuck = storedDocumentSourceStorage.getStoredDocumentSource(new StringInputSource("This one never finishes."));
+		List<StoredDocumentSource> storedDocumentSources = new ArrayList<StoredDocumentSource>();
+		storedDocumentSources.add(storedDocumentSourceStorage.getStoredDocumentSource(new StringInputSource("This is the first.")));
+		storedDocumentSources.add(stuck);
+		storedDocumentSources.add(storedDocumentSourceStorage.getStoredDocumentSource(new StringInputSource("This is the second.")));
+		storedDocumentSources.add(storedDocumentSourceStorage.getStoredDocumentSource(new StringInputSource("This is the third.")));
+		
+		final Object release = new Object();
+		final boolean[] released = new boolean[]{false};
+		
+		// an extraction that ignores being interrupted, like a parser stuck in a loop
+		StoredDocumentSourceExtractor extractor = new StoredDocumentSourceExtractor(storedDocumentSourceStorage, parameters) {
+			@Override
+			public StoredDocumentSource getExtractedStoredDocumentSource(StoredDocumentSource storedDocumentSource) throws IOException {
+				if (storedDocumentSource.getId().equals(stuck.getId())) {
+					synchronized (release) {
+						while (released[0]==false) {
+							try {
+								release.wait();
+							} catch (InterruptedException e) {
+								// keep going
+							}
+						}
+					}
+				}
+				return super.getExtractedStoredDocumentSource(storedDocumentSource);
+			}
+		};
+		
+		try {
+			List<StoredDocumentSource> extractedStoredDocumentSources = extractor.getExtractedStoredDocumentSources(storedDocumentSources);
+			assertEquals(3, extractedStoredDocumentSources.size());
+			assertEquals(Arrays.asList(stuck.getId()), extractor.getSkippedIds());
+			
+			// the remaining documents are still in order
+			List<StoredDocumentSource> expected = new ArrayList<StoredDocumentSource>(storedDocumentSources);
+			expected.remove(stuck);
+			for (int i=0; i<expected.size(); i++) {
+				assertEquals(extractor.getExtractedStoredDocumentSource(expected.get(i)).getId(), extractedStoredDocumentSources.get(i).getId());
+			}
+		}
+		finally {
+			synchronized (release) {
+				released[0] = true;
+				release.notifyAll();
+			}
+		}
+		
+		storage.destroy();
+	}
+
+}
@@ -186,5 +186,30 @@ public class XmlExtractorTest {
 		storage.destroy();
 
 	}
+	
+	@Test
+	public void testReuse() throws IOException {
+		Storage storage = TestHelper.getDefaultTestStorage();
+		StoredDocumentSourceStorage storeDocumentSourceStorage = storage.getStoredDocumentSourceStorage();
+		
+		// the same extractor compiles the XPath expressions and the template once and reuses them for each document
+		FlexibleParameters parameters = new FlexibleParameters(new String[]{"inputFormat=XML","xmlContentXpath=//body","xmlTitleXpath=//title","xmlExtractorTemplate=dream-extraction.xsl"});
+		StoredDocumentSourceExtractor extractor = new StoredDocumentSourceExtractor(storeDocumentSourceStorage, parameters);
+		String[] titles = new String[]{"First","Second"};
+		String[] words = new String[]{"colour","honour"};
+		for (int i=0; i<titles.length; i++) {
+			InputSource inputSource = new StringInputSource("<doc><title>"+titles[i]+"</title><body>a <normalised orig=\""+words[i]+"\">"+words[i].replace("ou", "o")+"</normalised> word</body></doc>");
+			StoredDocumentSource storedDocumentSource = storeDocumentSourceStorage.getStoredDocumentSource(inputSource);
+			StoredDocumentSource extractedStoredDocumentSource = extractor.getExtractedStoredDocumentSource(storedDocumentSource);
+			assertEquals(titles[i], extractedStoredDocumentSource.getMetadata().getTitle());
+			String contents = IOUtils.toString(storeDocumentSourceStorage.getStoredDocumentSourceInputStream(extractedStoredDocumentSource.getId()));
+			assertTrue(contents.contains(words[i]));
+			assertFalse(contents.contains("<normalised"));
+			assertFalse(contents.contains(titles[i]));
+			assertFalse(contents.contains(words[1-i]));
+		}
+		
+		storage.destroy();
+	}
 
 }
@@ -4,12 +4,15 @@
 package org.voyanttools.trombone.input.index;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.SlowCompositeReaderWrapper;
@@ -24,6 +27,7 @@ import org.voyanttools.trombone.input.extract.StoredDocumentSourceExtractor;
 import org.voyanttools.trombone.input.source.FileInputSource;
 import org.voyanttools.trombone.input.source.InputSource;
 import org.voyanttools.trombone.input.source.StringInputSource;
+import org.voyanttools.trombone.lucene.LuceneManager;
 import org.voyanttools.trombone.model.DocumentMetadata;
 import org.voyanttools.trombone.model.StoredDocumentSource;
 import org.voyanttools.trombone.model.TokenType;
@@ -63,6 +67,64 @@ public class LuceneIndexerTest {
 		storage.destroy();
 	}
 	
+	@Test
+	public void testCheckpoint() throws IOException {
+		Storage storage = TestHelper.getDefaultTestStorage();
+		StoredDocumentSourceStorage storedDocumentSourceStorage = storage.getStoredDocumentSourceStorage();
+		List<StoredDocumentSource> storedDocumentSources = new ArrayList<StoredDocumentSource>();
+		storedDocumentSources.add(storedDocumentSourceStorage.getStoredDocumentSource(new StringInputSource("one two two")));
+		storedDocumentSources.add(storedDocumentSourceStorage.getStoredDocumentSource(new StringInputSource("two")));
+		storedDocumentSources.add(storedDocumentSourceStorage.getStoredDocumentSource(new StringInputSource("three")));
+		FlexibleParameters parameters = new FlexibleParameters();
+		parameters.setParameter("luceneCommitDocuments", 1);
+		parameters.setParameter("luceneIndexingQueue", 1);
+		parameters.setParameter("luceneIndexingProfile", "bulk");
+		parameters.setParameter("luceneOptimize", "true");
+		LuceneIndexer luceneIndexer = new LuceneIndexer(storage, parameters);
+		String id = luceneIndexer.index(storedDocumentSources);
+		assertEquals(3, luceneIndexer.getIndexedDocumentsCount());
+		assertEquals(0, luceneIndexer.getSkippedDocumentsCount());
+		
+		// the profile only applies to the build and the optimized index has a single segment
+		assertEquals(LuceneManager.IndexWriterProfile.interactive, storage.getLuceneManager().getIndexWriterProfile());
+		assertEquals(1, storage.getLuceneManager().getDirectoryReader().leaves().size());
+		
+		// the checkpoint is only kept while the build is unfinished
+		Set<String> checkpointedIds = LuceneIndexer.getCheckpointedIds(storage, id);
+		assertTrue(checkpointedIds.isEmpty());
+		assertEquals(3, storage.getLuceneManager().getDirectoryReader().numDocs());
+		
+		// a checkpoint left by an interrupted build is trusted until the build finishes
+		storage.storeBuffer(ByteBuffer.wrap(storedDocumentSources.get(0).getId().getBytes("UTF-8")), id+"-indexed-0");
+		storage.storeBuffer(ByteBuffer.wrap("1".getBytes("UTF-8")), id+"-indexed");
+		assertEquals(1, LuceneIndexer.getCheckpointedIds(storage, id).size());
+		
+		// statistics are collected while indexing
+		DocumentMetadata metadata = storedDocumentSourceStorage.getStoredDocumentSourceMetadata(storedDocumentSources.get(0).getId());
+		assertEquals(3, metadata.getTokensCount(TokenType.lexical));
+		assertEquals(2, metadata.getTypesCount(TokenType.lexical));
+		assertEquals(1.5f, metadata.getTypesCountMean(TokenType.lexical), 0.0001f);
+		assertEquals(2, metadata.getLastTokenPositionIndex(TokenType.lexical));
+		assertEquals(8, metadata.getLastTokenOffsetIndex(TokenType.lexical));
+		
+		// indexing the same corpus again finds the documents in the index without adding anything
+		assertEquals(id, luceneIndexer.index(storedDocumentSources));
+		assertEquals(0, luceneIndexer.getIndexedDocumentsCount());
+		assertEquals(3, luceneIndexer.getSkippedDocumentsCount());
+		assertEquals(3, storage.getLuceneManager().getDirectoryReader().numDocs());
+		assertTrue(LuceneIndexer.getCheckpointedIds(storage, id).isEmpty());
+		
+		// documents already in the index (from another corpus) or repeated are skipped too
+		storedDocumentSources.add(storedDocumentSources.get(1));
+		storedDocumentSources.add(storedDocumentSourceStorage.getStoredDocumentSource(new StringInputSource("four")));
+		luceneIndexer.index(storedDocumentSources);
+		assertEquals(1, luceneIndexer.getIndexedDocumentsCount());
+		assertEquals(4, luceneIndexer.getSkippedDocumentsCount());
+		assertEquals(4, storage.getLuceneManager().getDirectoryReader().numDocs());
+		
+		storage.destroy();
+	}
+	
 	/**
 	 * The code below is a bit hard to follow, but essentially we're wanting to use the usual extraction
 	 * workflow (which produces a guessed language code), then Lucene analysis to double-check the
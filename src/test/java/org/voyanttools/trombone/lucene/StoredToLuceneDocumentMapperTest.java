@@ -21,7 +21,10 @@
  ******************************************************************************/
 package org.voyanttools.trombone.lucene;
 
+import static org.junit.Assert.*;
+
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.junit.Test;
 import org.voyanttools.trombone.model.Corpus;
@@ -58,6 +61,57 @@ public class StoredToLuceneDocumentMapperTest {
 		Corpus corpus = storage.getCorpusStorage().getCorpus(corpusId);
 		CorpusMapper corpusMapper = new CorpusMapper(storage, corpus);
 		
+		int[] luceneIds = corpusMapper.getLuceneIds();
+		assertEquals(corpus.size(), luceneIds.length);
+		for (int i=1; i<luceneIds.length; i++) {
+			assertTrue(luceneIds[i-1] < luceneIds[i]); // sorted
+		}
+		for (int position=0, len=corpus.size(); position<len; position++) {
+			int luceneId = corpusMapper.getLuceneIdFromDocumentPosition(position);
+			assertTrue(corpusMapper.hasLuceneId(luceneId));
+			assertEquals(position, corpusMapper.getDocumentPositionFromLuceneId(luceneId));
+			assertEquals(corpus.getDocument(position).getId(), corpusMapper.getDocumentIdFromLuceneId(luceneId));
+		}
+		
+		// the first document (tiny/01.txt) is in the index but not in this corpus
+		int outside = -1;
+		for (int doc=0, len=corpusMapper.getLeafReader().maxDoc(); doc<len; doc++) {
+			if (!corpusMapper.hasLuceneId(doc)) {outside = doc; break;}
+		}
+		assertTrue(outside > -1);
+		assertEquals(-1, corpusMapper.getDocumentPositionFromLuceneId(outside));
+		
+		// unknown documents are skipped and the returned ids can't change the mapper
+		assertEquals(-1, corpusMapper.getLuceneIdFromDocumentId("unknown"));
+		assertEquals(1, corpusMapper.getBitSetFromDocumentIds(Arrays.asList(corpus.getDocument(0).getId(), "unknown")).cardinality());
+		corpusMapper.getLuceneIds()[0] = -1;
+		assertArrayEquals(luceneIds, corpusMapper.getLuceneIds());
+		
+		// a new mapper for the same reader uses the stored id maps
+		long version = corpusMapper.getDirectoryReader().getVersion();
+		assertNotNull(storage.getCorpusStorage().getLuceneIdMaps(corpusId, version));
+		assertArrayEquals(luceneIds, new CorpusMapper(storage, corpus).getLuceneIds());
+		
+		// mappers are shared for the same corpus and reader
+		CorpusMapperCache cache = storage.getLuceneManager().getCorpusMapperCache();
+		long hits = cache.getHits();
+		CorpusMapper sharedCorpusMapper = CorpusMapper.getInstance(storage, corpus);
+		assertSame(sharedCorpusMapper, CorpusMapper.getInstance(storage, corpus));
+		assertEquals(hits+1, cache.getHits());
+		
+		// but dropped once the reader changes, while an acquired reader stays open until it's released
+		long generation = storage.getLuceneManager().getReaderGeneration();
+		CorpusMapper acquiredCorpusMapper = CorpusMapper.acquireInstance(storage, corpus);
+		assertSame(sharedCorpusMapper, acquiredCorpusMapper);
+		parameters = new FlexibleParameters(new String[]{"string=a new document to change the reader"});
+		creator = new CorpusCreator(storage, parameters);
+		creator.run();
+		assertTrue(storage.getLuceneManager().getReaderGeneration()>generation);
+		assertNotSame(sharedCorpusMapper, CorpusMapper.getInstance(storage, corpus));
+		assertTrue(acquiredCorpusMapper.getDirectoryReader().getRefCount()>0);
+		assertArrayEquals(luceneIds, acquiredCorpusMapper.getLuceneIds());
+		acquiredCorpusMapper.release();
+		
 		storage.destroy();
 	}
 
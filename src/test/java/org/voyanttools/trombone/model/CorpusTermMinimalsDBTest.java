@@ -41,10 +41,55 @@ public class CorpusTermMinimalsDBTest {
 		CorpusMapper corpusMapper = new CorpusMapper(storage, corpus);
 		CorpusTermMinimalsDB corpusTermMinimalsDB = null;
 		try {
-			corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, TokenType.lexical);
+			corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(corpusMapper, TokenType.lexical, CorpusTermMinimalsDB.BuildStrategy.termVectors);
+			assertEquals(CorpusTermMinimalsDB.BuildStrategy.termVectors, corpusTermMinimalsDB.getBuildStrategy());
 			assertNull(corpusTermMinimalsDB.get("document")); // from first document added, not in this corpus
 			assertEquals(1, corpusTermMinimalsDB.get("night").getRawFreq());
 			assertEquals(3, corpusTermMinimalsDB.get("was").getRawFreq());
+			
+			// terms are sorted and can be read by ordinal
+			assertEquals(2, corpusTermMinimalsDB.getDocumentsCount());
+			for (int ord=1, len=corpusTermMinimalsDB.size(); ord<len; ord++) {
+				assertTrue(corpusTermMinimalsDB.getTerm(ord-1).compareTo(corpusTermMinimalsDB.getTerm(ord)) < 0);
+			}
+			int ord = corpusTermMinimalsDB.getOrdinal("was");
+			assertEquals("was", corpusTermMinimalsDB.getTerm(ord));
+			assertEquals(3, corpusTermMinimalsDB.getRawFreq(ord));
+			assertEquals(2, corpusTermMinimalsDB.getInDocumentsCount(ord));
+			assertEquals(-1, corpusTermMinimalsDB.getOrdinal("document"));
+
+			// ordinals are also stored by descending frequency
+			assertEquals(3, corpusTermMinimalsDB.getRawFreq(corpusTermMinimalsDB.getOrdinalByRawFreq(0)));
+			for (int rank=1, len=corpusTermMinimalsDB.size(); rank<len; rank++) {
+				assertTrue(corpusTermMinimalsDB.getRawFreq(corpusTermMinimalsDB.getOrdinalByRawFreq(rank-1)) >= corpusTermMinimalsDB.getRawFreq(corpusTermMinimalsDB.getOrdinalByRawFreq(rank)));
+				assertTrue(corpusTermMinimalsDB.getInDocumentsCount(corpusTermMinimalsDB.getOrdinalByInDocumentsCount(rank-1)) >= corpusTermMinimalsDB.getInDocumentsCount(corpusTermMinimalsDB.getOrdinalByInDocumentsCount(rank)));
+			}
+
+			// the term-document matrix shares the ordinals
+			TermDocumentMatrix termDocumentMatrix = TermDocumentMatrix.getInstance(corpusMapper, TokenType.lexical);
+			assertEquals(corpusTermMinimalsDB.size(), termDocumentMatrix.getTermsCount());
+			int[] rawFreqs = new int[termDocumentMatrix.getDocumentsCount()];
+			assertEquals(3, termDocumentMatrix.getRawFreqs(ord, rawFreqs));
+			assertArrayEquals(new int[]{1, 2}, rawFreqs);
+			ord = corpusTermMinimalsDB.getOrdinal("dark");
+			assertEquals(1, termDocumentMatrix.getEnd(ord)-termDocumentMatrix.getStart(ord));
+			assertEquals(0, termDocumentMatrix.getDocumentPosition(termDocumentMatrix.getStart(ord)));
+			
+			// already stored, so not built again
+			assertNull(CorpusTermMinimalsDB.getInstance(corpusMapper, TokenType.lexical).getBuildStrategy());
+			
+			// building from postings gives the same statistics
+			CorpusMetadata postingsMetadata = new CorpusMetadata("postings-"+id);
+			postingsMetadata.setDocumentIds(ids);
+			CorpusMapper postingsCorpusMapper = new CorpusMapper(storage, new Corpus(storage, postingsMetadata));
+			CorpusTermMinimalsDB postingsCorpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(postingsCorpusMapper, TokenType.lexical, CorpusTermMinimalsDB.BuildStrategy.postings);
+			assertEquals(CorpusTermMinimalsDB.BuildStrategy.postings, postingsCorpusTermMinimalsDB.getBuildStrategy());
+			assertEquals(corpusTermMinimalsDB.size(), postingsCorpusTermMinimalsDB.size());
+			for (int i=0, len=corpusTermMinimalsDB.size(); i<len; i++) {
+				assertEquals(corpusTermMinimalsDB.getTerm(i), postingsCorpusTermMinimalsDB.getTerm(i));
+				assertEquals(corpusTermMinimalsDB.getRawFreq(i), postingsCorpusTermMinimalsDB.getRawFreq(i));
+				assertEquals(corpusTermMinimalsDB.getInDocumentsCount(i), postingsCorpusTermMinimalsDB.getInDocumentsCount(i));
+			}
 		}
 		finally {
 			if (corpusTermMinimalsDB!=null) {corpusTermMinimalsDB.close();}
@@ -3,6 +3,7 @@ package org.voyanttools.trombone.model;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import org.apache.lucene.util.BytesRef;
 import org.junit.Test;
 import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.util.EmbeddedWebServer;
@@ -25,6 +26,14 @@ public class KeywordsTest {
 		assertTrue(keywords.isKeyword("testaa"));
 		assertFalse(keywords.isKeyword("word"));
 		
+		// the same lookups on UTF-8 bytes, including after more keywords are loaded
+		Keywords moreKeywords = new Keywords();
+		moreKeywords.load(storage, new String[]{"stop.en.taporware.txt"});
+		assertTrue(moreKeywords.isKeyword(new BytesRef("the")));
+		assertFalse(moreKeywords.isKeyword(new BytesRef("word")));
+		moreKeywords.load(storage, new String[]{"word"});
+		assertTrue(moreKeywords.isKeyword(new BytesRef("word")));
+		
 		// try from stored data
 		String id = storage.storeStrings(keywords.getKeywords());
 		keywords = new Keywords();
@@ -101,6 +101,20 @@ public class CorpusCreatorTest {
 		creator = new RealCorpusCreator(storage, parameters);
 		creator.run();
 		assertEquals(storedCorpusId, creator.getStoredId());
+		
+		// the pipeline gives the same corpus and index on new storage (with a repeated document and a batch for each document)
+		Storage pipelineStorage = TestHelper.getDefaultTestStorage();
+		parameters = new FlexibleParameters(new String[]{"string=test","file="+TestHelper.getResource("formats/chars.rtf"),"string=test","pipeline=true","indexBatchSize=1"});
+		creator = new RealCorpusCreator(pipelineStorage, parameters);
+		creator.run();
+		assertEquals("done", creator.getNextCorpusCreatorStep());
+		String pipelineCorpusId = creator.getStoredId();
+		parameters.setParameter("pipeline", "false");
+		creator = new RealCorpusCreator(storage, parameters);
+		creator.run();
+		assertEquals(creator.getStoredId(), pipelineCorpusId);
+		assertEquals(storage.getLuceneManager().getDirectoryReader().numDocs(), pipelineStorage.getLuceneManager().getDirectoryReader().numDocs());
+		pipelineStorage.destroy();
 
 //		XStream xstream;
 //		
@@ -113,5 +127,20 @@ public class CorpusCreatorTest {
 		storage.destroy();
 
 	}
+	
+	@Test(timeout=60000)
+	public void testPipelineFailure() throws IOException {
+		Storage storage = TestHelper.getDefaultTestStorage();
+		// an unknown input format makes the expand stage fail for every document
+		FlexibleParameters parameters = new FlexibleParameters(new String[]{"string=one","string=two","string=three","inputFormat=nonsense","extractThreads=1","indexBatchSize=1"});
+		try {
+			new DocumentPipeline(storage, parameters).run();
+			fail("The extraction failure should be rethrown.");
+		}
+		catch (RuntimeException e) {
+			// expected
+		}
+		storage.destroy();
+	}
 
 }
@@ -86,4 +86,35 @@ public class DocumentExtractorTest {
 		String idString = (String) sd.get("storedId");
 		assertEquals(id, idString);	}
 
+	
+	@Test
+	public void testConcurrentOrder() throws IOException {
+		String[] strings = new String[]{"one", "two", "three", "four", "five", "six", "seven", "eight"};
+		FlexibleParameters parameters = new FlexibleParameters();
+		for (String string : strings) {
+			parameters.addParameter("string", string);
+		}
+		parameters.setParameter("extractThreads", 3);
+		Storage storage = TestHelper.getDefaultTestStorage();
+		DocumentStorer storer = new DocumentStorer(storage, parameters);
+		storer.run();
+		parameters.setParameter("storedId", storer.getStoredId());
+		DocumentExtractor extractor = new DocumentExtractor(storage, parameters);
+		extractor.run();
+		
+		// the documents come back in their original order
+		List<StoredDocumentSource> storedDocumentSources = extractor.getStoredDocumentSources();
+		assertEquals(strings.length, storedDocumentSources.size());
+		for (int i=0; i<strings.length; i++) {
+			InputStream is = storage.getStoredDocumentSourceStorage().getStoredDocumentSourceInputStream(storedDocumentSources.get(i).getId());
+			try {
+				assertTrue(IOUtils.toString(is).contains(strings[i]));
+			}
+			finally {
+				is.close();
+			}
+		}
+		storage.destroy();
+	}
+
 }
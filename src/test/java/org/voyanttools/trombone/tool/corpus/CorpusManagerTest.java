@@ -4,13 +4,17 @@
 package org.voyanttools.trombone.tool.corpus;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
+import org.voyanttools.trombone.lucene.CorpusMapper;
 import org.voyanttools.trombone.model.Corpus;
+import org.voyanttools.trombone.model.CorpusTermMinimalsDB;
+import org.voyanttools.trombone.model.TokenType;
 import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.storage.memory.MemoryStorage;
 import org.voyanttools.trombone.tool.build.RealCorpusCreator;
@@ -74,6 +78,12 @@ public class CorpusManagerTest {
 		assertEquals(2, corpus.size());
 		assertTrue(IOUtils.toString(storage.getStoredDocumentSourceStorage().getStoredDocumentSourceInputStream(corpus.getDocument(0).getId())).contains(strings[1]));
 		
+		// term statistics were derived from the original corpus
+		CorpusTermMinimalsDB corpusTermMinimalsDB = CorpusTermMinimalsDB.getInstance(CorpusMapper.getInstance(storage, corpus), TokenType.lexical);
+		assertNull(corpusTermMinimalsDB.getBuildStrategy());
+		assertEquals(3, corpusTermMinimalsDB.get("was").getRawFreq());
+		assertEquals(2, corpusTermMinimalsDB.get("was").getInDocumentsCount());
+		
 		// make sure we still have two documents in our original corpus
 		parameters.clear();
 		parameters.setParameter("corpus", corpusId);
@@ -10,7 +10,11 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.CorruptIndexException;
 import org.junit.Test;
+import org.voyanttools.trombone.model.Corpus;
+import org.voyanttools.trombone.model.DocumentMetadata;
+import org.voyanttools.trombone.model.DocumentStatistics;
 import org.voyanttools.trombone.model.DocumentTerm;
+import org.voyanttools.trombone.model.TokenType;
 import org.voyanttools.trombone.storage.Storage;
 import org.voyanttools.trombone.storage.memory.MemoryStorage;
 import org.voyanttools.trombone.tool.build.RealCorpusCreator;
@@ -46,6 +50,41 @@ public class DocumentTermsTest {
 		List<DocumentTerm> documentTerms = documentTermsTool.getDocumentTerms();
 		assertEquals(14, documentTerms.size());
 		
+		// terms that can't make it into a small page aren't created, but the top terms are the same
+		parameters.setParameter("limit", 1);
+		parameters.setParameter("sort", "RAWFREQ");
+		documentTermsTool = new DocumentTerms(storage, parameters);
+		documentTermsTool.run();
+		documentTerms = documentTermsTool.getDocumentTerms();
+		assertEquals(1, documentTerms.size());
+		assertEquals(2, documentTerms.get(0).getRawFrequency());
+		parameters.setParameter("withPositions", "true");
+		documentTermsTool = new DocumentTerms(storage, parameters);
+		documentTermsTool.run();
+		documentTerms = documentTermsTool.getDocumentTerms();
+		assertEquals(1, documentTerms.size());
+		assertEquals(2, documentTerms.get(0).getPositions().length);
+		parameters.removeParameter("withPositions");
+		parameters.removeParameter("sort");
+		parameters.removeParameter("limit");
+		
+		// document statistics match the metadata and z-scores use them
+		Corpus corpus = CorpusManager.getCorpus(storage, parameters);
+		DocumentStatistics documentStatistics = corpus.getDocumentStatistics();
+		assertEquals(2, documentStatistics.getDocumentsCount());
+		for (int i=0; i<2; i++) {
+			DocumentMetadata metadata = corpus.getDocument(i).getMetadata();
+			assertEquals(metadata.getTokensCount(TokenType.lexical), documentStatistics.getTokensCount(TokenType.lexical, i));
+			assertEquals(metadata.getLastTokenPositionIndex(TokenType.lexical), documentStatistics.getLastTokenPosition(TokenType.lexical, i));
+			assertEquals(metadata.getTypesCountMean(TokenType.lexical), documentStatistics.getTypesCountMean(TokenType.lexical, i), 0);
+			assertEquals(metadata.getTitle(), documentStatistics.getTitle(i));
+			assertEquals(metadata.getLanguageCode(), documentStatistics.getLanguageCode(i));
+		}
+		DocumentTerm documentTerm = documentTerms.get(0);
+		float mean = documentStatistics.getTypesCountMean(TokenType.lexical, documentTerm.getDocIndex());
+		float stdDev = documentStatistics.getTypesCountStdDev(TokenType.lexical, documentTerm.getDocIndex());
+		assertEquals((documentTerm.getRawFrequency() - mean) / stdDev, documentTerm.getZscore(), 0.0001);
+		
 		parameters.setParameter("docIndex", 0);
 		documentTermsTool = new DocumentTerms(storage, parameters);
 		documentTermsTool.run();